@@ -118,13 +118,29 @@ public final class Config {
 
     public static final int PAGE_SIZE = 50;
     public static final int MAX_NUM_PAGES = 3;
+    public static final long MESSAGE_PAGE_RESIDENCY = 5 * 60 * 1000; // recently viewed pages survive trim memory for 5 minutes
     public static final int MAX_SEARCH_RESULTS = 300;
 
     public static final int REFRESH_UI_INTERVAL = 500;
+    public static final int FILE_TRANSFER_BUFFER_SIZE = 64 * 1024;
+    public static final long SEGMENTED_DOWNLOAD_THRESHOLD = 4 * 1024 * 1024; // larger files are downloaded as byte ranges over several connections
+    public static final int DOWNLOAD_SEGMENT_SIZE = 1024 * 1024;
+    public static final int MAX_DOWNLOAD_CONNECTIONS = 4;
+    public static final int MAX_UPLOAD_RETRIES = 2; // interrupted uploads are restarted on a fresh slot this often
+    public static final int MAX_PARALLEL_TRANSFERS = 3; // per direction
+    public static final int MAX_TRANSFERS_PER_HOST = 2;
+    public static final long SMALL_TRANSFER_SIZE = 1024 * 1024; // smaller files are transferred ahead of larger ones
+    public static final long THUMBNAIL_CACHE_SIZE = 32 * 1024 * 1024; // generated thumbnails kept on disk across restarts
+    public static final long RICH_PREVIEW_MAX_SIZE = 1024 * 1024; // link previews only look at the head of the page
 
     public static final long OMEMO_AUTO_EXPIRY = 60 * MILLISECONDS_IN_DAY; // delete old OMEMO devices after 60 days of inactivity
     public static final boolean REMOVE_BROKEN_DEVICES = false;
     public static final boolean OMEMO_PADDING = false;
+    public static final int OMEMO_BUNDLE_FETCH_WINDOW = 8; // bundle requests in flight per account
+    public static final int OMEMO_BUNDLE_FETCH_TIMEOUT = 30; // seconds
+    public static final long OMEMO_BUNDLE_CACHE_EXPIRY = 5 * 60 * 1000;
+    public static final int AXOLOTL_KEY_CONVERSION_CHUNK = 200; // rows per table and transaction when converting keys to blobs
+    public static final int PGP_DECRYPTION_BATCH_SIZE = 25; // decrypted pgp messages per database transaction and UI update
     public static final boolean PUT_AUTH_TAG_INTO_KEY = true;
     public static final boolean TWELVE_BYTE_IV = true;
 
@@ -151,6 +167,8 @@ public final class Config {
 
     public static final boolean IGNORE_ID_REWRITE_IN_MUC = true;
     public static final boolean MUC_LEAVE_BEFORE_JOIN = false;
+    public static final int MUC_JOIN_BURST_LIMIT = 5000; // occupant presences buffered until our own presence arrives
+    public static final int MUC_JOIN_MAX_DEFERRED_FETCHES = 250;
 
     public static final boolean USE_LMC_VERSION_1_1 = true;
 
@@ -161,6 +179,10 @@ public final class Config {
     public static final int TYPING_TIMEOUT = 5;
 
     public static final int EXPIRY_INTERVAL = 30 * 60 * 1000; // 30 minutes
+    public static final int EXPIRY_CHUNK_SIZE = 500; // stays below sqlite's limit of 999 bound parameters
+    public static final int DATABASE_SLOW_QUERY_THRESHOLD = 100; // ms
+    public static final long FILE_SWEEP_INTERVAL = 7 * MILLISECONDS_IN_DAY; // check all attachments for deletion once a week
+    public static final long FILE_MODIFICATION_TIME_RESOLUTION = 2000; // FAT stores modification times in 2 second steps
 
     public static final String UPDATE_URL = BuildConfig.UPDATE_URL;
     public static final long UPDATE_CHECK_TIMER = 24 * 60 * 60; // 24 h in seconds
@@ -2,6 +2,7 @@ package eu.siacs.conversations.crypto;
 
 import android.app.PendingIntent;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.openintents.openpgp.OpenPgpMetadata;
@@ -16,7 +17,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 
 import eu.siacs.conversations.Config;
@@ -26,12 +29,21 @@ import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.http.HttpConnectionManager;
 import eu.siacs.conversations.services.XmppConnectionService;
 import eu.siacs.conversations.utils.MimeUtils;
+import eu.siacs.conversations.utils.SerialSingleThreadExecutor;
 
+/**
+ * Decrypts queued PGP messages back to back on one worker thread, sharing the bound OpenPGP
+ * service. Decrypted text messages are written to the database in batches with a single UI
+ * update per batch; messages of the conversation on screen refresh the UI right away. Messages of
+ * the conversation on screen and freshly loaded history are moved to the front of the queue.
+ */
 public class PgpDecryptionService {
 
     protected final ArrayDeque<Message> messages = new ArrayDeque<>();
+    protected final HashSet<Message> queued = new HashSet<>();
     protected final HashSet<Message> pendingNotifications = new HashSet<>();
     private final XmppConnectionService mXmppConnectionService;
+    private final SerialSingleThreadExecutor executor = new SerialSingleThreadExecutor(PgpDecryptionService.class.getSimpleName());
     private OpenPgpApi openPgpApi = null;
     private Message currentMessage;
     private PendingIntent pendingIntent;
@@ -43,7 +55,7 @@ public class PgpDecryptionService {
     }
 
     public synchronized boolean decrypt(final Message message, boolean notify) {
-        messages.add(message);
+        enqueue(message, false);
         if (notify && pendingIntent == null) {
             pendingNotifications.add(message);
             continueDecryption();
@@ -54,22 +66,62 @@ public class PgpDecryptionService {
         }
     }
 
+    /**
+     * queues messages that are being loaded into a conversation. They are most likely about to
+     * be shown and go in front of the queue, the newest message first.
+     */
     public synchronized void decrypt(final List<Message> list) {
         for (Message message : list) {
             if (message.getEncryption() == Message.ENCRYPTION_PGP) {
-                messages.add(message);
+                enqueue(message, true);
             }
         }
         continueDecryption();
     }
 
+    /**
+     * moves the queued messages of the given conversation, newest first, in front of the queue
+     */
+    public synchronized void prioritize(final Conversation conversation) {
+        final ArrayList<Message> prioritized = new ArrayList<>();
+        for (final Iterator<Message> iterator = messages.iterator(); iterator.hasNext(); ) {
+            final Message message = iterator.next();
+            if (message.getConversation() == conversation) {
+                prioritized.add(message);
+                iterator.remove();
+            }
+        }
+        for (final Message message : prioritized) {
+            messages.addFirst(message);
+        }
+    }
+
+    private void enqueue(final Message message, final boolean first) {
+        if (queued.add(message)) {
+            if (first) {
+                messages.addFirst(message);
+            } else {
+                messages.addLast(message);
+            }
+        } else if (first) {
+            messages.remove(message);
+            messages.addFirst(message);
+        }
+    }
+
+    public synchronized int getQueueSize() {
+        return messages.size();
+    }
+
     public synchronized void discard(List<Message> discards) {
         this.messages.removeAll(discards);
+        this.queued.removeAll(discards);
         this.pendingNotifications.removeAll(discards);
     }
 
     public synchronized void discard(Message message) {
         this.messages.remove(message);
+        this.queued.remove(message);
         this.pendingNotifications.remove(message);
     }
 
@@ -97,14 +149,64 @@ public class PgpDecryptionService {
     protected synchronized void decryptNext() {
         if (pendingIntent == null
                 && getOpenPgpApi() != null
-                && (currentMessage = messages.poll()) != null) {
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    executeApi(currentMessage);
-                    decryptNext();
+                && (currentMessage = poll()) != null) {
+            executor.execute(this::decryptQueued);
+        }
+    }
+
+    private Message poll() {
+        final Message message = messages.poll();
+        if (message != null) {
+            queued.remove(message);
+        }
+        return message;
+    }
+
+    private synchronized Message next(final Message previous) {
+        if (currentMessage != previous) {
+            //decryption has been interrupted by a pending intent
+            return null;
+        }
+        if (pendingIntent == null) {
+            currentMessage = poll();
+        } else {
+            currentMessage = null;
+        }
+        return currentMessage;
+    }
+
+    private void decryptQueued() {
+        final long start = SystemClock.elapsedRealtime();
+        final ArrayList<Message> decrypted = new ArrayList<>();
+        int count = 0;
+        Message message;
+        synchronized (this) {
+            message = currentMessage;
+        }
+        while (message != null) {
+            if (message.getEncryption() == Message.ENCRYPTION_PGP) {
+                ++count;
+                if (executeApi(message)) {
+                    decrypted.add(message);
+                    //the message is already decrypted in memory; only its database write waits for the batch
+                    if (mXmppConnectionService.getNotificationService().isConversationOpen(message.getConversation())) {
+                        mXmppConnectionService.updateConversationUi();
+                    }
                 }
-            }).start();
+                if (decrypted.size() >= Config.PGP_DECRYPTION_BATCH_SIZE) {
+                    mXmppConnectionService.updateMessages(decrypted);
+                    decrypted.clear();
+                }
+            } else {
+                notifyIfPending(message);
+            }
+            message = next(message);
+        }
+        if (decrypted.size() > 0) {
+            mXmppConnectionService.updateMessages(decrypted);
+        }
+        if (count > 1) {
+            Log.d(Config.LOGTAG, "decrypted " + count + " pgp messages in " + (SystemClock.elapsedRealtime() - start) + "ms. " + getQueueSize() + " remaining");
         }
     }
 
@@ -134,8 +236,13 @@ public class PgpDecryptionService {
         return this.openPgpApi;
     }
 
-    private void executeApi(Message message) {
+    /**
+     * @return true if a text message has been decrypted. Those are left to the caller to be
+     * written to the database as part of the next batch.
+     */
+    private boolean executeApi(Message message) {
         boolean skipNotificationPush = false;
+        boolean decrypted = false;
         synchronized (message) {
             Intent params = userInteractionResult != null ? userInteractionResult : new Intent();
             params.setAction(OpenPgpApi.ACTION_DECRYPT_VERIFY);
@@ -159,15 +266,16 @@ public class PgpDecryptionService {
                                     && manager.getAutoAcceptFileSize() > 0) {
                                 manager.createNewDownloadConnection(message);
                             }
+                            decrypted = true;
                         } catch (IOException e) {
                             message.setEncryption(Message.ENCRYPTION_DECRYPTION_FAILED);
+                            mXmppConnectionService.updateMessage(message);
                         }
-                        mXmppConnectionService.updateMessage(message);
                         break;
                     case OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED:
                         synchronized (PgpDecryptionService.this) {
                             PendingIntent pendingIntent = result.getParcelableExtra(OpenPgpApi.RESULT_INTENT);
-                            messages.addFirst(message);
+                            enqueue(message, true);
                             currentMessage = null;
                             storePendingIntent(pendingIntent);
                         }
@@ -222,7 +330,7 @@ public class PgpDecryptionService {
                         case OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED:
                             synchronized (PgpDecryptionService.this) {
                                 PendingIntent pendingIntent = result.getParcelableExtra(OpenPgpApi.RESULT_INTENT);
-                                messages.addFirst(message);
+                                enqueue(message, true);
                                 currentMessage = null;
                                 storePendingIntent(pendingIntent);
                             }
@@ -241,6 +349,7 @@ public class PgpDecryptionService {
         if (!skipNotificationPush) {
             notifyIfPending(message);
         }
+        return decrypted;
     }
 
     private synchronized void notifyIfPending(Message message) {
@@ -1,8 +1,10 @@
 package eu.siacs.conversations.crypto.axolotl;
 
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.security.KeyChain;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
@@ -26,6 +28,7 @@ import java.security.PrivateKey;
 import java.security.Security;
 import java.security.Signature;
 import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -33,10 +36,14 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import eu.siacs.conversations.Config;
@@ -68,6 +75,8 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
     public static final String LOGPREFIX = "AxolotlService";
 
     private static final int NUM_KEYS_TO_PUBLISH = 100;
+    private static final int NUM_BUNDLES_TO_CACHE = 100;
+    private static final ScheduledExecutorService BUNDLE_FETCH_TIMER = Executors.newSingleThreadScheduledExecutor();
     private static final int publishTriesThreshold = 3;
 
     private final Account account;
@@ -80,13 +89,16 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
     private final Map<Jid, Boolean> fetchDeviceListStatus = new HashMap<>();
     private final HashMap<Jid, List<OnDeviceIdsFetched>> fetchDeviceIdsMap = new HashMap<>();
     private final SerialSingleThreadExecutor executor;
+    private final ArrayDeque<Pair<SignalProtocolAddress, OnSessionBuildFromPep>> queuedBundleFetches = new ArrayDeque<>();
+    private int runningBundleFetches = 0;
+    private final LruCache<SignalProtocolAddress, CachedBundle> bundleCache = new LruCache<>(NUM_BUNDLES_TO_CACHE);
     private final Set<SignalProtocolAddress> healingAttempts = new HashSet<>();
     private final HashSet<Integer> cleanedOwnDeviceIds = new HashSet<>();
     private final Set<Integer> PREVIOUSLY_REMOVED_FROM_ANNOUNCEMENT = new HashSet<>();
     private int numPublishTriesOnEmptyPep = 0;
     private boolean pepBroken = false;
     private int lastDeviceListNotificationHash = 0;
-    private Set<XmppAxolotlSession> postponedSessions = new HashSet<>(); //sessions stored here will receive after mam catchup treatment
+    private final Set<XmppAxolotlSession> postponedSessions = new HashSet<>(); //sessions stored here will receive after mam catchup treatment
     private Set<SignalProtocolAddress> postponedHealing = new HashSet<>(); //addresses stored here will need a healing notification after mam catchup
     private AtomicBoolean changeAccessMode = new AtomicBoolean(false);
 
@@ -204,6 +216,27 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
         return false;
     }
 
+    /**
+     * @return true if every target has at least one trusted session. Messages can be sent
+     * without waiting for the remaining bundle fetches; devices that finish later are included
+     * from the next message on.
+     */
+    public boolean hasEnoughSessions(final List<Jid> jids) {
+        for (final Jid jid : jids) {
+            boolean trusted = false;
+            for (final XmppAxolotlSession session : this.sessions.getAll(getAddressForJid(jid).getName()).values()) {
+                if (session.getTrust().isTrustedAndActive()) {
+                    trusted = true;
+                    break;
+                }
+            }
+            if (!trusted) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private SignalProtocolAddress getAddressForJid(Jid jid) {
         return new SignalProtocolAddress(jid.toString(), 0);
     }
@@ -257,6 +290,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
     public void regenerateKeys(boolean wipeOther) {
         axolotlStore.regenerate();
         sessions.clear();
+        bundleCache.evictAll();
         fetchStatusMap.clear();
         fetchDeviceIdsMap.clear();
         fetchDeviceListStatus.clear();
@@ -265,6 +299,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 
     public void destroy() {
         Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": destroying old axolotl service. no longer in use");
+        axolotlStore.discardSessions();
         mXmppConnectionService.databaseBackend.wipeAxolotlDb(account);
     }
 
@@ -901,93 +936,197 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
         if (address.equals(getOwnAxolotlAddress())) {
             throw new AssertionError("We should NEVER build a session with ourselves. What happened here?!");
         }
+        final Pair<PreKeyBundle, PreKeyBundle> cached = takeCachedBundle(address);
+        if (cached != null) {
+            Log.d(Config.LOGTAG, AxolotlService.getLogprefix(account) + "using cached bundle for " + address);
+            buildSessionFromBundle(address, cached.first, cached.second, callback);
+            return;
+        }
+        synchronized (queuedBundleFetches) {
+            queuedBundleFetches.add(new Pair<>(address, callback));
+        }
+        fetchQueuedBundles();
+    }
+
+    /**
+     * starts queued bundle fetches until {@link Config#OMEMO_BUNDLE_FETCH_WINDOW} are in flight
+     */
+    private void fetchQueuedBundles() {
+        final List<Pair<SignalProtocolAddress, OnSessionBuildFromPep>> next = new ArrayList<>();
+        synchronized (queuedBundleFetches) {
+            while (runningBundleFetches < Config.OMEMO_BUNDLE_FETCH_WINDOW && !queuedBundleFetches.isEmpty()) {
+                next.add(queuedBundleFetches.poll());
+                ++runningBundleFetches;
+            }
+        }
+        for (final Pair<SignalProtocolAddress, OnSessionBuildFromPep> fetch : next) {
+            fetchBundle(fetch.first, fetch.second);
+        }
+    }
 
+    private void fetchBundle(final SignalProtocolAddress address, final OnSessionBuildFromPep callback) {
         final Jid jid = Jid.of(address.getName());
         final boolean oneOfOurs = jid.asBareJid().equals(account.getJid().asBareJid());
-        IqPacket bundlesPacket = mXmppConnectionService.getIqGenerator().retrieveBundlesForDevice(jid, address.getDeviceId());
-        mXmppConnectionService.sendIqPacket(account, bundlesPacket, (account, packet) -> {
-            if (packet.getType() == IqPacket.TYPE.TIMEOUT) {
-                fetchStatusMap.put(address, FetchStatus.TIMEOUT);
-            } else if (packet.getType() == IqPacket.TYPE.RESULT) {
-                Log.d(Config.LOGTAG, AxolotlService.getLogprefix(account) + "Received preKey IQ packet, processing...");
-                final IqParser parser = mXmppConnectionService.getIqParser();
-                final List<PreKeyBundle> preKeyBundleList = parser.preKeys(packet);
-                final PreKeyBundle bundle = parser.bundle(packet);
-                if (preKeyBundleList.isEmpty() || bundle == null) {
-                    Log.e(Config.LOGTAG, AxolotlService.getLogprefix(account) + "preKey IQ packet invalid: " + packet);
-                    fetchStatusMap.put(address, FetchStatus.ERROR);
-                    finishBuildingSessionsFromPEP(address);
-                    if (callback != null) {
-                        callback.onSessionBuildFailed();
-                    }
-                    return;
+        final IqPacket bundlesPacket = mXmppConnectionService.getIqGenerator().retrieveBundlesForDevice(jid, address.getDeviceId());
+        final AtomicBoolean answered = new AtomicBoolean(false);
+        final OnIqPacketReceived onResponse = (account, packet) -> {
+            //whichever comes first, the response or the timeout, frees the slot
+            if (!answered.compareAndSet(false, true)) {
+                return;
+            }
+            synchronized (queuedBundleFetches) {
+                --runningBundleFetches;
+            }
+            fetchQueuedBundles();
+            onBundleReceived(address, oneOfOurs, packet, callback);
+        };
+        BUNDLE_FETCH_TIMER.schedule(() -> {
+            if (!answered.get()) {
+                Log.d(Config.LOGTAG, AxolotlService.getLogprefix(account) + "timeout fetching bundle for " + address);
+                onResponse.onIqPacketReceived(account, new IqPacket(IqPacket.TYPE.TIMEOUT));
+            }
+        }, Config.OMEMO_BUNDLE_FETCH_TIMEOUT, TimeUnit.SECONDS);
+        mXmppConnectionService.sendIqPacket(account, bundlesPacket, onResponse);
+    }
+
+    private void onBundleReceived(final SignalProtocolAddress address, final boolean oneOfOurs, final IqPacket packet, final OnSessionBuildFromPep callback) {
+        if (packet.getType() == IqPacket.TYPE.TIMEOUT) {
+            fetchStatusMap.put(address, FetchStatus.TIMEOUT);
+            finishBuildingSessionsFromPEP(address);
+            if (callback != null) {
+                callback.onSessionBuildFailed();
+            }
+        } else if (packet.getType() == IqPacket.TYPE.RESULT) {
+            Log.d(Config.LOGTAG, AxolotlService.getLogprefix(account) + "Received preKey IQ packet, processing...");
+            final IqParser parser = mXmppConnectionService.getIqParser();
+            final List<PreKeyBundle> preKeyBundleList = parser.preKeys(packet);
+            final PreKeyBundle bundle = parser.bundle(packet);
+            if (preKeyBundleList.isEmpty() || bundle == null) {
+                Log.e(Config.LOGTAG, AxolotlService.getLogprefix(account) + "preKey IQ packet invalid: " + packet);
+                fetchStatusMap.put(address, FetchStatus.ERROR);
+                finishBuildingSessionsFromPEP(address);
+                if (callback != null) {
+                    callback.onSessionBuildFailed();
                 }
-                Random random = new Random();
-                final PreKeyBundle preKey = preKeyBundleList.get(random.nextInt(preKeyBundleList.size()));
-                if (preKey == null) {
-                    //should never happen
-                    fetchStatusMap.put(address, FetchStatus.ERROR);
-                    finishBuildingSessionsFromPEP(address);
-                    if (callback != null) {
-                        callback.onSessionBuildFailed();
-                    }
-                    return;
+                return;
+            }
+            Random random = new Random();
+            final PreKeyBundle preKey = preKeyBundleList.remove(random.nextInt(preKeyBundleList.size()));
+            if (preKey == null) {
+                //should never happen
+                fetchStatusMap.put(address, FetchStatus.ERROR);
+                finishBuildingSessionsFromPEP(address);
+                if (callback != null) {
+                    callback.onSessionBuildFailed();
                 }
+                return;
+            }
+            if (!preKeyBundleList.isEmpty()) {
+                bundleCache.put(address, new CachedBundle(bundle, preKeyBundleList));
+            }
+            buildSessionFromBundle(address, bundle, preKey, callback);
+        } else {
+            fetchStatusMap.put(address, FetchStatus.ERROR);
+            Element error = packet.findChild("error");
+            boolean itemNotFound = error != null && error.hasChild("item-not-found");
+            Log.d(Config.LOGTAG, getLogprefix(account) + "Error received while building session:" + packet.findChild("error"));
+            finishBuildingSessionsFromPEP(address);
+            if (oneOfOurs && itemNotFound && cleanedOwnDeviceIds.add(address.getDeviceId())) {
+                removeFromDeviceAnnouncement(address.getDeviceId());
+            }
+            if (callback != null) {
+                callback.onSessionBuildFailed();
+            }
+        }
+    }
 
-                final PreKeyBundle preKeyBundle = new PreKeyBundle(0, address.getDeviceId(),
-                        preKey.getPreKeyId(), preKey.getPreKey(),
-                        bundle.getSignedPreKeyId(), bundle.getSignedPreKey(),
-                        bundle.getSignedPreKeySignature(), bundle.getIdentityKey());
+    /**
+     * @return the bundle and one of its pre keys that has not been used for a session yet or
+     * null if there is no cached bundle for the address or it has expired
+     */
+    private Pair<PreKeyBundle, PreKeyBundle> takeCachedBundle(final SignalProtocolAddress address) {
+        synchronized (bundleCache) {
+            final CachedBundle cached = bundleCache.get(address);
+            if (cached == null) {
+                return null;
+            }
+            //healing a broken session or retrying a failed one needs a freshly fetched bundle
+            if (healingAttempts.contains(address) || fetchStatusMap.get(address) == FetchStatus.ERROR) {
+                bundleCache.remove(address);
+                return null;
+            }
+            if (SystemClock.elapsedRealtime() - cached.fetched > Config.OMEMO_BUNDLE_CACHE_EXPIRY || cached.preKeys.isEmpty()) {
+                bundleCache.remove(address);
+                return null;
+            }
+            final PreKeyBundle preKey = cached.preKeys.remove(new Random().nextInt(cached.preKeys.size()));
+            if (cached.preKeys.isEmpty()) {
+                bundleCache.remove(address);
+            }
+            return new Pair<>(cached.bundle, preKey);
+        }
+    }
 
-                try {
-                    SessionBuilder builder = new SessionBuilder(axolotlStore, address);
-                    builder.process(preKeyBundle);
-                    XmppAxolotlSession session = new XmppAxolotlSession(account, axolotlStore, address, bundle.getIdentityKey());
-                    sessions.put(address, session);
-                    if (Config.X509_VERIFICATION) {
-                        verifySessionWithPEP(session); //TODO; maybe inject callback in here too
-                    } else {
-                        FingerprintStatus status = getFingerprintTrust(CryptoHelper.bytesToHex(bundle.getIdentityKey().getPublicKey().serialize()));
-                        FetchStatus fetchStatus;
-                        if (status != null && status.isVerified()) {
-                            fetchStatus = FetchStatus.SUCCESS_VERIFIED;
-                        } else if (status != null && status.isTrusted()) {
-                            fetchStatus = FetchStatus.SUCCESS_TRUSTED;
-                        } else {
-                            fetchStatus = FetchStatus.SUCCESS;
-                        }
-                        fetchStatusMap.put(address, fetchStatus);
-                        finishBuildingSessionsFromPEP(address);
-                        if (callback != null) {
-                            callback.onSessionBuildSuccessful();
-                        }
-                    }
-                } catch (UntrustedIdentityException | InvalidKeyException e) {
-                    Log.e(Config.LOGTAG, AxolotlService.getLogprefix(account) + "Error building session for " + address + ": "
-                            + e.getClass().getName() + ", " + e.getMessage());
-                    fetchStatusMap.put(address, FetchStatus.ERROR);
-                    finishBuildingSessionsFromPEP(address);
-                    if (oneOfOurs && cleanedOwnDeviceIds.add(address.getDeviceId())) {
-                        removeFromDeviceAnnouncement(address.getDeviceId());
-                    }
-                    if (callback != null) {
-                        callback.onSessionBuildFailed();
-                    }
+    /**
+     * drops the cached bundles of all devices of the given contact. Called when the contact
+     * published a new device list or a new bundle; the pre keys we hold on to might be gone.
+     */
+    public void invalidateCachedBundles(final Jid jid) {
+        final String name = jid.asBareJid().toString();
+        synchronized (bundleCache) {
+            for (final SignalProtocolAddress address : bundleCache.snapshot().keySet()) {
+                if (address.getName().equals(name)) {
+                    bundleCache.remove(address);
                 }
+            }
+        }
+    }
+
+    private void buildSessionFromBundle(final SignalProtocolAddress address, final PreKeyBundle bundle, final PreKeyBundle preKey, final OnSessionBuildFromPep callback) {
+        final boolean oneOfOurs = Jid.of(address.getName()).asBareJid().equals(account.getJid().asBareJid());
+        final PreKeyBundle preKeyBundle = new PreKeyBundle(0, address.getDeviceId(),
+                preKey.getPreKeyId(), preKey.getPreKey(),
+                bundle.getSignedPreKeyId(), bundle.getSignedPreKey(),
+                bundle.getSignedPreKeySignature(), bundle.getIdentityKey());
+
+        try {
+            SessionBuilder builder = new SessionBuilder(axolotlStore, address);
+            builder.process(preKeyBundle);
+            XmppAxolotlSession session = new XmppAxolotlSession(account, axolotlStore, address, bundle.getIdentityKey());
+            sessions.put(address, session);
+            if (Config.X509_VERIFICATION) {
+                verifySessionWithPEP(session); //TODO; maybe inject callback in here too
             } else {
-                fetchStatusMap.put(address, FetchStatus.ERROR);
-                Element error = packet.findChild("error");
-                boolean itemNotFound = error != null && error.hasChild("item-not-found");
-                Log.d(Config.LOGTAG, getLogprefix(account) + "Error received while building session:" + packet.findChild("error"));
-                finishBuildingSessionsFromPEP(address);
-                if (oneOfOurs && itemNotFound && cleanedOwnDeviceIds.add(address.getDeviceId())) {
-                    removeFromDeviceAnnouncement(address.getDeviceId());
+                FingerprintStatus status = getFingerprintTrust(CryptoHelper.bytesToHex(bundle.getIdentityKey().getPublicKey().serialize()));
+                FetchStatus fetchStatus;
+                if (status != null && status.isVerified()) {
+                    fetchStatus = FetchStatus.SUCCESS_VERIFIED;
+                } else if (status != null && status.isTrusted()) {
+                    fetchStatus = FetchStatus.SUCCESS_TRUSTED;
+                } else {
+                    fetchStatus = FetchStatus.SUCCESS;
                 }
+                fetchStatusMap.put(address, fetchStatus);
+                finishBuildingSessionsFromPEP(address);
                 if (callback != null) {
-                    callback.onSessionBuildFailed();
+                    callback.onSessionBuildSuccessful();
                 }
             }
-        });
+        } catch (UntrustedIdentityException | InvalidKeyException e) {
+            Log.e(Config.LOGTAG, AxolotlService.getLogprefix(account) + "Error building session for " + address + ": "
+                    + e.getClass().getName() + ", " + e.getMessage());
+            synchronized (bundleCache) {
+                bundleCache.remove(address);
+            }
+            fetchStatusMap.put(address, FetchStatus.ERROR);
+            finishBuildingSessionsFromPEP(address);
+            if (oneOfOurs && cleanedOwnDeviceIds.add(address.getDeviceId())) {
+                removeFromDeviceAnnouncement(address.getDeviceId());
+            }
+            if (callback != null) {
+                callback.onSessionBuildFailed();
+            }
+        }
     }
 
     private void removeFromDeviceAnnouncement(Integer id) {
@@ -1129,14 +1268,10 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
         if (remoteSessions.isEmpty() && !acceptEmpty) {
             return false;
         }
-        for (XmppAxolotlSession session : remoteSessions) {
-            axolotlMessage.addDevice(session);
-        }
-        for (XmppAxolotlSession session : ownSessions) {
-            axolotlMessage.addDevice(session);
-        }
-
-        return true;
+        final LinkedHashSet<XmppAxolotlSession> sessions = new LinkedHashSet<>(sortByAddress(remoteSessions));
+        sessions.addAll(ownSessions);
+        axolotlMessage.addDevices(sessions);
+        return axolotlStore.flushSessions();
     }
 
     //this is being used for private muc messages only
@@ -1144,16 +1279,22 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
         if (jid == null) {
             return false;
         }
-        HashSet<XmppAxolotlSession> sessions = new HashSet<>();
-        sessions.addAll(this.sessions.getAll(getAddressForJid(jid).getName()).values());
+        final LinkedHashSet<XmppAxolotlSession> sessions = new LinkedHashSet<>(sortByAddress(this.sessions.getAll(getAddressForJid(jid).getName()).values()));
         if (sessions.isEmpty()) {
             return false;
         }
         sessions.addAll(findOwnSessions());
-        for (XmppAxolotlSession session : sessions) {
-            axolotlMessage.addDevice(session);
-        }
-        return true;
+        axolotlMessage.addDevices(sessions);
+        return axolotlStore.flushSessions();
+    }
+
+    private static List<XmppAxolotlSession> sortByAddress(final Collection<XmppAxolotlSession> sessions) {
+        final ArrayList<XmppAxolotlSession> sorted = new ArrayList<>(sessions);
+        Collections.sort(sorted, (a, b) -> {
+            final int name = a.getRemoteAddress().getName().compareTo(b.getRemoteAddress().getName());
+            return name != 0 ? name : Integer.compare(a.getRemoteAddress().getDeviceId(), b.getRemoteAddress().getDeviceId());
+        });
+        return sorted;
     }
 
     @Nullable
@@ -1311,7 +1452,9 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 
     private void postPreKeyMessageHandling(final XmppAxolotlSession session, final boolean postpone) {
         if (postpone) {
-            postponedSessions.add(session);
+            synchronized (postponedSessions) {
+                postponedSessions.add(session);
+            }
         } else {
             if (axolotlStore.flushPreKeys()) {
                 publishBundlesIfNeeded(false, false);
@@ -1325,18 +1468,20 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
     }
 
     public void processPostponed() {
-        if (postponedSessions.size() > 0) {
+        final List<XmppAxolotlSession> sessions;
+        synchronized (postponedSessions) {
+            sessions = new ArrayList<>(postponedSessions);
+            postponedSessions.clear();
+        }
+        if (sessions.size() > 0) {
             if (axolotlStore.flushPreKeys()) {
                 publishBundlesIfNeeded(false, false);
             }
         }
-        final Iterator<XmppAxolotlSession> iterator = postponedSessions.iterator();
-        while (iterator.hasNext()) {
-            final XmppAxolotlSession session = iterator.next();
+        for (final XmppAxolotlSession session : sessions) {
             if (trustedOrPreviouslyResponded(session)) {
                 completeSession(session);
             }
-            iterator.remove();
         }
         final Iterator<SignalProtocolAddress> postponedHealingAttemptsIterator = postponedHealing.iterator();
         while (postponedHealingAttemptsIterator.hasNext()) {
@@ -1365,6 +1510,9 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
     private void completeSession(XmppAxolotlSession session) {
         final XmppAxolotlMessage axolotlMessage = new XmppAxolotlMessage(account.getJid().asBareJid(), getOwnDeviceId());
         axolotlMessage.addDevice(session, true);
+        if (!axolotlStore.flushSessions()) {
+            return;
+        }
         try {
             final Jid jid = Jid.of(session.getRemoteAddress().getName());
             MessagePacket packet = mXmppConnectionService.getMessageGenerator().generateKeyTransportMessage(jid, axolotlMessage);
@@ -1548,6 +1696,17 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
         }
     }
 
+    private static class CachedBundle {
+        private final PreKeyBundle bundle;
+        private final List<PreKeyBundle> preKeys;
+        private final long fetched = SystemClock.elapsedRealtime();
+
+        private CachedBundle(final PreKeyBundle bundle, final List<PreKeyBundle> preKeys) {
+            this.bundle = bundle;
+            this.preKeys = preKeys;
+        }
+    }
+
     private static class FetchStatusMap extends AxolotlAddressMap<FetchStatus> {
 
         public void clearErrorFor(Jid jid) {
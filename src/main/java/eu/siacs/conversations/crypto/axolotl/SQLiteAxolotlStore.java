@@ -15,15 +15,20 @@ import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 import org.whispersystems.libsignal.util.KeyHelper;
 
+import java.io.IOException;
 import java.security.cert.X509Certificate;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.entities.Account;
 import eu.siacs.conversations.services.XmppConnectionService;
 import eu.siacs.conversations.utils.CryptoHelper;
+import eu.siacs.conversations.utils.SerialSingleThreadExecutor;
 
 public class SQLiteAxolotlStore implements SignalProtocolStore {
 
@@ -48,6 +53,10 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
     public static final String JSONKEY_CURRENT_PREKEY_ID = "axolotl_cur_prekey_id";
 
     private static final int NUM_TRUSTS_TO_CACHE = 100;
+    private static final int NUM_SESSIONS_TO_CACHE = 250;
+    private static final byte[] NO_SESSION = new byte[0];
+
+    private static final SerialSingleThreadExecutor SESSION_WRITER = new SerialSingleThreadExecutor("AxolotlSessionWriter");
 
     private final Account account;
     private final XmppConnectionService mXmppConnectionService;
@@ -58,6 +67,12 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 
     private final HashSet<Integer> preKeysMarkedForRemoval = new HashSet<>();
 
+    private final LruCache<SignalProtocolAddress, byte[]> sessionCache = new LruCache<>(NUM_SESSIONS_TO_CACHE);
+    private final HashMap<SignalProtocolAddress, byte[]> pendingSessions = new HashMap<>();
+    private final Object sessionFlushLock = new Object();
+    private boolean sessionFlushScheduled = false;
+    private int sessionCacheGeneration = 0;
+
     private final LruCache<String, FingerprintStatus> trustCache =
             new LruCache<String, FingerprintStatus>(NUM_TRUSTS_TO_CACHE) {
                 @Override
@@ -143,6 +158,7 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
     }
 
     public void regenerate() {
+        discardSessions();
         mXmppConnectionService.databaseBackend.wipeAxolotlDb(account);
         trustCache.evictAll();
         account.setKey(JSONKEY_CURRENT_PREKEY_ID, Integer.toString(0));
@@ -270,8 +286,42 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
      */
     @Override
     public SessionRecord loadSession(SignalProtocolAddress address) {
-        SessionRecord session = mXmppConnectionService.databaseBackend.loadSession(this.account, address);
-        return (session != null) ? session : new SessionRecord();
+        final byte[] serialized = loadSerializedSession(address);
+        if (serialized == null) {
+            return new SessionRecord();
+        }
+        try {
+            return new SessionRecord(serialized);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * the serialized form is what gets cached because every load has to return a fresh copy
+     * anyway. Parsing it is what the copy would cost; the query and the Base64 decoding are saved.
+     */
+    private byte[] loadSerializedSession(SignalProtocolAddress address) {
+        final int generation;
+        synchronized (pendingSessions) {
+            final byte[] pending = pendingSessions.get(address);
+            if (pending != null) {
+                return pending;
+            }
+            final byte[] cached = sessionCache.get(address);
+            if (cached != null) {
+                return cached == NO_SESSION ? null : cached;
+            }
+            generation = sessionCacheGeneration;
+        }
+        final byte[] serialized = mXmppConnectionService.databaseBackend.loadSerializedSession(account, address);
+        synchronized (pendingSessions) {
+            //a store or delete that happened while we were querying takes precedence
+            if (generation == sessionCacheGeneration && sessionCache.get(address) == null) {
+                sessionCache.put(address, serialized == null ? NO_SESSION : serialized);
+            }
+        }
+        return serialized;
     }
 
     /**
@@ -282,24 +332,80 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
      */
     @Override
     public List<Integer> getSubDeviceSessions(String name) {
+        flushSessions();
         return mXmppConnectionService.databaseBackend.getSubDeviceSessions(account,
                 new SignalProtocolAddress(name, 0));
     }
 
 
     public List<String> getKnownAddresses() {
+        flushSessions();
         return mXmppConnectionService.databaseBackend.getKnownSignalAddresses(account);
     }
 
     /**
      * Commit to storage the {@link SessionRecord} for a given recipientId + deviceId tuple.
+     * <p/>
+     * The record is only written to the cache and marked dirty. Dirty records are written to the
+     * database in one transaction on the session writer, or on the calling thread by
+     * {@link #flushSessions()} which has to be called before anything encrypted with the
+     * new state leaves the device.
      *
      * @param address the address of the remote client.
      * @param record  the current SessionRecord for the remote client.
      */
     @Override
     public void storeSession(SignalProtocolAddress address, SessionRecord record) {
-        mXmppConnectionService.databaseBackend.storeSession(account, address, record);
+        final byte[] serialized = record.serialize();
+        final boolean schedule;
+        synchronized (pendingSessions) {
+            pendingSessions.put(address, serialized);
+            sessionCache.put(address, serialized);
+            ++sessionCacheGeneration;
+            schedule = !sessionFlushScheduled;
+            sessionFlushScheduled = true;
+        }
+        if (schedule) {
+            SESSION_WRITER.execute(() -> {
+                synchronized (pendingSessions) {
+                    sessionFlushScheduled = false;
+                }
+                flushSessions();
+            });
+        }
+    }
+
+    /**
+     * writes all dirty session records to the database. Returns once they are committed; dirty
+     * records are only forgotten after that, so a failed or interrupted write leaves them to
+     * the next flush.
+     *
+     * @return false if the records could not be written
+     */
+    public boolean flushSessions() {
+        synchronized (sessionFlushLock) {
+            final Map<SignalProtocolAddress, byte[]> batch;
+            synchronized (pendingSessions) {
+                if (pendingSessions.isEmpty()) {
+                    return true;
+                }
+                batch = new HashMap<>(pendingSessions);
+            }
+            final boolean success = mXmppConnectionService.databaseBackend.storeSessions(account, batch);
+            if (!success) {
+                Log.e(Config.LOGTAG, AxolotlService.getLogprefix(account) + "unable to write " + batch.size() + " session(s)");
+                return false;
+            }
+            synchronized (pendingSessions) {
+                for (final Map.Entry<SignalProtocolAddress, byte[]> entry : batch.entrySet()) {
+                    //records stored again in the meantime are still dirty
+                    if (pendingSessions.get(entry.getKey()) == entry.getValue()) {
+                        pendingSessions.remove(entry.getKey());
+                    }
+                }
+            }
+            return true;
+        }
     }
 
     /**
@@ -310,7 +416,7 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
      */
     @Override
     public boolean containsSession(SignalProtocolAddress address) {
-        return mXmppConnectionService.databaseBackend.containsSession(account, address);
+        return loadSerializedSession(address) != null;
     }
 
     /**
@@ -320,7 +426,14 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
      */
     @Override
     public void deleteSession(SignalProtocolAddress address) {
-        mXmppConnectionService.databaseBackend.deleteSession(account, address);
+        synchronized (sessionFlushLock) {
+            synchronized (pendingSessions) {
+                pendingSessions.remove(address);
+                sessionCache.put(address, NO_SESSION);
+                ++sessionCacheGeneration;
+            }
+            mXmppConnectionService.databaseBackend.deleteSession(account, address);
+        }
     }
 
     /**
@@ -331,8 +444,34 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
     @Override
     public void deleteAllSessions(String name) {
         SignalProtocolAddress address = new SignalProtocolAddress(name, 0);
-        mXmppConnectionService.databaseBackend.deleteAllSessions(account,
-                address);
+        synchronized (sessionFlushLock) {
+            synchronized (pendingSessions) {
+                final Iterator<SignalProtocolAddress> iterator = pendingSessions.keySet().iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().getName().equals(name)) {
+                        iterator.remove();
+                    }
+                }
+                sessionCache.evictAll();
+                ++sessionCacheGeneration;
+            }
+            mXmppConnectionService.databaseBackend.deleteAllSessions(account,
+                    address);
+        }
+    }
+
+    /**
+     * forgets cached and dirty session records without writing them. Used when the sessions
+     * in the database are about to be wiped.
+     */
+    public void discardSessions() {
+        synchronized (sessionFlushLock) {
+            synchronized (pendingSessions) {
+                pendingSessions.clear();
+                sessionCache.evictAll();
+                ++sessionCacheGeneration;
+            }
+        }
     }
 
     // --------------------------------------
@@ -398,6 +537,10 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 
     public boolean flushPreKeys() {
         Log.d(Config.LOGTAG, "flushing pre keys");
+        if (!flushSessions()) {
+            //the sessions built from these pre keys are not safe yet. try again with the next message
+            return false;
+        }
         int count = 0;
         synchronized (preKeysMarkedForRemoval) {
             for (Integer preKeyId : preKeysMarkedForRemoval) {
@@ -9,6 +9,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import javax.crypto.BadPaddingException;
@@ -181,17 +182,27 @@ public class XmppAxolotlMessage {
     }
 
     void addDevice(XmppAxolotlSession session, boolean ignoreSessionTrust) {
-        XmppAxolotlSession.AxolotlKey key;
-        if (authtagPlusInnerKey != null) {
-            key = session.processSending(authtagPlusInnerKey, ignoreSessionTrust);
-        } else {
-            key = session.processSending(innerKey, ignoreSessionTrust);
-        }
+        XmppAxolotlSession.AxolotlKey key = session.processSending(getKeyMaterial(), ignoreSessionTrust);
         if (key != null) {
             keys.add(key);
         }
     }
 
+    /**
+     * encrypts the key for all sessions, one after another. libsignal runs every ratchet step
+     * under its global session lock, so there is nothing to be gained from doing this in
+     * parallel. The keys are added in the order of the sessions.
+     */
+    void addDevices(final Collection<XmppAxolotlSession> sessions) {
+        for (final XmppAxolotlSession session : sessions) {
+            addDevice(session);
+        }
+    }
+
+    private byte[] getKeyMaterial() {
+        return authtagPlusInnerKey != null ? authtagPlusInnerKey : innerKey;
+    }
+
     public byte[] getInnerKey() {
         return innerKey;
     }
@@ -11,15 +11,14 @@ import com.google.common.collect.Lists;
 
 
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import eu.siacs.conversations.Config;
@@ -66,7 +65,10 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     private static final String ATTRIBUTE_CRYPTO_TARGETS = "crypto_targets";
     private static final String ATTRIBUTE_NEXT_ENCRYPTION = "next_encryption";
     private static final String ATTRIBUTE_CORRECTING_MESSAGE = "correcting_message";
-    protected final ArrayList<Message> messages = new ArrayList<>();
+    private static final int COUNTED_UNREAD = 1;
+    private static final int COUNTED_FAILED_DELIVERY = 1 << 1;
+    private static final int COUNTED_FAILED_UPLOAD = 1 << 2;
+    protected final MessageWindow messages = new MessageWindow();
     public AtomicBoolean messagesLoaded = new AtomicBoolean(true);
     protected Account account = null;
     private String draftMessage;
@@ -77,13 +79,26 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     private int status;
     private long created;
     private int mode;
-    private JSONObject attributes;
+    private final ConversationAttributes attributes;
     private Jid nextCounterpart;
     private transient MucOptions mucOptions = null;
     private boolean messagesLeftOnServer = true;
     private ChatState mOutgoingChatState = Config.DEFAULT_CHAT_STATE;
     private ChatState mIncomingChatState = Config.DEFAULT_CHAT_STATE;
     private String mFirstMamReference = null;
+    private final Object historyLock = new Object();
+    private volatile ConversationSummary summary = null;
+    private volatile boolean countersStale = true;
+    private int unreadCount = 0;
+    private int totalUnreadCount = 0;
+    private int failedDeliveries = 0;
+    private int failedUploads = 0;
+    private Message firstUnreadMessage = null;
+    private final ConcurrentHashMap<String, Message> messagesByUuid = new ConcurrentHashMap<>();
+    private final HashMap<String, List<Message>> messagesByRemoteId = new HashMap<>();
+    private final HashMap<String, List<Message>> messagesByServerMsgId = new HashMap<>();
+    private final HashSet<Jid> counterparts = new HashSet<>();
+    private volatile boolean idIndexStale = true;
 
     public Conversation(final String name, final Account account, final Jid contactJid,
                         final int mode) {
@@ -104,11 +119,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         this.created = created;
         this.status = status;
         this.mode = mode;
-        try {
-            this.attributes = new JSONObject(attributes == null ? "" : attributes);
-        } catch (JSONException e) {
-            this.attributes = new JSONObject();
-        }
+        this.attributes = ConversationAttributes.fromJson(attributes);
     }
 
     public static Conversation fromCursor(Cursor cursor) {
@@ -160,22 +171,18 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public void deleteMessage(Message message) {
         synchronized (this.messages) {
-            this.messages.remove(message);
+            if (this.messages.remove(message)) {
+                unindex(message);
+            }
+            invalidateCounters();
         }
     }
 
     public Message getFirstUnreadMessage() {
-        Message first = null;
         synchronized (this.messages) {
-            for (int i = messages.size() - 1; i >= 0; --i) {
-                if (messages.get(i).isRead()) {
-                    return first;
-                } else {
-                    first = messages.get(i);
-                }
-            }
+            updateCounters();
+            return this.firstUnreadMessage;
         }
-        return first;
     }
 
     public String findMostRecentRemoteDisplayableId() {
@@ -195,15 +202,10 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public int countFailedDeliveries() {
-        int count = 0;
         synchronized (this.messages) {
-            for(final Message message : this.messages) {
-                if (message.getStatus() == Message.STATUS_SEND_FAILED) {
-                    ++count;
-                }
-            }
+            updateCounters();
+            return this.failedDeliveries;
         }
-        return count;
     }
 
     public Message getLastEditableMessage() {
@@ -222,15 +224,12 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
 
     public Message findUnsentMessageWithUuid(String uuid) {
-        synchronized (this.messages) {
-            for (final Message message : this.messages) {
-                final int s = message.getStatus();
-                if ((s == Message.STATUS_UNSEND || s == Message.STATUS_WAITING) && message.getUuid().equals(uuid)) {
-                    return message;
-                }
-            }
+        final Message message = uuid == null ? null : this.messagesByUuid.get(uuid);
+        if (message == null) {
+            return null;
         }
-        return null;
+        final int s = message.getStatus();
+        return s == Message.STATUS_UNSEND || s == Message.STATUS_WAITING ? message : null;
     }
 
     public void findWaitingMessages(OnMessageFound onMessageFound) {
@@ -250,6 +249,10 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     public void findUnreadMessagesAndCalls(OnMessageFound onMessageFound) {
         final ArrayList<Message> results = new ArrayList<>();
         synchronized (this.messages) {
+            updateCounters();
+            if (this.totalUnreadCount == 0) {
+                return;
+            }
             for (final Message message : this.messages) {
                 if (message.isRead()) {
                     continue;
@@ -293,14 +296,11 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public Message findMessageWithFileAndUuid(final String uuid) {
-        synchronized (this.messages) {
-            for (final Message message : this.messages) {
-                if (message.getUuid().equals(uuid)
-                        && message.getEncryption() != Message.ENCRYPTION_PGP
-                        && (message.isFileOrImage() || message.treatAsDownloadable())) {
-                    return message;
-                }
-            }
+        final Message message = uuid == null ? null : this.messagesByUuid.get(uuid);
+        if (message != null
+                && message.getEncryption() != Message.ENCRYPTION_PGP
+                && (message.isFileOrImage() || message.treatAsDownloadable())) {
+            return message;
         }
         return null;
     }
@@ -344,6 +344,11 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     public void clearMessages() {
         synchronized (this.messages) {
             this.messages.clear();
+            this.messagesByUuid.clear();
+            this.idIndexStale = true;
+            //the summary describes the history that is being deleted
+            this.summary = null;
+            invalidateCounters();
         }
     }
 
@@ -383,12 +388,60 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
                 if (pgpDecryptionService != null) {
                     pgpDecryptionService.discard(discards);
                 }
+                for (final Message message : discards) {
+                    unindex(message);
+                }
                 discards.clear();
                 untieMessages();
+                invalidateCounters();
             }
         }
     }
 
+    public void markMessagesViewed(final long from, final long to) {
+        synchronized (this.messages) {
+            this.messages.markViewed(from, to);
+        }
+    }
+
+    /**
+     * drops the oldest pages of the message window that have not been viewed recently. They are
+     * loaded from the database again once the user scrolls back.
+     *
+     * @return the number of messages that have been evicted
+     */
+    public int evictColdPages(final long idleTime) {
+        final List<Message> evicted;
+        synchronized (this.messages) {
+            evicted = this.messages.evictColdPages(Config.MAX_NUM_PAGES, idleTime);
+            if (evicted.isEmpty()) {
+                return 0;
+            }
+            for (final Message message : evicted) {
+                unindex(message);
+            }
+            untieMessages();
+            invalidateCounters();
+        }
+        final PgpDecryptionService pgpDecryptionService = account.getPgpDecryptionService();
+        if (pgpDecryptionService != null) {
+            pgpDecryptionService.discard(evicted);
+        }
+        return evicted.size();
+    }
+
+    public int getMessagePageCount() {
+        synchronized (this.messages) {
+            return this.messages.getPageCount();
+        }
+    }
+
+    public long estimateMessageMemoryUsage() {
+        synchronized (this.messages) {
+            return this.messages.estimateMemoryUsage();
+        }
+    }
+
     public void findUnsentTextMessages(OnMessageFound onMessageFound) {
         final ArrayList<Message> results = new ArrayList<>();
         synchronized (this.messages) {
@@ -404,11 +457,13 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public Message findSentMessageWithUuidOrRemoteId(String id) {
+        final Message byUuid = this.messagesByUuid.get(id);
+        if (byUuid != null) {
+            return byUuid;
+        }
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id.equals(message.getUuid())
-                        || (message.getStatus() >= Message.STATUS_SEND
-                        && id.equals(message.getRemoteMsgId()))) {
+            for (final Message message : candidates(this.messagesByRemoteId, id)) {
+                if (message.getStatus() >= Message.STATUS_SEND && id.equals(message.getRemoteMsgId())) {
                     return message;
                 }
             }
@@ -439,32 +494,31 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public Message findSentMessageWithUuid(String id) {
-        synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id.equals(message.getUuid())) {
-                    return message;
-                }
-            }
-        }
-        return null;
+        return this.messagesByUuid.get(id);
     }
 
     public Message findMessageWithRemoteId(String id, Jid counterpart) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (counterpart.equals(message.getCounterpart())
-                        && (id.equals(message.getRemoteMsgId()) || id.equals(message.getUuid()))) {
+            for (final Message message : candidates(this.messagesByRemoteId, id)) {
+                if (counterpart.equals(message.getCounterpart()) && id.equals(message.getRemoteMsgId())) {
                     return message;
                 }
             }
         }
+        final Message byUuid = this.messagesByUuid.get(id);
+        if (byUuid != null && counterpart.equals(byUuid.getCounterpart())) {
+            return byUuid;
+        }
         return null;
     }
 
     public Message findMessageWithServerMsgId(String id) {
+        if (id == null) {
+            return null;
+        }
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id != null && id.equals(message.getServerMsgId())) {
+            for (final Message message : candidates(this.messagesByServerMsgId, id)) {
+                if (id.equals(message.getServerMsgId())) {
                     return message;
                 }
             }
@@ -474,20 +528,14 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public boolean hasMessageWithCounterpart(Jid counterpart) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (counterpart.equals(message.getCounterpart())) {
-                    return true;
-                }
-            }
+            updateIdIndex();
+            return this.counterparts.contains(counterpart);
         }
-        return false;
     }
 
     public void populateWithMessages(final List<Message> messages) {
-        synchronized (this.messages) {
-            messages.clear();
-            messages.addAll(this.messages);
-        }
+        messages.clear();
+        messages.addAll(this.messages.snapshot());
         for (Iterator<Message> iterator = messages.iterator(); iterator.hasNext(); ) {
             if (iterator.next().wasMergedIntoPrevious()) {
                 iterator.remove();
@@ -516,6 +564,15 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         }
     }
 
+    /**
+     * unlike {@link #countMessages()} this also takes into account history that has not been
+     * restored yet
+     */
+    public boolean hasMessages() {
+        final ConversationSummary summary = this.summary;
+        return (summary != null && summary.getLastMessageUuid() != null) || countMessages() > 0;
+    }
+
     public String getFirstMamReference() {
         return this.mFirstMamReference;
     }
@@ -565,7 +622,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     @Override
     public int compareTo(@NonNull Conversation another) {
         return ComparisonChain.start()
-                .compareFalseFirst(another.getBooleanAttribute(ATTRIBUTE_PINNED_ON_TOP, false), getBooleanAttribute(ATTRIBUTE_PINNED_ON_TOP,false))
+                .compareFalseFirst(another.attributes.isPinnedOnTop(), attributes.isPinnedOnTop())
                 .compare(another.getSortableTime(), getSortableTime())
                 .result();
     }
@@ -589,7 +646,11 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public boolean isRead() {
-        return (this.messages.size() == 0) || this.messages.get(this.messages.size() - 1).isRead();
+        final ConversationSummary summary = this.summary;
+        if (summary != null) {
+            return summary.getUnreadCount() == 0;
+        }
+        return unreadCount() == 0;
     }
 
     public List<Message> markRead(String upToUuid) {
@@ -610,7 +671,10 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message getLatestMessage() {
         synchronized (this.messages) {
-            if (this.messages.size() == 0) {
+            final ConversationSummary summary = this.summary;
+            if (this.messages.size() == 0 && summary != null && summary.getLatestMessage() != null) {
+                return summary.getLatestMessage();
+            } else if (this.messages.size() == 0) {
                 Message message = new Message(this, "", Message.ENCRYPTION_NONE);
                 message.setType(Message.TYPE_STATUS);
                 message.setTime(Math.max(getCreated(), getLastClearHistory().getTimestamp()));
@@ -692,9 +756,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         values.put(CREATED, created);
         values.put(STATUS, status);
         values.put(MODE, mode);
-        synchronized (this.attributes) {
-            values.put(ATTRIBUTES, attributes.toString());
-        }
+        values.put(ATTRIBUTES, attributes.toJson());
         return values;
     }
 
@@ -800,7 +862,21 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public Message findDuplicateMessage(Message message) {
+        final String remoteMsgId = message.getRemoteMsgId();
         synchronized (this.messages) {
+            if (remoteMsgId != null) {
+                final Message duplicate = findSimilar(candidates(this.messagesByServerMsgId, message.getServerMsgId()), message);
+                if (duplicate != null) {
+                    return duplicate;
+                }
+                final Message byRemoteId = findSimilar(candidates(this.messagesByRemoteId, remoteMsgId), message);
+                if (byRemoteId != null) {
+                    return byRemoteId;
+                }
+                final Message byUuid = this.messagesByUuid.get(remoteMsgId);
+                return byUuid != null && byUuid.similar(message) ? byUuid : null;
+            }
+            //without a remote id messages are matched by body within the merge window
             for (int i = this.messages.size() - 1; i >= 0; --i) {
                 if (this.messages.get(i).similar(message)) {
                     return this.messages.get(i);
@@ -810,6 +886,15 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         return null;
     }
 
+    private static Message findSimilar(final List<Message> candidates, final Message message) {
+        for (int i = candidates.size() - 1; i >= 0; --i) {
+            if (candidates.get(i).similar(message)) {
+                return candidates.get(i);
+            }
+        }
+        return null;
+    }
+
     public boolean hasDuplicateMessage(Message message) {
         return findDuplicateMessage(message) != null;
     }
@@ -851,8 +936,13 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
             return false;
         }
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (serverMsgId.equals(message.getServerMsgId()) || remoteMsgId.equals(message.getRemoteMsgId())) {
+            for (final Message message : candidates(this.messagesByServerMsgId, serverMsgId)) {
+                if (serverMsgId.equals(message.getServerMsgId())) {
+                    return true;
+                }
+            }
+            for (final Message message : candidates(this.messagesByRemoteId, remoteMsgId)) {
+                if (remoteMsgId.equals(message.getRemoteMsgId())) {
                     return true;
                 }
             }
@@ -862,6 +952,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public MamReference getLastMessageTransmitted() {
         final MamReference lastClear = getLastClearHistory();
+        final ConversationSummary summary = this.summary;
         MamReference lastReceived = new MamReference(0);
         synchronized (this.messages) {
             for (int i = this.messages.size() - 1; i >= 0; --i) {
@@ -875,6 +966,10 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
                 }
             }
         }
+        if (summary != null) {
+            //history has not been restored; anything in memory arrived after the summary was loaded
+            lastReceived = MamReference.max(summary.getLastTransmitted(), lastReceived);
+        }
         return MamReference.max(lastClear, lastReceived);
     }
 
@@ -903,128 +998,123 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public boolean setAttribute(String key, String value) {
-        synchronized (this.attributes) {
-            try {
-                if (value == null) {
-                    if (this.attributes.has(key)) {
-                        this.attributes.remove(key);
-                        return true;
-                    } else {
-                        return false;
-                    }
-                } else {
-                    final String prev = this.attributes.optString(key, null);
-                    this.attributes.put(key, value);
-                    return !value.equals(prev);
-                }
-            } catch (JSONException e) {
-                throw new AssertionError(e);
-            }
-        }
+        return this.attributes.set(key, value);
     }
 
     public boolean setAttribute(String key, List<Jid> jids) {
-        JSONArray array = new JSONArray();
-        for (Jid jid : jids) {
-            array.put(jid.asBareJid().toString());
-        }
-        synchronized (this.attributes) {
-            try {
-                this.attributes.put(key, array);
-                return true;
-            } catch (JSONException e) {
-                return false;
-            }
-        }
+        return this.attributes.set(key, jids);
     }
 
     public String getAttribute(String key) {
-        synchronized (this.attributes) {
-            return this.attributes.optString(key, null);
-        }
+        return this.attributes.getString(key);
     }
 
     private List<Jid> getJidListAttribute(String key) {
-        ArrayList<Jid> list = new ArrayList<>();
-        synchronized (this.attributes) {
-            try {
-                JSONArray array = this.attributes.getJSONArray(key);
-                for (int i = 0; i < array.length(); ++i) {
-                    try {
-                        list.add(Jid.of(array.getString(i)));
-                    } catch (IllegalArgumentException e) {
-                        //ignored
-                    }
-                }
-            } catch (JSONException e) {
-                //ignored
-            }
-        }
-        return list;
+        return this.attributes.getJidList(key);
     }
 
     private int getIntAttribute(String key, int defaultValue) {
-        String value = this.getAttribute(key);
-        if (value == null) {
-            return defaultValue;
-        } else {
-            try {
-                return Integer.parseInt(value);
-            } catch (NumberFormatException e) {
-                return defaultValue;
-            }
-        }
+        return this.attributes.getInt(key, defaultValue);
     }
 
     public long getLongAttribute(String key, long defaultValue) {
-        String value = this.getAttribute(key);
-        if (value == null) {
-            return defaultValue;
-        } else {
-            try {
-                return Long.parseLong(value);
-            } catch (NumberFormatException e) {
-                return defaultValue;
-            }
-        }
+        return this.attributes.getLong(key, defaultValue);
     }
 
     public boolean getBooleanAttribute(String key, boolean defaultValue) {
-        String value = this.getAttribute(key);
-        if (value == null) {
-            return defaultValue;
-        } else {
-            return Boolean.parseBoolean(value);
-        }
+        return this.attributes.getBoolean(key, defaultValue);
     }
 
     public void add(Message message) {
         synchronized (this.messages) {
             this.messages.add(message);
+            this.messagesByUuid.put(message.getUuid(), message);
+            if (!this.countersStale) {
+                count(message);
+            }
+            if (!this.idIndexStale) {
+                index(message);
+            }
         }
     }
 
     public void prepend(int offset, Message message) {
         synchronized (this.messages) {
             this.messages.add(Math.min(offset, this.messages.size()), message);
+            this.messagesByUuid.put(message.getUuid(), message);
+            this.idIndexStale = true;
+            invalidateCounters();
         }
     }
 
     public void addAll(int index, List<Message> messages) {
         synchronized (this.messages) {
             this.messages.addAll(index, messages);
+            for (final Message message : messages) {
+                this.messagesByUuid.put(message.getUuid(), message);
+            }
+            this.idIndexStale = true;
+            invalidateCounters();
         }
         account.getPgpDecryptionService().decrypt(messages);
     }
 
+    public void setSummary(final ConversationSummary summary) {
+        this.summary = summary;
+    }
+
+    public ConversationSummary getSummary() {
+        return this.summary;
+    }
+
+    /**
+     * conversations restored with a summary start without any messages. The history is loaded
+     * once on first use, merged with anything that has been added in the meantime.
+     *
+     * @return true if the history has been restored by this call
+     */
+    public boolean restoreHistory(final HistoryLoader loader) {
+        synchronized (this.historyLock) {
+            if (this.summary == null) {
+                return false;
+            }
+            final List<Message> history = new ArrayList<>(loader.load(this));
+            synchronized (this.messages) {
+                if (this.summary == null) {
+                    //history has been cleared while it was loading
+                    return false;
+                }
+                for (Iterator<Message> iterator = history.iterator(); iterator.hasNext(); ) {
+                    final Message message = iterator.next();
+                    if (this.messagesByUuid.putIfAbsent(message.getUuid(), message) != null) {
+                        iterator.remove();
+                    }
+                }
+                this.messages.addAll(0, history);
+                this.idIndexStale = true;
+                this.summary = null;
+                invalidateCounters();
+            }
+            account.getPgpDecryptionService().decrypt(history);
+            return true;
+        }
+    }
+
+    public boolean isHistoryRestored() {
+        return this.summary == null;
+    }
+
     public void expireOldMessages(long timestamp) {
         synchronized (this.messages) {
             for (ListIterator<Message> iterator = this.messages.listIterator(); iterator.hasNext(); ) {
-                if (iterator.next().getTimeSent() < timestamp) {
+                final Message message = iterator.next();
+                if (message.getTimeSent() < timestamp) {
                     iterator.remove();
+                    unindex(message);
                 }
             }
             untieMessages();
+            invalidateCounters();
         }
     }
 
@@ -1040,6 +1130,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
                 }
             });
             untieMessages();
+            invalidateCounters();
         }
     }
 
@@ -1050,31 +1141,214 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public int unreadCount() {
+        final ConversationSummary summary = this.summary;
+        if (summary != null) {
+            return summary.getUnreadCount();
+        }
         synchronized (this.messages) {
-            int count = 0;
-            for (int i = this.messages.size() - 1; i >= 0; --i) {
-                if (this.messages.get(i).isRead()) {
-                    return count;
-                }
-                ++count;
-            }
-            return count;
+            updateCounters();
+            return this.unreadCount;
         }
     }
 
     public int failedCount() {
+        final ConversationSummary summary = this.summary;
+        if (summary != null) {
+            return summary.getFailedCount();
+        }
         synchronized (this.messages) {
-            int count = 0;
-            for (int i = this.messages.size() - 1; i >= 0; --i) {
-                Message message = this.messages.get(i);
-                if ((message.getType() == Message.TYPE_IMAGE || message.getType() == Message.TYPE_FILE) && message.getEncryption() != Message.ENCRYPTION_PGP) {
-                    if (message.getStatus() == Message.STATUS_SEND_FAILED && !message.isFileDeleted() && message.needsUploading()) {
-                        ++count;
+            updateCounters();
+            return this.failedUploads;
+        }
+    }
+
+    /**
+     * called whenever the message window is changed structurally. The counters are rebuilt on next
+     * access, appending a message or changing one in place updates them incrementally.
+     */
+    void invalidateCounters() {
+        this.countersStale = true;
+    }
+
+    /**
+     * called by messages whenever one of their ids, edits or the counterpart changes (ids) or
+     * their read state, status, type or file changes. Messages that are not (yet) part of this
+     * conversation are ignored.
+     */
+    void onMessageChanged(final Message message, final boolean ids) {
+        final String uuid = message.getUuid();
+        if (uuid == null || this.messagesByUuid.get(uuid) != message) {
+            return;
+        }
+        if (ids) {
+            this.idIndexStale = true;
+        } else if (Thread.holdsLock(message)) {
+            //counting calls back into synchronized message methods; don't take the locks in reverse order
+            this.countersStale = true;
+        } else {
+            synchronized (this.messages) {
+                if (!this.countersStale) {
+                    recount(message);
+                }
+            }
+        }
+    }
+
+    void onMessageUuidChanged(final Message message, final String previous) {
+        if (previous != null && message.getUuid() != null && this.messagesByUuid.remove(previous, message)) {
+            this.messagesByUuid.put(message.getUuid(), message);
+        }
+    }
+
+    private void unindex(final Message message) {
+        this.messagesByUuid.remove(message.getUuid(), message);
+        this.idIndexStale = true;
+    }
+
+    /**
+     * the remote id, server id and counterpart indexes are only updated in place when messages
+     * are appended. Everything else marks them as stale and they are rebuilt on the next lookup.
+     */
+    private void updateIdIndex() {
+        if (!this.idIndexStale) {
+            return;
+        }
+        this.idIndexStale = false;
+        this.messagesByRemoteId.clear();
+        this.messagesByServerMsgId.clear();
+        this.counterparts.clear();
+        for (final Message message : this.messages) {
+            index(message);
+        }
+    }
+
+    private void index(final Message message) {
+        put(this.messagesByRemoteId, message.getRemoteMsgId(), message);
+        put(this.messagesByServerMsgId, message.getServerMsgId(), message);
+        for (final Edit edit : message.edits) {
+            put(this.messagesByRemoteId, edit.getEditedId(), message);
+            put(this.messagesByServerMsgId, edit.getServerMsgId(), message);
+        }
+        final Jid counterpart = message.getCounterpart();
+        if (counterpart != null) {
+            this.counterparts.add(counterpart);
+        }
+    }
+
+    private static void put(final HashMap<String, List<Message>> index, final String id, final Message message) {
+        if (id == null) {
+            return;
+        }
+        List<Message> list = index.get(id);
+        if (list == null) {
+            list = new ArrayList<>(1);
+            index.put(id, list);
+        } else if (list.contains(message)) {
+            return;
+        }
+        list.add(message);
+    }
+
+    private List<Message> candidates(final HashMap<String, List<Message>> index, final String id) {
+        if (id == null) {
+            return Collections.emptyList();
+        }
+        updateIdIndex();
+        final List<Message> list = index.get(id);
+        return list == null ? Collections.emptyList() : list;
+    }
+
+    private void updateCounters() {
+        if (!this.countersStale) {
+            return;
+        }
+        this.countersStale = false;
+        this.unreadCount = 0;
+        this.totalUnreadCount = 0;
+        this.failedDeliveries = 0;
+        this.failedUploads = 0;
+        this.firstUnreadMessage = null;
+        for (final Message message : this.messages) {
+            count(message);
+        }
+    }
+
+    private void count(final Message message) {
+        final int counted = counters(message);
+        if ((counted & COUNTED_UNREAD) == 0) {
+            this.unreadCount = 0;
+            this.firstUnreadMessage = null;
+        } else {
+            if (this.unreadCount == 0) {
+                this.firstUnreadMessage = message;
+            }
+            ++this.unreadCount;
+            ++this.totalUnreadCount;
+        }
+        if ((counted & COUNTED_FAILED_DELIVERY) != 0) {
+            ++this.failedDeliveries;
+        }
+        if ((counted & COUNTED_FAILED_UPLOAD) != 0) {
+            ++this.failedUploads;
+        }
+        message.counted = counted;
+    }
+
+    /**
+     * applies the difference between what a message has been counted as and its current state.
+     * The unread messages at the end of the window are always the last unreadCount messages, so
+     * marking one of them as read at most walks that run. Marking a message as unread anywhere
+     * but directly in front of that run splits it up and the counters are rebuilt instead.
+     */
+    private void recount(final Message message) {
+        final int counted = counters(message);
+        final int changed = counted ^ message.counted;
+        if (changed == 0) {
+            return;
+        }
+        if ((changed & COUNTED_UNREAD) != 0) {
+            final int size = this.messages.size();
+            if ((counted & COUNTED_UNREAD) != 0) {
+                if (size > this.unreadCount && this.messages.get(size - this.unreadCount - 1) == message) {
+                    ++this.unreadCount;
+                    ++this.totalUnreadCount;
+                    this.firstUnreadMessage = message;
+                } else {
+                    this.countersStale = true;
+                    return;
+                }
+            } else {
+                --this.totalUnreadCount;
+                for (int i = size - this.unreadCount; i < size; ++i) {
+                    if (this.messages.get(i) == message) {
+                        this.unreadCount = size - i - 1;
+                        this.firstUnreadMessage = this.unreadCount == 0 ? null : this.messages.get(i + 1);
+                        break;
                     }
                 }
             }
-            return count;
         }
+        if ((changed & COUNTED_FAILED_DELIVERY) != 0) {
+            this.failedDeliveries += (counted & COUNTED_FAILED_DELIVERY) != 0 ? 1 : -1;
+        }
+        if ((changed & COUNTED_FAILED_UPLOAD) != 0) {
+            this.failedUploads += (counted & COUNTED_FAILED_UPLOAD) != 0 ? 1 : -1;
+        }
+        message.counted = counted;
+    }
+
+    private static int counters(final Message message) {
+        int counted = message.isRead() ? 0 : COUNTED_UNREAD;
+        if (message.getStatus() == Message.STATUS_SEND_FAILED) {
+            counted |= COUNTED_FAILED_DELIVERY;
+            if ((message.getType() == Message.TYPE_IMAGE || message.getType() == Message.TYPE_FILE)
+                    && message.getEncryption() != Message.ENCRYPTION_PGP
+                    && !message.isFileDeleted()
+                    && message.needsUploading()) {
+                counted |= COUNTED_FAILED_UPLOAD;
+            }
+        }
+        return counted;
     }
 
     public int receivedMessagesCount() {
@@ -1144,6 +1418,10 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         void onMessageFound(final Message message);
     }
 
+    public interface HistoryLoader {
+        List<Message> load(final Conversation conversation);
+    }
+
     public static class Draft {
         private final String message;
         private final long timestamp;
@@ -0,0 +1,190 @@
+package eu.siacs.conversations.entities;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import eu.siacs.conversations.xmpp.Jid;
+
+/**
+ * Typed view on the json encoded attributes column of a conversation. The json is parsed once,
+ * primitive values are cached after their first lookup and the column value is only rebuilt
+ * after something has actually changed.
+ */
+public class ConversationAttributes {
+
+    private final HashMap<String, String> values = new HashMap<>();
+    private final HashMap<String, List<Jid>> jidLists = new HashMap<>();
+    private final HashMap<String, Object> parsed = new HashMap<>();
+    private volatile boolean pinnedOnTop = false;
+    private String serialized;
+
+    private ConversationAttributes() {
+
+    }
+
+    static ConversationAttributes fromJson(final String input) {
+        final ConversationAttributes attributes = new ConversationAttributes();
+        if (input == null || input.isEmpty()) {
+            return attributes;
+        }
+        try {
+            final JSONObject json = new JSONObject(input);
+            final Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                final Object value = json.get(key);
+                if (value instanceof JSONArray) {
+                    attributes.jidLists.put(key, parseJidList((JSONArray) value));
+                } else {
+                    attributes.values.put(key, String.valueOf(value));
+                }
+            }
+            attributes.serialized = input;
+        } catch (JSONException e) {
+            attributes.values.clear();
+            attributes.jidLists.clear();
+        }
+        attributes.pinnedOnTop = attributes.getBoolean(Conversation.ATTRIBUTE_PINNED_ON_TOP, false);
+        return attributes;
+    }
+
+    private static List<Jid> parseJidList(final JSONArray array) throws JSONException {
+        final ArrayList<Jid> list = new ArrayList<>();
+        for (int i = 0; i < array.length(); ++i) {
+            try {
+                list.add(Jid.of(array.getString(i)));
+            } catch (IllegalArgumentException e) {
+                //ignored
+            }
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    public synchronized String getString(final String key) {
+        return values.get(key);
+    }
+
+    public synchronized List<Jid> getJidList(final String key) {
+        final List<Jid> list = jidLists.get(key);
+        return list == null ? new ArrayList<>() : new ArrayList<>(list);
+    }
+
+    public synchronized int getInt(final String key, final int defaultValue) {
+        final Object cached = parsed.get(key);
+        if (cached instanceof Integer) {
+            return (Integer) cached;
+        }
+        final String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            final int result = Integer.parseInt(value);
+            parsed.put(key, result);
+            return result;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public synchronized long getLong(final String key, final long defaultValue) {
+        final Object cached = parsed.get(key);
+        if (cached instanceof Long) {
+            return (Long) cached;
+        }
+        final String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            final long result = Long.parseLong(value);
+            parsed.put(key, result);
+            return result;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public synchronized boolean getBoolean(final String key, final boolean defaultValue) {
+        final Object cached = parsed.get(key);
+        if (cached instanceof Boolean) {
+            return (Boolean) cached;
+        }
+        final String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        final boolean result = Boolean.parseBoolean(value);
+        parsed.put(key, result);
+        return result;
+    }
+
+    /**
+     * lock free shortcut for {@link Conversation#compareTo(Conversation)}
+     */
+    public boolean isPinnedOnTop() {
+        return pinnedOnTop;
+    }
+
+    public synchronized boolean set(final String key, final String value) {
+        final boolean changed;
+        if (value == null) {
+            changed = values.remove(key) != null | jidLists.remove(key) != null;
+        } else {
+            changed = !value.equals(values.put(key, value)) | jidLists.remove(key) != null;
+        }
+        if (changed) {
+            onChanged(key);
+        }
+        return changed;
+    }
+
+    public synchronized boolean set(final String key, final List<Jid> jids) {
+        final ArrayList<Jid> list = new ArrayList<>();
+        for (final Jid jid : jids) {
+            list.add(jid.asBareJid());
+        }
+        values.remove(key);
+        jidLists.put(key, Collections.unmodifiableList(list));
+        onChanged(key);
+        return true;
+    }
+
+    private void onChanged(final String key) {
+        parsed.remove(key);
+        serialized = null;
+        if (Conversation.ATTRIBUTE_PINNED_ON_TOP.equals(key)) {
+            pinnedOnTop = getBoolean(key, false);
+        }
+    }
+
+    public synchronized String toJson() {
+        if (serialized == null) {
+            final JSONObject json = new JSONObject();
+            try {
+                for (final Map.Entry<String, String> entry : values.entrySet()) {
+                    json.put(entry.getKey(), entry.getValue());
+                }
+                for (final Map.Entry<String, List<Jid>> entry : jidLists.entrySet()) {
+                    final JSONArray array = new JSONArray();
+                    for (final Jid jid : entry.getValue()) {
+                        array.put(jid.toString());
+                    }
+                    json.put(entry.getKey(), array);
+                }
+            } catch (JSONException e) {
+                throw new AssertionError(e);
+            }
+            serialized = json.toString();
+        }
+        return serialized;
+    }
+}
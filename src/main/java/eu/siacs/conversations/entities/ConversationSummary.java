@@ -0,0 +1,82 @@
+package eu.siacs.conversations.entities;
+
+import android.database.Cursor;
+
+import eu.siacs.conversations.xmpp.mam.MamReference;
+
+/**
+ * Row of the conversation_summaries table. The table is maintained by triggers on the messages
+ * table and allows rendering the conversation overview without restoring any message history.
+ */
+public class ConversationSummary {
+
+    public static final String TABLENAME = "conversation_summaries";
+    public static final String CONVERSATION = "conversationUuid";
+    public static final String LAST_MESSAGE = "lastMessageUuid";
+    public static final String LAST_MESSAGE_TIME = "lastMessageTime";
+    public static final String UNREAD = "unreadCount";
+    public static final String FAILED = "failedCount";
+    public static final String PENDING = "pendingCount";
+    public static final String LAST_TRANSMITTED_TIME = "lastTransmittedTime";
+    public static final String LAST_TRANSMITTED_SERVER_MSG_ID = "lastTransmittedServerMsgId";
+
+    private final String lastMessageUuid;
+    private final int unreadCount;
+    private final int failedCount;
+    private final int pendingCount;
+    private final MamReference lastTransmitted;
+    private Message latestMessage;
+
+    private ConversationSummary(final String lastMessageUuid, final int unreadCount, final int failedCount, final int pendingCount, final MamReference lastTransmitted) {
+        this.lastMessageUuid = lastMessageUuid;
+        this.unreadCount = unreadCount;
+        this.failedCount = failedCount;
+        this.pendingCount = pendingCount;
+        this.lastTransmitted = lastTransmitted;
+    }
+
+    public static ConversationSummary fromCursor(final Cursor cursor) {
+        return new ConversationSummary(cursor.getString(cursor.getColumnIndex(LAST_MESSAGE)),
+                cursor.getInt(cursor.getColumnIndex(UNREAD)),
+                cursor.getInt(cursor.getColumnIndex(FAILED)),
+                cursor.getInt(cursor.getColumnIndex(PENDING)),
+                new MamReference(cursor.getLong(cursor.getColumnIndex(LAST_TRANSMITTED_TIME)),
+                        cursor.getString(cursor.getColumnIndex(LAST_TRANSMITTED_SERVER_MSG_ID))));
+    }
+
+    public String getLastMessageUuid() {
+        return lastMessageUuid;
+    }
+
+    /**
+     * @return the latest message that went through the server, the same anchor
+     * {@link Conversation#getLastMessageTransmitted()} finds in a restored history
+     */
+    public MamReference getLastTransmitted() {
+        return lastTransmitted;
+    }
+
+    public Message getLatestMessage() {
+        return latestMessage;
+    }
+
+    public void setLatestMessage(final Message message) {
+        this.latestMessage = message;
+    }
+
+    public int getUnreadCount() {
+        return unreadCount;
+    }
+
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * conversations with unread, unsent or failed messages need their history right away for
+     * notifications and resending. Everything else can be restored once it is actually used.
+     */
+    public boolean needsBacklogProcessing() {
+        return unreadCount > 0 || failedCount > 0 || pendingCount > 0;
+    }
+}
@@ -76,6 +76,10 @@ public class Edit {
         return editedId;
     }
 
+    String getServerMsgId() {
+        return serverMsgId;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -71,6 +71,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     public static final String TRUE_COUNTERPART = "trueCounterpart";
     public static final String BODY = "body";
     public static final String BODY_LANGUAGE = "bodyLanguage";
+    public static final String BODY_TRUNCATED = "bodyTruncated";
     public static final String TIME_SENT = "timeSent";
     public static final String ENCRYPTION = "encryption";
     public static final String STATUS = "status";
@@ -98,6 +99,8 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     protected Jid counterpart;
     protected Jid trueCounterpart;
     protected String body;
+    private boolean bodyTruncated = false;
+    int counted = 0; //what the conversation counters currently include this message as
     protected String encryptedBody;
     protected long timeSent;
     protected int encryption;
@@ -225,7 +228,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public static Message fromCursor(Cursor cursor, Conversation conversation) {
-        return new Message(conversation,
+        final Message message = new Message(conversation,
                 cursor.getString(cursor.getColumnIndex(UUID)),
                 cursor.getString(cursor.getColumnIndex(CONVERSATION)),
                 fromString(cursor.getString(cursor.getColumnIndex(COUNTERPART))),
@@ -250,6 +253,11 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
                 cursor.getInt(cursor.getColumnIndex(FILE_DELETED)) > 0,
                 cursor.getString(cursor.getColumnIndex(BODY_LANGUAGE))
         );
+        final int bodyTruncated = cursor.getColumnIndex(BODY_TRUNCATED);
+        if (bodyTruncated >= 0) {
+            message.bodyTruncated = cursor.getInt(bodyTruncated) > 0;
+        }
+        return message;
     }
 
     private static Jid fromString(String value) {
@@ -293,7 +301,9 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         } else {
             values.put(TRUE_COUNTERPART, trueCounterpart.toString());
         }
-        values.put(BODY, body.length() > Config.MAX_STORAGE_MESSAGE_CHARS ? body.substring(0, Config.MAX_STORAGE_MESSAGE_CHARS) : body);
+        if (!bodyTruncated) {
+            values.put(BODY, body.length() > Config.MAX_STORAGE_MESSAGE_CHARS ? body.substring(0, Config.MAX_STORAGE_MESSAGE_CHARS) : body);
+        }
         values.put(TIME_SENT, timeSent);
         values.put(ENCRYPTION, encryption);
         values.put(STATUS, status);
@@ -333,6 +343,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public void setCounterpart(final Jid counterpart) {
         this.counterpart = counterpart;
+        invalidateConversationIndex();
     }
 
     public Contact getContact() {
@@ -352,11 +363,21 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         return body;
     }
 
+    /**
+     * @return true if only a prefix of the body has been loaded from the database. Use
+     * XmppConnectionService.loadFullBody() before handing the body to anything other than the
+     * message list. The callback of loadFullBody() is not invoked on the UI thread
+     */
+    public boolean isBodyTruncated() {
+        return bodyTruncated;
+    }
+
     public synchronized void setBody(String body) {
         if (body == null) {
             throw new Error("You should not set the message body to null");
         }
         this.body = body;
+        this.bodyTruncated = false;
         this.isGeoUri = null;
         this.isXmppUri = null;
         this.isWebUri = null;
@@ -396,6 +417,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public void setEncryption(int encryption) {
         this.encryption = encryption;
+        updateConversationCounters();
     }
 
     public int getStatus() {
@@ -404,6 +426,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public void setStatus(int status) {
         this.status = status;
+        updateConversationCounters();
     }
 
     public String getRelativeFilePath() {
@@ -420,6 +443,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public void setRemoteMsgId(String id) {
         this.remoteMsgId = id;
+        invalidateConversationIndex();
     }
 
     public String getServerMsgId() {
@@ -428,6 +452,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public void setServerMsgId(String id) {
         this.serverMsgId = id;
+        invalidateConversationIndex();
     }
 
     public boolean isRead() {
@@ -448,14 +473,29 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public void setFileDeleted(boolean file_deleted) {
         this.file_deleted = file_deleted;
+        updateConversationCounters();
     }
 
     public void markRead() {
         this.read = true;
+        updateConversationCounters();
     }
 
     public void markUnread() {
         this.read = false;
+        updateConversationCounters();
+    }
+
+    private void updateConversationCounters() {
+        if (conversation instanceof Conversation) {
+            ((Conversation) conversation).onMessageChanged(this, false);
+        }
+    }
+
+    private void invalidateConversationIndex() {
+        if (conversation instanceof Conversation) {
+            ((Conversation) conversation).onMessageChanged(this, true);
+        }
     }
 
     public void setTime(long time) {
@@ -476,6 +516,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public void setType(int type) {
         this.type = type;
+        updateConversationCounters();
     }
 
     public boolean isCarbon() {
@@ -490,6 +531,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         final Edit edit = new Edit(edited, serverMsgId);
         if (this.edits.size() < 128 && !this.edits.contains(edit)) {
             this.edits.add(edit);
+            invalidateConversationIndex();
         }
     }
 
@@ -587,16 +629,23 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
                 }
                 return (message.getRemoteMsgId().equals(this.remoteMsgId) || message.getRemoteMsgId().equals(this.uuid))
                         && matchingCounterpart
-                        && (body.equals(otherBody) || (message.getEncryption() == Message.ENCRYPTION_PGP && hasUuid));
+                        && (bodyEquals(body, otherBody) || (message.getEncryption() == Message.ENCRYPTION_PGP && hasUuid));
             } else {
                 return this.remoteMsgId == null
                         && matchingCounterpart
-                        && body.equals(otherBody)
+                        && bodyEquals(body, otherBody)
                         && Math.abs(this.getTimeSent() - message.getTimeSent()) < Config.MESSAGE_MERGE_WINDOW * 1000;
             }
         }
     }
 
+    private boolean bodyEquals(final String body, final String otherBody) {
+        if (bodyTruncated && otherBody != null && otherBody.length() > body.length()) {
+            return otherBody.startsWith(body);
+        }
+        return body.equals(otherBody);
+    }
+
     public Message next() {
         if (this.conversation instanceof Conversation) {
             final Conversation conversation = (Conversation) this.conversation;
@@ -796,7 +845,11 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public void setUuid(String uuid) {
+        final String previous = this.uuid;
         this.uuid = uuid;
+        if (conversation instanceof Conversation) {
+            ((Conversation) conversation).onMessageUuidChanged(this, previous);
+        }
     }
 
     public String getEditedId() {
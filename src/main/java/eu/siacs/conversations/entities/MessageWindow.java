@@ -0,0 +1,360 @@
+package eu.siacs.conversations.entities;
+
+import android.os.SystemClock;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+import eu.siacs.conversations.Config;
+
+/**
+ * The in memory messages of a conversation, split into pages of up to {@link Config#PAGE_SIZE}
+ * messages. Appending live messages and prepending history only ever touch the first or the last
+ * page. Writers synchronize on the window itself, as all code in {@link Conversation} already
+ * does. Readers that only need a consistent copy use {@link #snapshot()}, which reuses the frozen
+ * copies of every page that has not changed since the last snapshot.
+ */
+public class MessageWindow extends AbstractList<Message> implements RandomAccess {
+
+    private static final int MESSAGE_OVERHEAD = 320; // rough size of a message and its fields in bytes
+
+    private final ArrayList<Page> pages = new ArrayList<>();
+    private int size = 0;
+    private int cachedPage = 0;
+    private int cachedOffset = 0;
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    @Override
+    public Message get(final int index) {
+        final Page page = locate(index);
+        return page.messages.get(index - cachedOffset);
+    }
+
+    @Override
+    public Message set(final int index, final Message message) {
+        final Page page = locate(index);
+        final Message previous = page.messages.set(index - cachedOffset, message);
+        changed(page);
+        return previous;
+    }
+
+    @Override
+    public void add(final int index, final Message message) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        if (index == size) {
+            append(message);
+        } else if (index == 0) {
+            prepend(message);
+        } else {
+            final Page page = locate(index);
+            page.messages.add(index - cachedOffset, message);
+            changed(page);
+            if (page.messages.size() > Config.PAGE_SIZE * 2) {
+                split(cachedPage);
+            }
+        }
+        ++size;
+        ++modCount;
+    }
+
+    private void append(final Message message) {
+        Page last = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+        if (last == null || last.messages.size() >= Config.PAGE_SIZE) {
+            last = new Page();
+            pages.add(last);
+        }
+        last.messages.add(message);
+        changed(last);
+    }
+
+    private void prepend(final Message message) {
+        Page first = pages.isEmpty() ? null : pages.get(0);
+        if (first == null || first.messages.size() >= Config.PAGE_SIZE) {
+            first = new Page();
+            pages.add(0, first);
+        }
+        first.messages.add(0, message);
+        cachedPage = 0;
+        cachedOffset = 0;
+        changed(first);
+    }
+
+    private void split(final int index) {
+        final Page page = pages.get(index);
+        final List<Message> tail = page.messages.subList(page.messages.size() / 2, page.messages.size());
+        final Page second = new Page();
+        second.messages.addAll(tail);
+        second.lastViewed = page.lastViewed;
+        tail.clear();
+        pages.add(index + 1, second);
+        changed(page);
+        changed(second);
+    }
+
+    @Override
+    public boolean addAll(final int index, final Collection<? extends Message> messages) {
+        if (index != 0 || messages.isEmpty()) {
+            return super.addAll(index, messages);
+        }
+        final ArrayList<Page> history = new ArrayList<>();
+        Page page = null;
+        for (final Message message : messages) {
+            if (page == null || page.messages.size() >= Config.PAGE_SIZE) {
+                page = new Page();
+                history.add(page);
+            }
+            page.messages.add(message);
+        }
+        pages.addAll(0, history);
+        cachedPage = 0;
+        cachedOffset = 0;
+        size += messages.size();
+        ++modCount;
+        this.snapshot = null;
+        return true;
+    }
+
+    @Override
+    public Message remove(final int index) {
+        final Page page = locate(index);
+        final Message message = page.messages.remove(index - cachedOffset);
+        if (page.messages.isEmpty()) {
+            pages.remove(cachedPage);
+            cachedPage = 0;
+            cachedOffset = 0;
+        }
+        changed(page);
+        --size;
+        ++modCount;
+        return message;
+    }
+
+    @Override
+    protected void removeRange(final int fromIndex, final int toIndex) {
+        if (fromIndex != 0) {
+            super.removeRange(fromIndex, toIndex);
+            return;
+        }
+        int remaining = toIndex;
+        while (remaining > 0) {
+            final Page first = pages.get(0);
+            if (first.messages.size() <= remaining) {
+                remaining -= first.messages.size();
+                pages.remove(0);
+            } else {
+                first.messages.subList(0, remaining).clear();
+                changed(first);
+                remaining = 0;
+            }
+        }
+        cachedPage = 0;
+        cachedOffset = 0;
+        size -= toIndex;
+        ++modCount;
+        this.snapshot = null;
+    }
+
+    @Override
+    public void clear() {
+        pages.clear();
+        cachedPage = 0;
+        cachedOffset = 0;
+        size = 0;
+        ++modCount;
+        this.snapshot = Snapshot.EMPTY;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * finds the page containing the index and remembers its position. Loops over the list, in
+     * either direction, hit the same or a neighbouring page.
+     */
+    private Page locate(final int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        if (cachedPage >= pages.size()) {
+            cachedPage = 0;
+            cachedOffset = 0;
+        }
+        while (index < cachedOffset) {
+            --cachedPage;
+            cachedOffset -= pages.get(cachedPage).messages.size();
+        }
+        while (index >= cachedOffset + pages.get(cachedPage).messages.size()) {
+            cachedOffset += pages.get(cachedPage).messages.size();
+            ++cachedPage;
+        }
+        return pages.get(cachedPage);
+    }
+
+    private void changed(final Page page) {
+        page.frozen = null;
+        this.snapshot = null;
+    }
+
+    /**
+     * @return an immutable copy of the window. Repeated calls without changes in between do not
+     * take the lock.
+     */
+    public List<Message> snapshot() {
+        final Snapshot current = this.snapshot;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (this.snapshot == null) {
+                final Message[][] frozen = new Message[pages.size()][];
+                for (int i = 0; i < frozen.length; ++i) {
+                    final Page page = pages.get(i);
+                    if (page.frozen == null) {
+                        page.frozen = page.messages.toArray(new Message[0]);
+                    }
+                    frozen[i] = page.frozen;
+                }
+                this.snapshot = new Snapshot(frozen, size);
+            }
+            return this.snapshot;
+        }
+    }
+
+    /**
+     * marks the pages overlapping the given time range as recently viewed
+     */
+    public void markViewed(final long from, final long to) {
+        final long now = SystemClock.elapsedRealtime();
+        for (final Page page : pages) {
+            if (page.messages.isEmpty()) {
+                continue;
+            }
+            final long first = page.messages.get(0).getTimeSent();
+            final long last = page.messages.get(page.messages.size() - 1).getTimeSent();
+            if (first <= to && last >= from) {
+                page.lastViewed = now;
+            }
+        }
+    }
+
+    /**
+     * removes the oldest pages that have not been viewed within idleTime. The newest
+     * minimumPages are always kept, as is everything newer than a page that is still in use, to
+     * keep the window contiguous and allow reloading the evicted pages from the database. Pages
+     * with messages that still need processing are never evicted.
+     *
+     * @return the evicted messages
+     */
+    public List<Message> evictColdPages(final int minimumPages, final long idleTime) {
+        final long now = SystemClock.elapsedRealtime();
+        final ArrayList<Message> evicted = new ArrayList<>();
+        while (pages.size() > minimumPages && now - pages.get(0).lastViewed >= idleTime && pages.get(0).isEvictable()) {
+            evicted.addAll(pages.remove(0).messages);
+        }
+        if (evicted.isEmpty()) {
+            return Collections.emptyList();
+        }
+        cachedPage = 0;
+        cachedOffset = 0;
+        size -= evicted.size();
+        ++modCount;
+        this.snapshot = null;
+        return evicted;
+    }
+
+    public int getPageCount() {
+        return pages.size();
+    }
+
+    public long estimateMemoryUsage() {
+        long bytes = 0;
+        for (final Page page : pages) {
+            for (final Message message : page.messages) {
+                bytes += MESSAGE_OVERHEAD + 2L * (length(message.getBody()) + length(message.getEncryptedBody()));
+            }
+            if (page.frozen != null) {
+                bytes += 4L * page.frozen.length;
+            }
+        }
+        return bytes;
+    }
+
+    private static int length(final String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private static class Page {
+        private final ArrayList<Message> messages = new ArrayList<>(Config.PAGE_SIZE);
+        private Message[] frozen = null;
+        private long lastViewed = Long.MIN_VALUE / 2;
+
+        /**
+         * unread, pending, failed and transferring messages are looked up in memory and can
+         * not be reloaded on demand
+         */
+        private boolean isEvictable() {
+            for (final Message message : messages) {
+                final int status = message.getStatus();
+                if (!message.isRead()
+                        || status == Message.STATUS_UNSEND
+                        || status == Message.STATUS_WAITING
+                        || status == Message.STATUS_SEND_FAILED
+                        || message.getTransferable() != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Snapshot extends AbstractList<Message> implements RandomAccess {
+
+        private static final Snapshot EMPTY = new Snapshot(new Message[0][], 0);
+
+        private final Message[][] pages;
+        private final int[] offsets;
+        private final int size;
+
+        private Snapshot(final Message[][] pages, final int size) {
+            this.pages = pages;
+            this.offsets = new int[pages.length];
+            this.size = size;
+            int offset = 0;
+            for (int i = 0; i < pages.length; ++i) {
+                offsets[i] = offset;
+                offset += pages[i].length;
+            }
+        }
+
+        @Override
+        public Message get(final int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+            }
+            int low = 0;
+            int high = offsets.length - 1;
+            while (low < high) {
+                final int mid = (low + high + 1) >>> 1;
+                if (offsets[mid] <= index) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return pages[low][index - offsets[low]];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -7,7 +7,9 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -38,6 +40,11 @@ public class MucOptions {
     public static final String STATUS_CODE_LOST_MEMBERSHIP = "322";
     public static final String STATUS_CODE_SHUTDOWN = "332";
     private final Set<User> users = new HashSet<>();
+    private final HashMap<Jid, List<User>> usersByFullJid = new HashMap<>();
+    private final HashMap<Jid, List<User>> usersByRealJid = new HashMap<>();
+    private final int[] roleCounts = new int[Role.values().length];
+    private final int[] affiliationCounts = new int[Affiliation.values().length];
+    private volatile List<User> userSnapshot = Collections.emptyList();
     private final Conversation conversation;
     public OnRenameListener onRenameListener = null;
     private boolean mAutoPushConfiguration = true;
@@ -72,10 +79,10 @@ public class MucOptions {
         User user = findUserByRealJid(jid);
         synchronized (users) {
             if (user != null && user.getRole() == Role.NONE) {
-                users.remove(user);
+                removeUser(user);
                 if (affiliation.ranks(Affiliation.MEMBER)) {
                     user.affiliation = affiliation;
-                    users.add(user);
+                    addUser(user);
                 }
             }
         }
@@ -94,10 +101,8 @@ public class MucOptions {
     }
 
     public void resetChatState() {
-        synchronized (users) {
-            for (User user : users) {
-                user.chatState = Config.DEFAULT_CHAT_STATE;
-            }
+        for (User user : getUserSnapshot()) {
+            user.chatState = Config.DEFAULT_CHAT_STATE;
         }
     }
 
@@ -218,14 +223,8 @@ public class MucOptions {
         User user = findUserByFullJid(jid);
         if (user != null) {
             synchronized (users) {
-                users.remove(user);
-                boolean realJidInMuc = false;
-                for (User u : users) {
-                    if (user.realJid != null && user.realJid.equals(u.realJid)) {
-                        realJidInMuc = true;
-                        break;
-                    }
-                }
+                removeUser(user);
+                final boolean realJidInMuc = user.realJid != null && usersByRealJid.containsKey(user.realJid);
                 boolean self = user.realJid != null && user.realJid.equals(account.getJid().asBareJid());
                 if (membersOnly()
                         && nonanonymous()
@@ -236,7 +235,7 @@ public class MucOptions {
                     user.role = Role.NONE;
                     user.avatar = null;
                     user.fullJid = null;
-                    users.add(user);
+                    addUser(user);
                 }
             }
         }
@@ -255,7 +254,7 @@ public class MucOptions {
                     return false; //don't add. user already exists
                 } else {
                     synchronized (users) {
-                        users.remove(old);
+                        removeUser(old);
                     }
                 }
             }
@@ -264,20 +263,20 @@ public class MucOptions {
             realJidFound = old != null;
             synchronized (users) {
                 if (old != null && (old.fullJid == null || old.role == Role.NONE)) {
-                    users.remove(old);
+                    removeUser(old);
                 }
             }
         }
         old = findUserByFullJid(user.getFullJid());
         synchronized (this.users) {
             if (old != null) {
-                users.remove(old);
+                removeUser(old);
             }
             boolean fullJidIsSelf = isOnline && user.getFullJid() != null && user.getFullJid().equals(self.getFullJid());
             if ((!membersOnly() || user.getAffiliation().ranks(Affiliation.MEMBER))
                     && user.getAffiliation().outranks(Affiliation.OUTCAST)
                     && !fullJidIsSelf) {
-                this.users.add(user);
+                addUser(user);
                 return !realJidFound && user.realJid != null;
             }
         }
@@ -289,13 +288,9 @@ public class MucOptions {
             return null;
         }
         synchronized (users) {
-            for (User user : users) {
-                if (jid.equals(user.getFullJid())) {
-                    return user;
-                }
-            }
+            final List<User> candidates = usersByFullJid.get(jid);
+            return candidates == null ? null : candidates.get(0);
         }
-        return null;
     }
 
     public User findUserByRealJid(Jid jid) {
@@ -303,13 +298,92 @@ public class MucOptions {
             return null;
         }
         synchronized (users) {
-            for (User user : users) {
-                if (jid.equals(user.realJid)) {
-                    return user;
-                }
+            final List<User> candidates = usersByRealJid.get(jid);
+            return candidates == null ? null : candidates.get(0);
+        }
+    }
+
+    /**
+     * all modifications of the user set go through addUser and removeUser to keep the indexes,
+     * the counters and the snapshot in sync. Must be called while holding the users lock.
+     */
+    private void addUser(final User user) {
+        if (!users.add(user)) {
+            return;
+        }
+        put(usersByFullJid, user.fullJid, user);
+        put(usersByRealJid, user.realJid, user);
+        ++roleCounts[user.role.ordinal()];
+        ++affiliationCounts[user.affiliation.ordinal()];
+        userSnapshot = null;
+    }
+
+    private void removeUser(final User user) {
+        if (!users.remove(user)) {
+            return;
+        }
+        remove(usersByFullJid, user.fullJid, user);
+        remove(usersByRealJid, user.realJid, user);
+        --roleCounts[user.role.ordinal()];
+        --affiliationCounts[user.affiliation.ordinal()];
+        userSnapshot = null;
+    }
+
+    private static void put(final HashMap<Jid, List<User>> index, final Jid jid, final User user) {
+        if (jid == null) {
+            return;
+        }
+        List<User> list = index.get(jid);
+        if (list == null) {
+            list = new ArrayList<>(1);
+            index.put(jid, list);
+        }
+        list.add(user);
+    }
+
+    private static void remove(final HashMap<Jid, List<User>> index, final Jid jid, final User user) {
+        final List<User> list = jid == null ? null : index.get(jid);
+        if (list == null) {
+            return;
+        }
+        for (int i = 0; i < list.size(); ++i) {
+            if (list.get(i).equals(user)) {
+                list.remove(i);
+                break;
             }
         }
-        return null;
+        if (list.isEmpty()) {
+            index.remove(jid);
+        }
+    }
+
+    /**
+     * @return an immutable list of all users. The list is cached until the next change, callers
+     * that only iterate should prefer this over {@link #getUsers()}
+     */
+    public List<User> getUserSnapshot() {
+        final List<User> snapshot = this.userSnapshot;
+        if (snapshot != null) {
+            return snapshot;
+        }
+        synchronized (users) {
+            if (this.userSnapshot == null) {
+                this.userSnapshot = Collections.unmodifiableList(Arrays.asList(users.toArray(new User[0])));
+            }
+            return this.userSnapshot;
+        }
+    }
+
+    public int getUserCount(final Role role) {
+        synchronized (users) {
+            return roleCounts[role.ordinal()];
+        }
+    }
+
+    public int getUserCount(final Affiliation affiliation) {
+        synchronized (users) {
+            return affiliationCounts[affiliation.ordinal()];
+        }
     }
 
     public User findOrCreateUserByRealJid(Jid jid, Jid fullJid) {
@@ -350,44 +424,39 @@ public class MucOptions {
     }
 
     public ArrayList<User> getUsers(boolean includeOffline) {
-        synchronized (users) {
-            ArrayList<User> users = new ArrayList<>();
-            for (User user : this.users) {
-                if (!user.isDomain() && (includeOffline || user.getRole().ranks(Role.PARTICIPANT))) {
-                    users.add(user);
-                }
+        final List<User> snapshot = getUserSnapshot();
+        final ArrayList<User> users = new ArrayList<>(snapshot.size());
+        for (User user : snapshot) {
+            if (!user.isDomain() && (includeOffline || user.getRole().ranks(Role.PARTICIPANT))) {
+                users.add(user);
             }
-            return users;
         }
+        return users;
     }
 
     public ArrayList<User> getUsersWithChatState(ChatState state, int max) {
-        synchronized (users) {
-            ArrayList<User> list = new ArrayList<>();
-            for (User user : users) {
-                if (user.chatState == state) {
-                    list.add(user);
-                    if (list.size() >= max) {
-                        break;
-                    }
+        ArrayList<User> list = new ArrayList<>();
+        for (User user : getUserSnapshot()) {
+            if (user.chatState == state) {
+                list.add(user);
+                if (list.size() >= max) {
+                    break;
                 }
             }
-            return list;
         }
+        return list;
     }
 
     public List<User> getUsers(int max) {
         ArrayList<User> subset = new ArrayList<>();
         HashSet<Jid> jids = new HashSet<>();
         jids.add(account.getJid().asBareJid());
-        synchronized (users) {
-            for (User user : users) {
-                if (user.getRealJid() == null || (user.getRealJid().getLocal() != null && jids.add(user.getRealJid()))) {
-                    subset.add(user);
-                }
-                if (subset.size() >= max) {
-                    break;
-                }
+        for (User user : getUserSnapshot()) {
+            if (user.getRealJid() == null || (user.getRealJid().getLocal() != null && jids.add(user.getRealJid()))) {
+                subset.add(user);
+            }
+            if (subset.size() >= max) {
+                break;
             }
         }
         return subset;
@@ -476,6 +545,11 @@ public class MucOptions {
     public void setOffline() {
         synchronized (users) {
             this.users.clear();
+            this.usersByFullJid.clear();
+            this.usersByRealJid.clear();
+            Arrays.fill(this.roleCounts, 0);
+            Arrays.fill(this.affiliationCounts, 0);
+            this.userSnapshot = Collections.emptyList();
         }
         this.error = Error.NO_RESPONSE;
         this.isOnline = false;
@@ -538,7 +612,7 @@ public class MucOptions {
 
     public long[] getPgpKeyIds() {
         List<Long> ids = new ArrayList<>();
-        for (User user : this.users) {
+        for (User user : getUserSnapshot()) {
             if (user.getPgpKeyId() != 0) {
                 ids.add(user.getPgpKeyId());
             }
@@ -552,22 +626,18 @@ public class MucOptions {
     }
 
     public boolean pgpKeysInUse() {
-        synchronized (users) {
-            for (User user : users) {
-                if (user.getPgpKeyId() != 0) {
-                    return true;
-                }
+        for (User user : getUserSnapshot()) {
+            if (user.getPgpKeyId() != 0) {
+                return true;
             }
         }
         return false;
     }
 
     public boolean everybodyHasKeys() {
-        synchronized (users) {
-            for (User user : users) {
-                if (user.getPgpKeyId() == 0) {
-                    return false;
-                }
+        for (User user : getUserSnapshot()) {
+            if (user.getPgpKeyId() == 0) {
+                return false;
             }
         }
         return true;
@@ -614,11 +684,9 @@ public class MucOptions {
 
     public List<Jid> getMembers(final boolean includeDomains) {
         ArrayList<Jid> members = new ArrayList<>();
-        synchronized (users) {
-            for (User user : users) {
-                if (user.affiliation.ranks(Affiliation.MEMBER) && user.realJid != null && !user.realJid.asBareJid().equals(conversation.account.getJid().asBareJid()) && (!user.isDomain() || includeDomains)) {
-                    members.add(user.realJid);
-                }
+        for (User user : getUserSnapshot()) {
+            if (user.affiliation.ranks(Affiliation.MEMBER) && user.realJid != null && !user.realJid.asBareJid().equals(conversation.account.getJid().asBareJid()) && (!user.isDomain() || includeDomains)) {
+                members.add(user.realJid);
             }
         }
         return members;
@@ -12,10 +12,10 @@ import java.net.URL;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.X509TrustManager;
 
@@ -23,16 +23,31 @@ import eu.siacs.conversations.Config;
 import eu.siacs.conversations.entities.Account;
 import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.services.AbstractConnectionManager;
+import eu.siacs.conversations.services.MemorizingTrustManager;
 import eu.siacs.conversations.services.XmppConnectionService;
 import eu.siacs.conversations.utils.TLSSocketFactory;
+import okhttp3.OkHttpClient;
 
 public class HttpConnectionManager extends AbstractConnectionManager {
 
     private final List<HttpDownloadConnection> downloadConnections = new ArrayList<>();
     private final List<HttpUploadConnection> uploadConnections = new ArrayList<>();
+    private final TransferScheduler downloadScheduler;
+    private final TransferScheduler uploadScheduler;
+    private final OkHttpClient[] clients = new OkHttpClient[4];
+    private MemorizingTrustManager clientsTrustManager = null;
+
+    private static final OkHttpClient OK_HTTP_CLIENT = new OkHttpClient.Builder()
+            .connectTimeout(Config.SOCKET_TIMEOUT, TimeUnit.SECONDS)
+            .readTimeout(Config.SOCKET_TIMEOUT, TimeUnit.SECONDS)
+            .writeTimeout(Config.SOCKET_TIMEOUT, TimeUnit.SECONDS)
+            .build();
+    private static OkHttpClient torClient = null;
 
     public HttpConnectionManager(XmppConnectionService service) {
         super(service);
+        this.downloadScheduler = new TransferScheduler("FileDownload", service, false);
+        this.uploadScheduler = new TransferScheduler("FileUpload", service, true);
     }
 
     public static Proxy getProxy() throws IOException {
@@ -80,6 +95,14 @@ public class HttpConnectionManager extends AbstractConnectionManager {
         return mXmppConnectionService.hasInternetConnection();
     }
 
+    void scheduleDownload(final TransferScheduler.Transfer transfer) {
+        this.downloadScheduler.schedule(transfer);
+    }
+
+    void scheduleUpload(final TransferScheduler.Transfer transfer) {
+        this.uploadScheduler.schedule(transfer);
+    }
+
     void finishConnection(HttpDownloadConnection connection) {
         synchronized (this.downloadConnections) {
             this.downloadConnections.remove(connection);
@@ -92,20 +115,61 @@ public class HttpConnectionManager extends AbstractConnectionManager {
         }
     }
 
-    void setupTrustManager(final HttpsURLConnection connection, final boolean interactive) {
-        final X509TrustManager trustManager;
-        final HostnameVerifier hostnameVerifier = mXmppConnectionService.getMemorizingTrustManager().wrapHostnameVerifier(new StrictHostnameVerifier(), interactive);
-        if (interactive) {
-            trustManager = mXmppConnectionService.getMemorizingTrustManager().getInteractive();
-        } else {
-            trustManager = mXmppConnectionService.getMemorizingTrustManager().getNonInteractive();
+    /**
+     * @return the shared client that trusts the system certificates. Used for everything that
+     * is not a file transfer, like update checks, channel discovery and link previews.
+     */
+    public static OkHttpClient getClient(final boolean tor) {
+        if (!tor) {
+            return OK_HTTP_CLIENT;
+        }
+        synchronized (HttpConnectionManager.class) {
+            if (torClient == null) {
+                try {
+                    torClient = OK_HTTP_CLIENT.newBuilder().proxy(getProxy()).build();
+                } catch (final IOException e) {
+                    throw new IllegalStateException("Unable to use Tor proxy", e);
+                }
+            }
+            return torClient;
         }
-        try {
-            final SSLSocketFactory sf = new TLSSocketFactory(new X509TrustManager[]{trustManager}, mXmppConnectionService.getRNG());
-            connection.setSSLSocketFactory(sf);
-            connection.setHostnameVerifier(hostnameVerifier);
-        } catch (final KeyManagementException ignored) {
-        } catch (final NoSuchAlgorithmException ignored) {
+    }
+
+    /**
+     * @return the client for file transfers, which verifies certificates with the memorizing
+     * trust manager. There is one client for each combination of Tor and interactive trust
+     * decisions, all of them derived from the same base client. Connections are pooled per
+     * client since the pool does not hand out connections made with a different socket factory,
+     * so keeping the clients allows reusing connections, TLS sessions and HTTP/2 streams for
+     * consecutive transfers to the same host. The clients are rebuilt once the trust manager has
+     * been replaced, e.g. after the user stopped trusting system CAs.
+     */
+    OkHttpClient getClient(final boolean tor, final boolean interactive) {
+        final int index = (tor ? 2 : 0) + (interactive ? 1 : 0);
+        final MemorizingTrustManager memorizingTrustManager = mXmppConnectionService.getMemorizingTrustManager();
+        synchronized (this.clients) {
+            if (this.clientsTrustManager != memorizingTrustManager) {
+                Arrays.fill(this.clients, null);
+                this.clientsTrustManager = memorizingTrustManager;
+            }
+            if (this.clients[index] == null) {
+                final OkHttpClient.Builder builder = getClient(tor).newBuilder();
+                final X509TrustManager trustManager;
+                if (interactive) {
+                    trustManager = memorizingTrustManager.getInteractive();
+                } else {
+                    trustManager = memorizingTrustManager.getNonInteractive();
+                }
+                try {
+                    final SSLSocketFactory sf = new TLSSocketFactory(new X509TrustManager[]{trustManager}, mXmppConnectionService.getRNG());
+                    builder.sslSocketFactory(sf, trustManager);
+                    builder.hostnameVerifier(memorizingTrustManager.wrapHostnameVerifier(new StrictHostnameVerifier(), interactive));
+                } catch (final KeyManagementException | NoSuchAlgorithmException e) {
+                    Log.d(Config.LOGTAG, "unable to set up memorizing trust manager for http client", e);
+                }
+                this.clients[index] = builder.build();
+            }
+            return this.clients[index];
         }
     }
 }
\ No newline at end of file
@@ -1,18 +1,15 @@
 package eu.siacs.conversations.http;
 
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
-import com.google.common.io.ByteStreams;
-
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.SimpleDateFormat;
@@ -20,7 +17,6 @@ import java.util.Date;
 import java.util.Locale;
 import java.util.concurrent.CancellationException;
 
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLHandshakeException;
 
 import eu.siacs.conversations.Config;
@@ -37,6 +33,10 @@ import eu.siacs.conversations.utils.FileWriterException;
 import eu.siacs.conversations.utils.WakeLockHelper;
 import eu.siacs.conversations.xmpp.stanzas.IqPacket;
 import eu.siacs.conversations.xmpp.Jid;
+import okhttp3.Call;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
 
 public class HttpDownloadConnection implements Transferable {
 
@@ -116,9 +116,9 @@ public class HttpDownloadConnection implements Transferable {
             }
             final String reference = mUrl.getRef();
             if (reference != null && AesGcmURLStreamHandler.IV_KEY.matcher(reference).matches()) {
-                this.file = new DownloadableFile(mXmppConnectionService.getCacheDir().getAbsolutePath() + "/" + message.getUuid());
+                this.file = mXmppConnectionService.getFileBackend().getFile(message, true);
                 this.file.setKeyAndIv(CryptoHelper.hexToBytes(reference));
-                Log.d(Config.LOGTAG, "create temporary OMEMO encrypted file: " + this.file.getAbsolutePath() + "(" + message.getMimeType() + ")");
+                Log.d(Config.LOGTAG, "decrypting OMEMO encrypted download into " + this.file.getAbsolutePath() + "(" + message.getMimeType() + ")");
             } else {
                 this.file = mXmppConnectionService.getFileBackend().getFile(message, false);
             }
@@ -160,33 +160,6 @@ public class HttpDownloadConnection implements Transferable {
         mHttpConnectionManager.updateConversationUi(true);
     }
 
-    private void decryptFile() throws IOException {
-        final DownloadableFile outputFile = mXmppConnectionService.getFileBackend().getFile(message, true);
-
-        if (outputFile.getParentFile().mkdirs()) {
-            Log.d(Config.LOGTAG, "created parent directories for " + outputFile.getAbsolutePath());
-        }
-
-        if (!outputFile.createNewFile()) {
-            Log.w(Config.LOGTAG, "unable to create output file " + outputFile.getAbsolutePath());
-        }
-
-        final InputStream is = new FileInputStream(this.file);
-
-        outputFile.setKey(this.file.getKey());
-        outputFile.setIv(this.file.getIv());
-        final OutputStream os = AbstractConnectionManager.createOutputStream(outputFile, false, true);
-
-        ByteStreams.copy(is, os);
-
-        FileBackend.close(is);
-        FileBackend.close(os);
-
-        if (!file.delete()) {
-            Log.w(Config.LOGTAG, "unable to delete temporary OMEMO encrypted file " + file.getAbsolutePath());
-        }
-    }
-
     private void finish() {
         message.setTransferable(null);
         mHttpConnectionManager.finishConnection(this);
@@ -204,10 +177,13 @@ public class HttpDownloadConnection implements Transferable {
         });
     }
 
-    private void decryptIfNeeded() throws IOException {
-        if (file.getKey() != null && file.getIv() != null) {
-            decryptFile();
-        }
+    private Call newCall(final Request.Builder request, final boolean interactive) {
+        final String hostname = mUrl.getHost();
+        final boolean onion = hostname != null && hostname.endsWith(".onion");
+        final boolean tor = mUseTor || message.getConversation().getAccount().isOnion() || onion;
+        request.url(mUrl);
+        request.header("User-Agent", mXmppConnectionService.getIqGenerator().getUserAgent());
+        return mHttpConnectionManager.getClient(tor, interactive).newCall(request.build());
     }
 
     private void changeStatus(int status) {
@@ -339,42 +315,31 @@ public class HttpDownloadConnection implements Transferable {
             try {
                 Log.d(Config.LOGTAG, "retrieve file size. interactive:" + String.valueOf(interactive));
                 changeStatus(STATUS_CHECKING);
-                HttpURLConnection connection;
-                final String hostname = mUrl.getHost();
-                final boolean onion = hostname != null && hostname.endsWith(".onion");
-                if (mUseTor || message.getConversation().getAccount().isOnion() || onion) {
-                    connection = (HttpURLConnection) mUrl.openConnection(HttpConnectionManager.getProxy());
-                } else {
-                    connection = (HttpURLConnection) mUrl.openConnection();
-                }
+                final Request.Builder request = new Request.Builder();
                 if (method == Method.P1_S3) {
-                    connection.setRequestMethod("GET");
-                    connection.addRequestProperty("Range", "bytes=0-0");
+                    request.get();
+                    request.header("Range", "bytes=0-0");
                 } else {
-                    connection.setRequestMethod("HEAD");
-                }
-                connection.setUseCaches(false);
-                Log.d(Config.LOGTAG, "url: " + connection.getURL().toString());
-                connection.setRequestProperty("User-Agent", mXmppConnectionService.getIqGenerator().getUserAgent());
-                if (connection instanceof HttpsURLConnection) {
-                    mHttpConnectionManager.setupTrustManager((HttpsURLConnection) connection, interactive);
+                    request.head();
                 }
-                connection.setConnectTimeout(Config.SOCKET_TIMEOUT * 1000);
-                connection.setReadTimeout(Config.CONNECT_TIMEOUT * 1000);
-                connection.connect();
+                Log.d(Config.LOGTAG, "url: " + mUrl.toString());
                 String contentLength;
-                if (method == Method.P1_S3) {
-                    String contentRange = connection.getHeaderField("Content-Range");
-                    String[] contentRangeParts = contentRange == null ? new String[0] : contentRange.split("/");
-                    if (contentRangeParts.length != 2) {
-                        contentLength = null;
+                try (final Response response = newCall(request, interactive).execute()) {
+                    if (!response.isSuccessful()) {
+                        throw new IOException("unexpected response code " + response.code());
+                    }
+                    if (method == Method.P1_S3) {
+                        String contentRange = response.header("Content-Range");
+                        String[] contentRangeParts = contentRange == null ? new String[0] : contentRange.split("/");
+                        if (contentRangeParts.length != 2) {
+                            contentLength = null;
+                        } else {
+                            contentLength = contentRangeParts[1];
+                        }
                     } else {
-                        contentLength = contentRangeParts[1];
+                        contentLength = response.header("Content-Length");
                     }
-                } else {
-                    contentLength = connection.getHeaderField("Content-Length");
                 }
-                connection.disconnect();
                 if (contentLength == null) {
                     throw new IOException("no content-length found in HEAD response");
                 }
@@ -389,7 +354,7 @@ public class HttpDownloadConnection implements Transferable {
 
     }
 
-    private class FileDownloader implements Runnable {
+    private class FileDownloader implements Runnable, SegmentedDownload.Callback {
 
         private final boolean interactive;
 
@@ -402,11 +367,10 @@ public class HttpDownloadConnection implements Transferable {
         @Override
         public void run() {
             changeStatus(STATUS_WAITING);
-            mXmppConnectionService.mDownloadExecutor.execute(() -> {
+            mHttpConnectionManager.scheduleDownload(new TransferScheduler.Transfer(message, mUrl.getHost(), file.getExpectedSize(), interactive, () -> {
                 try {
                     changeStatus(STATUS_DOWNLOADING);
                     download();
-                    decryptIfNeeded();
                     updateImageBounds();
                     finish();
                 } catch (SSLHandshakeException e) {
@@ -420,58 +384,66 @@ public class HttpDownloadConnection implements Transferable {
                     }
                     cancel();
                 }
-            });
+            }));
+        }
+
+        @Override
+        public Call newCall(final Request.Builder request) {
+            return HttpDownloadConnection.this.newCall(request, interactive);
+        }
+
+        @Override
+        public void onProgress(final long transmitted, final long size) {
+            updateProgress(Math.round(((double) transmitted / size) * 100));
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return canceled;
         }
 
         private void download() throws Exception {
             InputStream is = null;
-            HttpURLConnection connection = null;
+            Response response = null;
             PowerManager.WakeLock wakeLock = mHttpConnectionManager.createWakeLock("http_download_" + message.getUuid());
             try {
                 wakeLock.acquire();
-                if (mUseTor || message.getConversation().getAccount().isOnion()) {
-                    connection = (HttpURLConnection) mUrl.openConnection(HttpConnectionManager.getProxy());
-                } else {
-                    connection = (HttpURLConnection) mUrl.openConnection();
+                final File stateFile = new File(mXmppConnectionService.getCacheDir(), "downloads" + File.separator + message.getUuid());
+                if (SegmentedDownload.isEligible(file, stateFile)
+                        && new SegmentedDownload(file, stateFile, this).run()) {
+                    return;
                 }
-                if (connection instanceof HttpsURLConnection) {
-                    mHttpConnectionManager.setupTrustManager((HttpsURLConnection) connection, interactive);
-                }
-                connection.setUseCaches(false);
-                connection.setRequestProperty("User-Agent", mXmppConnectionService.getIqGenerator().getUserAgent());
+                final Request.Builder request = new Request.Builder();
                 final long expected = file.getExpectedSize();
+                //aesgcm downloads are decrypted while they are written. the plaintext has the same length as the ciphertext without the tag
+                final boolean decrypt = file.getKey() != null && file.getIv() != null;
                 final boolean tryResume = file.exists() && file.getSize() > 0 && file.getSize() < expected;
                 long resumeSize = 0;
 
                 if (tryResume) {
                     resumeSize = file.getSize();
                     Log.d(Config.LOGTAG, "http download trying resume after " + resumeSize + " of " + expected);
-                    connection.setRequestProperty("Range", "bytes=" + resumeSize + "-");
+                    request.header("Range", "bytes=" + resumeSize + "-");
+                }
+                response = newCall(request).execute();
+                if (!response.isSuccessful()) {
+                    throw new IOException("unexpected response code " + response.code());
                 }
-                connection.setConnectTimeout(Config.SOCKET_TIMEOUT * 1000);
-                connection.setReadTimeout(Config.SOCKET_TIMEOUT * 1000);
-                connection.connect();
-                is = new BufferedInputStream(connection.getInputStream());
-                final String contentRange = connection.getHeaderField("Content-Range");
+                final ResponseBody body = response.body();
+                is = body.byteStream();
+                final String contentRange = response.header("Content-Range");
                 boolean serverResumed = tryResume && contentRange != null && contentRange.startsWith("bytes " + resumeSize + "-");
                 long transmitted = 0;
                 if (tryResume && serverResumed) {
                     Log.d(Config.LOGTAG, "server resumed");
                     transmitted = file.getSize();
                     updateProgress(Math.round(((double) transmitted / expected) * 100));
-                    os = AbstractConnectionManager.createOutputStream(file, true, false);
+                    os = AbstractConnectionManager.createOutputStream(file, true, decrypt);
                     if (os == null) {
                         throw new FileWriterException();
                     }
                 } else {
-                    long reportedContentLengthOnGet;
-                    try {
-                        reportedContentLengthOnGet = Long.parseLong(connection.getHeaderField("Content-Length"));
-                    } catch (NumberFormatException e) {
-                        reportedContentLengthOnGet = 0;
-                    } catch (NullPointerException e) {
-                        reportedContentLengthOnGet = 0;
-                    }
+                    final long reportedContentLengthOnGet = body.contentLength();
                     if (expected != reportedContentLengthOnGet) {
                         Log.d(Config.LOGTAG, "content-length reported on GET (" + reportedContentLengthOnGet + ") did not match Content-Length reported on HEAD (" + expected + ")");
                     }
@@ -479,10 +451,15 @@ public class HttpDownloadConnection implements Transferable {
                     if (!file.exists() && !file.createNewFile()) {
                         throw new FileWriterException();
                     }
-                    os = AbstractConnectionManager.createOutputStream(file, false, false);
+                    os = AbstractConnectionManager.createOutputStream(file, false, decrypt);
+                    if (os == null) {
+                        throw new FileWriterException();
+                    }
                 }
+                final long start = SystemClock.elapsedRealtime();
+                final long offset = transmitted;
                 int count;
-                byte[] buffer = new byte[4096];
+                byte[] buffer = new byte[Config.FILE_TRANSFER_BUFFER_SIZE];
                 while ((count = is.read(buffer)) != -1) {
                     transmitted += count;
                     try {
@@ -500,6 +477,21 @@ public class HttpDownloadConnection implements Transferable {
                 } catch (IOException e) {
                     throw new FileWriterException();
                 }
+                if (decrypt) {
+                    //closing the cipher stream verifies the authentication tag
+                    try {
+                        os.close();
+                    } catch (IOException e) {
+                        if (!file.delete()) {
+                            Log.w(Config.LOGTAG, "unable to delete unverified file " + file.getAbsolutePath());
+                        }
+                        throw new IOException("unable to verify authentication tag of " + mUrl, e);
+                    } finally {
+                        os = null;
+                    }
+                }
+                final long duration = Math.max(1, SystemClock.elapsedRealtime() - start);
+                Log.d(Config.LOGTAG, message.getConversation().getAccount().getJid().asBareJid() + ": downloaded " + (transmitted - offset) + " bytes in " + duration + "ms (" + ((transmitted - offset) / duration) + " KB/s" + (decrypt ? ", decrypted" : "") + ")");
             } catch (CancellationException e) {
                 Log.d(Config.LOGTAG, message.getConversation().getAccount().getJid().asBareJid() + ": http download canceled", e);
                 throw e;
@@ -509,9 +501,7 @@ public class HttpDownloadConnection implements Transferable {
             } finally {
                 FileBackend.close(os);
                 FileBackend.close(is);
-                if (connection != null) {
-                    connection.disconnect();
-                }
+                FileBackend.close(response);
                 WakeLockHelper.release(wakeLock);
             }
         }
@@ -1,19 +1,28 @@
 package eu.siacs.conversations.http;
 
 import android.os.PowerManager;
+import android.util.Base64;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Scanner;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.entities.Account;
@@ -23,9 +32,14 @@ import eu.siacs.conversations.entities.Transferable;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.services.AbstractConnectionManager;
 import eu.siacs.conversations.services.XmppConnectionService;
-import eu.siacs.conversations.utils.Checksum;
 import eu.siacs.conversations.utils.CryptoHelper;
 import eu.siacs.conversations.utils.WakeLockHelper;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
 
 public class HttpUploadConnection implements Transferable {
 
@@ -35,14 +49,19 @@ public class HttpUploadConnection implements Transferable {
             "Expires"
     );
 
+    private static final ListeningExecutorService PREPARATION_EXECUTOR = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+
     private final HttpConnectionManager mHttpConnectionManager;
     private final XmppConnectionService mXmppConnectionService;
     private final SlotRequester mSlotRequester;
     private final Method method;
     private final boolean mUseTor;
-    private boolean cancelled = false;
+    private volatile boolean cancelled = false;
+    private volatile boolean finished = false;
     private boolean delayed = false;
     private DownloadableFile file;
+    private ListenableFuture<Void> preparation;
+    private String md5;
     private final Message message;
     private String mime;
     private SlotRequester.Slot slot;
@@ -50,6 +69,7 @@ public class HttpUploadConnection implements Transferable {
     private int mStatus = Transferable.STATUS_UNKNOWN;
 
     private long transmitted = 0;
+    private int retries = 0;
 
     public HttpUploadConnection(Message message, Method method, HttpConnectionManager httpConnectionManager) {
         this.message = message;
@@ -94,6 +114,7 @@ public class HttpUploadConnection implements Transferable {
     }
 
     private void finish() {
+        this.finished = true;
         mHttpConnectionManager.finishUploadConnection(this);
         message.setTransferable(null);
     }
@@ -116,33 +137,54 @@ public class HttpUploadConnection implements Transferable {
             this.file.setKeyAndIv(this.key);
         }
 
-        final String md5;
-
+        this.file.setExpectedSize(originalFileSize + (file.getKey() != null ? 16 : 0));
+        message.resetFileParams();
         if (method == Method.P1_S3) {
-            try {
-                md5 = Checksum.md5(AbstractConnectionManager.upgrade(file, new FileInputStream(file)));
-            } catch (Exception e) {
-                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": unable to calculate md5()", e);
-                fail(e.getMessage());
-                return;
-            }
+            this.preparation = PREPARATION_EXECUTOR.submit(this::calculateMd5);
+            //the slot request has to carry the md5 of what is going to be uploaded
+            Futures.addCallback(preparation, new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    requestSlot(account);
+                }
+
+                @Override
+                public void onFailure(@NonNull Throwable t) {
+                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": unable to prepare file for upload", t);
+                    fail(t.getMessage());
+                }
+            }, MoreExecutors.directExecutor());
         } else {
-            md5 = null;
+            this.preparation = Futures.immediateFuture(null);
+            requestSlot(account);
         }
+        message.setTransferable(this);
+        mXmppConnectionService.markMessage(message, Message.STATUS_UNSEND);
+    }
 
-        this.file.setExpectedSize(originalFileSize + (file.getKey() != null ? 16 : 0));
-        message.resetFileParams();
+    private void requestSlot(final Account account) {
         this.mSlotRequester.request(method, account, file, mime, md5, new SlotRequester.OnSlotRequested() {
             @Override
             public void success(SlotRequester.Slot slot) {
-                if (!cancelled) {
-                    changeStatus(STATUS_WAITING);
-                    mXmppConnectionService.mUploadExecutor.execute(() -> {
-                        changeStatus(STATUS_UPLOADING);
-                        HttpUploadConnection.this.slot = slot;
-                        HttpUploadConnection.this.upload();
-                    });
-                }
+                Futures.addCallback(preparation, new FutureCallback<Void>() {
+                    @Override
+                    public void onSuccess(Void result) {
+                        if (!cancelled) {
+                            changeStatus(STATUS_WAITING);
+                            mHttpConnectionManager.scheduleUpload(new TransferScheduler.Transfer(message, slot.getPutUrl().getHost(), file.getExpectedSize(), !delayed, () -> {
+                                changeStatus(STATUS_UPLOADING);
+                                HttpUploadConnection.this.slot = slot;
+                                HttpUploadConnection.this.upload();
+                            }));
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(@NonNull Throwable t) {
+                        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": unable to prepare file for upload", t);
+                        fail(t.getMessage());
+                    }
+                }, MoreExecutors.directExecutor());
             }
 
             @Override
@@ -150,64 +192,53 @@ public class HttpUploadConnection implements Transferable {
                 fail(message);
             }
         });
-        message.setTransferable(this);
-        mXmppConnectionService.markMessage(message, Message.STATUS_UNSEND);
+    }
+
+    /**
+     * P1S3 slot requests have to carry the md5 of what is going to be uploaded, which for
+     * encrypted files means encrypting the file once just to hash it.
+     */
+    private Void calculateMd5() throws Exception {
+        final long start = System.currentTimeMillis();
+        final MessageDigest digest = MessageDigest.getInstance("MD5");
+        InputStream is = null;
+        try {
+            is = AbstractConnectionManager.upgrade(file, new FileInputStream(file));
+            final byte[] buffer = new byte[Config.FILE_TRANSFER_BUFFER_SIZE];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                if (cancelled || finished) {
+                    throw new IOException("upload canceled");
+                }
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            FileBackend.close(is);
+        }
+        this.md5 = Base64.encodeToString(digest.digest(), Base64.NO_WRAP);
+        Log.d(Config.LOGTAG, "calculated md5 of " + file.getExpectedSize() + " bytes for upload in " + (System.currentTimeMillis() - start) + "ms");
+        return null;
     }
 
     private void upload() {
-        OutputStream os = null;
-        InputStream fileInputStream = null;
-        HttpURLConnection connection = null;
+        boolean retry = false;
+        Response response = null;
         PowerManager.WakeLock wakeLock = mHttpConnectionManager.createWakeLock("http_upload_" + message.getUuid());
         try {
-            fileInputStream = new FileInputStream(file);
             final String slotHostname = slot.getPutUrl().getHost();
             final boolean onionSlot = slotHostname != null && slotHostname.endsWith(".onion");
-            final int expectedFileSize = (int) file.getExpectedSize();
-            final int readTimeout = ((expectedFileSize / 2048) + Config.SOCKET_TIMEOUT) * 1000; //assuming a minimum transfer speed of 16kbit/s
+            final long expectedFileSize = file.getExpectedSize();
+            final long readTimeout = ((expectedFileSize / 2048) + Config.SOCKET_TIMEOUT) * 1000; //assuming a minimum transfer speed of 16kbit/s
             wakeLock.acquire(readTimeout);
             Log.d(Config.LOGTAG, "uploading to " + slot.getPutUrl().toString() + " w/ read timeout of " + readTimeout / 1000 + "s");
-            if (mUseTor || message.getConversation().getAccount().isOnion() || onionSlot) {
-                connection = (HttpURLConnection) slot.getPutUrl().openConnection(HttpConnectionManager.getProxy());
-            } else {
-                connection = (HttpURLConnection) slot.getPutUrl().openConnection();
-            }
-            if (connection instanceof HttpsURLConnection) {
-                mHttpConnectionManager.setupTrustManager((HttpsURLConnection) connection, true);
-            }
-            connection.setUseCaches(false);
-            connection.setRequestMethod("PUT");
-            connection.setFixedLengthStreamingMode(expectedFileSize);
-            connection.setRequestProperty("User-Agent", mXmppConnectionService.getIqGenerator().getUserAgent());
-            if (slot.getHeaders() != null) {
-                for (HashMap.Entry<String, String> entry : slot.getHeaders().entrySet()) {
-                    connection.setRequestProperty(entry.getKey(), entry.getValue());
-                }
-            }
-            connection.setDoOutput(true);
-            connection.setDoInput(true);
-            connection.setConnectTimeout(Config.SOCKET_TIMEOUT * 1000);
-            connection.setReadTimeout(readTimeout);
-            connection.connect();
-            final InputStream innerInputStream = AbstractConnectionManager.upgrade(file, fileInputStream);
-            os = connection.getOutputStream();
-            transmitted = 0;
-            int count;
-            byte[] buffer = new byte[4096];
-            while (((count = innerInputStream.read(buffer)) != -1) && !cancelled) {
-                transmitted += count;
-                os.write(buffer, 0, count);
-                mHttpConnectionManager.updateConversationUi(false);
-            }
-            os.flush();
-            os.close();
-            int code = connection.getResponseCode();
-            InputStream is = connection.getErrorStream();
-            if (is != null) {
-                try (Scanner scanner = new Scanner(is)) {
-                    scanner.useDelimiter("\\Z");
-                    Log.d(Config.LOGTAG, "body: " + scanner.next());
-                }
+            final boolean tor = mUseTor || message.getConversation().getAccount().isOnion() || onionSlot;
+            final OkHttpClient client = mHttpConnectionManager.getClient(tor, true).newBuilder()
+                    .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                    .build();
+            response = client.newCall(createRequest()).execute();
+            final int code = response.code();
+            if (!response.isSuccessful()) {
+                Log.d(Config.LOGTAG, "body: " + response.body().string());
             }
             if (code == 200 || code == 201) {
                 Log.d(Config.LOGTAG, "finished uploading file");
@@ -232,18 +263,90 @@ public class HttpUploadConnection implements Transferable {
                 Log.d(Config.LOGTAG, "http upload failed because response code was " + code);
                 fail("http upload failed because response code was " + code);
             }
+        } catch (final IOException e) {
+            if (!cancelled && retries < Config.MAX_UPLOAD_RETRIES) {
+                ++retries;
+                Log.d(Config.LOGTAG, "upload interrupted after " + transmitted + " bytes (" + e.getMessage() + "). requesting new slot");
+                retry = true;
+            } else {
+                Log.d(Config.LOGTAG, "http upload failed " + e.getMessage());
+                fail(e.getMessage());
+            }
         } catch (Exception e) {
             e.printStackTrace();
             Log.d(Config.LOGTAG, "http upload failed " + e.getMessage());
             fail(e.getMessage());
         } finally {
-            FileBackend.close(fileInputStream);
-            FileBackend.close(os);
-            if (connection != null) {
-                connection.disconnect();
-            }
+            FileBackend.close(response);
             WakeLockHelper.release(wakeLock);
         }
+        if (retry) {
+            //HTTP upload has no standard way to continue a PUT; start over on a fresh slot
+            requestSlot(message.getConversation().getAccount());
+        }
+    }
+
+    private Request createRequest() {
+        final Request.Builder request = new Request.Builder()
+                .url(slot.getPutUrl())
+                .put(new FileRequestBody(file.getExpectedSize()))
+                .header("User-Agent", mXmppConnectionService.getIqGenerator().getUserAgent());
+        if (slot.getHeaders() != null) {
+            for (HashMap.Entry<String, String> entry : slot.getHeaders().entrySet()) {
+                request.header(entry.getKey(), entry.getValue());
+            }
+        }
+        return request.build();
+    }
+
+    /**
+     * streams the file, encrypting it on the fly if needed. The content length is always known,
+     * so OkHttp sends it as a fixed length body without buffering. OkHttp may write the body
+     * again when it retries a request on a new connection, so the file is opened and the cipher
+     * initialized anew on each write.
+     */
+    private class FileRequestBody extends RequestBody {
+
+        private final long contentLength;
+
+        private FileRequestBody(final long contentLength) {
+            this.contentLength = contentLength;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return null;
+        }
+
+        @Override
+        public long contentLength() {
+            return contentLength;
+        }
+
+        @Override
+        public void writeTo(@NonNull final BufferedSink sink) throws IOException {
+            InputStream is = null;
+            try {
+                try {
+                    is = AbstractConnectionManager.upgrade(file, new FileInputStream(file));
+                } catch (final GeneralSecurityException e) {
+                    throw new IOException("unable to initialize cipher", e);
+                }
+                transmitted = 0;
+                int count;
+                byte[] buffer = new byte[Config.FILE_TRANSFER_BUFFER_SIZE];
+                while ((count = is.read(buffer)) != -1) {
+                    if (cancelled) {
+                        throw new IOException("upload canceled");
+                    }
+                    transmitted += count;
+                    sink.write(buffer, 0, count);
+                    mHttpConnectionManager.updateConversationUi(false);
+                }
+            } finally {
+                FileBackend.close(is);
+            }
+        }
     }
 
     private void changeStatus(int status) {
@@ -0,0 +1,460 @@
+package eu.siacs.conversations.http;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.AEADBlockCipher;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.modes.SICBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.DownloadableFile;
+import eu.siacs.conversations.persistance.FileBackend;
+import okhttp3.Call;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Downloads a file as byte ranges of {@link Config#DOWNLOAD_SEGMENT_SIZE} over several
+ * connections into a preallocated file. Finished segments are recorded in a state file, which
+ * allows resuming after the process has been killed. The number of connections starts at two and
+ * is raised as long as that still increases the throughput.
+ * <p>
+ * aesgcm files are decrypted per segment with AES-CTR at the segment offset. The authentication
+ * tag, which is the end of the last segment, is verified with one pass over the plaintext once
+ * all segments are done.
+ */
+class SegmentedDownload {
+
+    private static final ExecutorService SEGMENT_EXECUTOR = Executors.newCachedThreadPool();
+
+    private static final int STATE_VERSION = 1;
+    private static final int TAG_LENGTH = 16;
+    private static final int HEADER_LENGTH = 4 + 8 + 4 + 1 + TAG_LENGTH;
+    private static final int INITIAL_CONNECTIONS = 2;
+    private static final long ADAPT_INTERVAL = 2000;
+    private static final int MAX_FAILURES = 5;
+
+    private final DownloadableFile file;
+    private final File stateFile;
+    private final long size;
+    private final long dataLength;
+    private final boolean encrypted;
+    private final int segments;
+    private final Callback callback;
+
+    private final ArrayDeque<Integer> pending = new ArrayDeque<>();
+    private final HashSet<Call> calls = new HashSet<>();
+    private final byte[] tag = new byte[TAG_LENGTH];
+    private RandomAccessFile state;
+    private FileChannel channel;
+    private int completed = 0;
+    private int running = 0;
+    private int target = INITIAL_CONNECTIONS;
+    private int failures = 0;
+    private long transmitted = 0;
+    private boolean aborted = false;
+    private IOException failure = null;
+
+    SegmentedDownload(final DownloadableFile file, final File stateFile, final Callback callback) {
+        this.file = file;
+        this.stateFile = stateFile;
+        this.size = file.getExpectedSize();
+        this.encrypted = file.getKey() != null && file.getIv() != null;
+        this.dataLength = encrypted ? size - TAG_LENGTH : size;
+        this.segments = (int) ((size + Config.DOWNLOAD_SEGMENT_SIZE - 1) / Config.DOWNLOAD_SEGMENT_SIZE);
+        this.callback = callback;
+    }
+
+    /**
+     * Files smaller than {@link Config#SEGMENTED_DOWNLOAD_THRESHOLD} are not worth the extra
+     * connections. A partial file without a state file has been written by a plain download
+     * and is resumed by appending instead. Encrypted files need a 12 byte IV to derive the
+     * counter for a given offset.
+     */
+    static boolean isEligible(final DownloadableFile file, final File stateFile) {
+        if (file.getExpectedSize() < Config.SEGMENTED_DOWNLOAD_THRESHOLD) {
+            return false;
+        }
+        if (file.exists() && !stateFile.exists()) {
+            return false;
+        }
+        return file.getKey() == null || (file.getIv() != null && file.getIv().length == 12);
+    }
+
+    /**
+     * @return false if the server does not support range requests. The caller should fall back
+     * to a plain download; a file preallocated by an earlier attempt has been removed by then.
+     */
+    boolean run() throws IOException {
+        try {
+            open();
+            final Integer first;
+            synchronized (this) {
+                first = pending.peek();
+            }
+            if (first != null) {
+                try {
+                    //the first segment is fetched alone to find out if the server supports ranges
+                    download(first, true);
+                } catch (RangeNotSupportedException e) {
+                    Log.d(Config.LOGTAG, "server does not support range requests (" + e.getMessage() + "). falling back to plain download");
+                    close();
+                    discard();
+                    return false;
+                }
+                synchronized (this) {
+                    pending.remove(first);
+                }
+                completed(first);
+            }
+            awaitSegments();
+            channel.force(false);
+            if (encrypted) {
+                verifyTag();
+            }
+            close();
+            if (!stateFile.delete()) {
+                Log.d(Config.LOGTAG, "unable to delete download state " + stateFile.getAbsolutePath());
+            }
+            return true;
+        } finally {
+            close();
+        }
+    }
+
+    private void open() throws IOException {
+        final File parent = stateFile.getParentFile();
+        if (parent != null && parent.mkdirs()) {
+            Log.d(Config.LOGTAG, "created directory for download state " + parent.getAbsolutePath());
+        }
+        final boolean resume = stateFile.exists() && file.exists() && file.getSize() == dataLength;
+        this.state = new RandomAccessFile(stateFile, "rw");
+        if (resume && isStateValid()) {
+            state.seek(HEADER_LENGTH - TAG_LENGTH);
+            state.readFully(tag);
+            final byte[] flags = new byte[segments];
+            state.readFully(flags);
+            for (int i = 0; i < segments; ++i) {
+                if (flags[i] != 0) {
+                    ++completed;
+                    transmitted += segmentLength(i);
+                } else {
+                    pending.add(i);
+                }
+            }
+            Log.d(Config.LOGTAG, "resuming segmented download of " + file.getAbsolutePath() + " with " + completed + "/" + segments + " segments");
+        } else {
+            state.setLength(0);
+            state.writeInt(STATE_VERSION);
+            state.writeLong(size);
+            state.writeInt(Config.DOWNLOAD_SEGMENT_SIZE);
+            state.writeBoolean(encrypted);
+            state.write(new byte[TAG_LENGTH + segments]);
+            for (int i = 0; i < segments; ++i) {
+                pending.add(i);
+            }
+        }
+        final File directory = file.getParentFile();
+        if (directory != null && directory.mkdirs()) {
+            Log.d(Config.LOGTAG, "created parent directories for " + file.getAbsolutePath());
+        }
+        final RandomAccessFile output = new RandomAccessFile(file, "rw");
+        if (output.length() != dataLength) {
+            output.setLength(dataLength);
+        }
+        this.channel = output.getChannel();
+    }
+
+    private boolean isStateValid() throws IOException {
+        if (state.length() != HEADER_LENGTH + segments) {
+            return false;
+        }
+        state.seek(0);
+        return state.readInt() == STATE_VERSION
+                && state.readLong() == size
+                && state.readInt() == Config.DOWNLOAD_SEGMENT_SIZE
+                && state.readBoolean() == encrypted;
+    }
+
+    private void awaitSegments() throws IOException {
+        long lastCheck = SystemClock.elapsedRealtime();
+        long lastTransmitted;
+        synchronized (this) {
+            lastTransmitted = transmitted;
+        }
+        double lastRate = 0;
+        boolean increased = false;
+        boolean settled = false;
+        synchronized (this) {
+            while (completed < segments) {
+                if (callback.isCanceled()) {
+                    abort(null);
+                    throw new CancellationException();
+                }
+                if (failure != null) {
+                    abort(failure);
+                    throw failure;
+                }
+                while (running < Math.min(target, pending.size())) {
+                    ++running;
+                    SEGMENT_EXECUTOR.execute(this::work);
+                }
+                try {
+                    wait(ADAPT_INTERVAL);
+                } catch (InterruptedException e) {
+                    abort(null);
+                    throw new CancellationException();
+                }
+                final long now = SystemClock.elapsedRealtime();
+                if (now - lastCheck >= ADAPT_INTERVAL) {
+                    final double rate = (transmitted - lastTransmitted) / (double) (now - lastCheck);
+                    if (increased) {
+                        if (rate < lastRate * 1.1) {
+                            //the last connection did not help
+                            --target;
+                            settled = true;
+                        }
+                        increased = false;
+                    } else if (!settled && target < Config.MAX_DOWNLOAD_CONNECTIONS && pending.size() > target) {
+                        ++target;
+                        increased = true;
+                    }
+                    lastRate = rate;
+                    lastCheck = now;
+                    lastTransmitted = transmitted;
+                }
+            }
+        }
+    }
+
+    private void work() {
+        while (true) {
+            final Integer segment;
+            synchronized (this) {
+                if (aborted || running > target || pending.isEmpty()) {
+                    --running;
+                    notifyAll();
+                    return;
+                }
+                segment = pending.poll();
+            }
+            try {
+                download(segment, false);
+                completed(segment);
+            } catch (final Exception e) {
+                synchronized (this) {
+                    if (!aborted) {
+                        Log.d(Config.LOGTAG, "segment " + segment + " of " + file.getAbsolutePath() + " failed", e);
+                        pending.addFirst(segment);
+                        if (++failures > MAX_FAILURES) {
+                            failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                        }
+                    }
+                    --running;
+                    notifyAll();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void download(final int segment, final boolean probe) throws IOException {
+        final long from = (long) segment * Config.DOWNLOAD_SEGMENT_SIZE;
+        final long to = from + segmentLength(segment) - 1;
+        final Call call = callback.newCall(new Request.Builder().header("Range", "bytes=" + from + "-" + to));
+        synchronized (this) {
+            calls.add(call);
+        }
+        Response response = null;
+        InputStream is = null;
+        long received = 0;
+        try {
+            response = call.execute();
+            final String contentRange = response.header("Content-Range");
+            if (response.code() != 206
+                    || contentRange == null
+                    || !contentRange.startsWith("bytes " + from + "-" + to + "/")) {
+                if (probe) {
+                    throw new RangeNotSupportedException(response.code() + " " + contentRange);
+                }
+                throw new IOException("unexpected response to range request " + response.code() + " " + contentRange);
+            }
+            is = response.body().byteStream();
+            final SICBlockCipher cipher = encrypted && from < dataLength ? createCipher(from) : null;
+            final byte[] buffer = new byte[Config.FILE_TRANSFER_BUFFER_SIZE];
+            final byte[] plaintext = cipher == null ? null : new byte[buffer.length];
+            long position = from;
+            int count;
+            while (position <= to && (count = is.read(buffer, 0, (int) Math.min(buffer.length, to + 1 - position))) != -1) {
+                final int data = (int) Math.max(0, Math.min(count, dataLength - position));
+                if (data > 0) {
+                    final ByteBuffer bytes;
+                    if (cipher != null) {
+                        cipher.processBytes(buffer, 0, data, plaintext, 0);
+                        bytes = ByteBuffer.wrap(plaintext, 0, data);
+                    } else {
+                        bytes = ByteBuffer.wrap(buffer, 0, data);
+                    }
+                    long offset = position;
+                    while (bytes.hasRemaining()) {
+                        offset += channel.write(bytes, offset);
+                    }
+                }
+                if (data < count) {
+                    synchronized (tag) {
+                        final int tagOffset = (int) (position + data - dataLength);
+                        System.arraycopy(buffer, data, tag, tagOffset, count - data);
+                    }
+                }
+                position += count;
+                received += count;
+                progress(count);
+                if (aborted || callback.isCanceled()) {
+                    throw new CancellationException();
+                }
+            }
+            if (position != to + 1) {
+                throw new IOException("segment " + segment + " ended after " + (position - from) + " bytes");
+            }
+        } catch (final IOException | RuntimeException e) {
+            //the segment will be downloaded again
+            progress(-received);
+            throw e;
+        } finally {
+            FileBackend.close(is);
+            FileBackend.close(response);
+            synchronized (this) {
+                calls.remove(call);
+            }
+        }
+    }
+
+    private SICBlockCipher createCipher(final long offset) {
+        //gcm encrypts the data with the counter starting at iv || 2
+        final byte[] counter = new byte[16];
+        System.arraycopy(file.getIv(), 0, counter, 0, 12);
+        counter[15] = 2;
+        final SICBlockCipher cipher = new SICBlockCipher(new AESEngine());
+        cipher.init(true, new ParametersWithIV(new KeyParameter(file.getKey()), counter));
+        cipher.seekTo(offset);
+        return cipher;
+    }
+
+    private void completed(final int segment) throws IOException {
+        synchronized (this) {
+            final long end = (long) segment * Config.DOWNLOAD_SEGMENT_SIZE + segmentLength(segment);
+            if (encrypted && end > dataLength) {
+                synchronized (tag) {
+                    state.seek(HEADER_LENGTH - TAG_LENGTH);
+                    state.write(tag);
+                }
+            }
+            state.seek(HEADER_LENGTH + segment);
+            state.writeBoolean(true);
+            ++completed;
+            notifyAll();
+        }
+    }
+
+    private void progress(final long count) {
+        final long transmitted;
+        synchronized (this) {
+            this.transmitted += count;
+            transmitted = this.transmitted;
+        }
+        callback.onProgress(transmitted, size);
+    }
+
+    private long segmentLength(final int segment) {
+        final long from = (long) segment * Config.DOWNLOAD_SEGMENT_SIZE;
+        return Math.min(Config.DOWNLOAD_SEGMENT_SIZE, size - from);
+    }
+
+    private void verifyTag() throws IOException {
+        final AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        cipher.init(true, new AEADParameters(new KeyParameter(file.getKey()), 128, file.getIv()));
+        final byte[] buffer = new byte[Config.FILE_TRANSFER_BUFFER_SIZE];
+        final byte[] ciphertext = new byte[buffer.length + 64];
+        try (final InputStream is = new FileInputStream(file)) {
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                cipher.processBytes(buffer, 0, count, ciphertext, 0);
+            }
+            cipher.doFinal(ciphertext, 0);
+        } catch (final InvalidCipherTextException e) {
+            throw new IOException(e);
+        }
+        if (!MessageDigest.isEqual(cipher.getMac(), tag)) {
+            close();
+            discard();
+            throw new IOException("authentication tag of " + file.getAbsolutePath() + " did not match");
+        }
+    }
+
+    private void abort(final IOException e) {
+        aborted = true;
+        for (final Call call : calls) {
+            call.cancel();
+        }
+        while (running > 0) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+        if (e != null) {
+            Log.d(Config.LOGTAG, "segmented download of " + file.getAbsolutePath() + " failed", e);
+        }
+    }
+
+    private synchronized void close() {
+        FileBackend.close(channel);
+        FileBackend.close(state);
+        channel = null;
+        state = null;
+    }
+
+    private void discard() {
+        if (file.exists() && !file.delete()) {
+            Log.d(Config.LOGTAG, "unable to delete " + file.getAbsolutePath());
+        }
+        if (stateFile.exists() && !stateFile.delete()) {
+            Log.d(Config.LOGTAG, "unable to delete download state " + stateFile.getAbsolutePath());
+        }
+    }
+
+    interface Callback {
+        Call newCall(Request.Builder request);
+
+        void onProgress(long transmitted, long size);
+
+        boolean isCanceled();
+    }
+
+    private static class RangeNotSupportedException extends IOException {
+        private RangeNotSupportedException(final String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package eu.siacs.conversations.http;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.entities.Conversational;
+import eu.siacs.conversations.entities.Message;
+import eu.siacs.conversations.services.XmppConnectionService;
+
+/**
+ * Runs up to {@link Config#MAX_PARALLEL_TRANSFERS} transfers at a time with no more than
+ * {@link Config#MAX_TRANSFERS_PER_HOST} to the same host. Waiting transfers are started in the
+ * order: transfers the user started, transfers in the conversation on screen, small files and
+ * then everything else. Within the same class the account with the fewest running transfers
+ * goes first, so one account with a long queue does not hold up the others.
+ * <p>
+ * An upload is sent as a message once it is done, so uploads that run side by side would send
+ * their messages in the order they happen to finish. A scheduler for uploads therefore runs the
+ * transfers of a conversation one at a time, in the order they were scheduled.
+ */
+public class TransferScheduler {
+
+    private static final int PRIORITY_INTERACTIVE = 0;
+    private static final int PRIORITY_VISIBLE = 1;
+    private static final int PRIORITY_SMALL = 2;
+    private static final int PRIORITY_DEFAULT = 3;
+
+    private final String name;
+    private final XmppConnectionService service;
+    private final boolean ordered;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ArrayList<Transfer> queue = new ArrayList<>();
+    private final HashMap<String, Integer> runningByHost = new HashMap<>();
+    private final HashMap<Account, Integer> runningByAccount = new HashMap<>();
+    private final HashMap<Conversational, Integer> runningByConversation = new HashMap<>();
+    private int running = 0;
+    private long sequence = 0;
+
+    TransferScheduler(final String name, final XmppConnectionService service, final boolean ordered) {
+        this.name = name;
+        this.service = service;
+        this.ordered = ordered;
+    }
+
+    public synchronized void schedule(final Transfer transfer) {
+        transfer.sequence = sequence++;
+        queue.add(transfer);
+        scheduleNext();
+    }
+
+    private synchronized void scheduleNext() {
+        while (running < Config.MAX_PARALLEL_TRANSFERS) {
+            final Transfer transfer = next();
+            if (transfer == null) {
+                break;
+            }
+            queue.remove(transfer);
+            ++running;
+            increment(runningByHost, transfer.host, 1);
+            increment(runningByAccount, transfer.getAccount(), 1);
+            increment(runningByConversation, transfer.message.getConversation(), 1);
+            executor.execute(() -> {
+                try {
+                    transfer.runnable.run();
+                } catch (final Exception e) {
+                    Log.d(Config.LOGTAG, "uncaught exception in transfer on '" + name + "'", e);
+                } finally {
+                    finished(transfer);
+                }
+            });
+        }
+        if (queue.size() > 0) {
+            Log.d(Config.LOGTAG, queue.size() + " transfers waiting on '" + name + "' (" + running + " running)");
+        }
+    }
+
+    private Transfer next() {
+        Transfer best = null;
+        int bestPriority = Integer.MAX_VALUE;
+        int bestShare = Integer.MAX_VALUE;
+        for (final Transfer transfer : queue) {
+            if (get(runningByHost, transfer.host) >= Config.MAX_TRANSFERS_PER_HOST) {
+                continue;
+            }
+            if (ordered && isBlockedInConversation(transfer)) {
+                continue;
+            }
+            final int priority = getPriority(transfer);
+            final int share = get(runningByAccount, transfer.getAccount());
+            if (priority < bestPriority
+                    || (priority == bestPriority && share < bestShare)
+                    || (priority == bestPriority && share == bestShare && transfer.sequence < best.sequence)) {
+                best = transfer;
+                bestPriority = priority;
+                bestShare = share;
+            }
+        }
+        return best;
+    }
+
+    private boolean isBlockedInConversation(final Transfer transfer) {
+        final Conversational conversation = transfer.message.getConversation();
+        if (get(runningByConversation, conversation) > 0) {
+            return true;
+        }
+        for (final Transfer other : queue) {
+            if (other.sequence < transfer.sequence && other.message.getConversation() == conversation) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int getPriority(final Transfer transfer) {
+        if (transfer.interactive) {
+            return PRIORITY_INTERACTIVE;
+        } else if (service.getNotificationService().isConversationOpen(transfer.message.getConversation())) {
+            return PRIORITY_VISIBLE;
+        } else if (transfer.size > 0 && transfer.size <= Config.SMALL_TRANSFER_SIZE) {
+            return PRIORITY_SMALL;
+        } else {
+            return PRIORITY_DEFAULT;
+        }
+    }
+
+    private synchronized void finished(final Transfer transfer) {
+        --running;
+        increment(runningByHost, transfer.host, -1);
+        increment(runningByAccount, transfer.getAccount(), -1);
+        increment(runningByConversation, transfer.message.getConversation(), -1);
+        scheduleNext();
+    }
+
+    private static <K> int get(final HashMap<K, Integer> map, final K key) {
+        final Integer value = map.get(key);
+        return value == null ? 0 : value;
+    }
+
+    private static <K> void increment(final HashMap<K, Integer> map, final K key, final int delta) {
+        final int value = get(map, key) + delta;
+        if (value == 0) {
+            map.remove(key);
+        } else {
+            map.put(key, value);
+        }
+    }
+
+    public static class Transfer {
+        private final Message message;
+        private final String host;
+        private final long size;
+        private final boolean interactive;
+        private final Runnable runnable;
+        private long sequence;
+
+        public Transfer(final Message message, final String host, final long size, final boolean interactive, final Runnable runnable) {
+            this.message = message;
+            this.host = host == null ? "" : host.toLowerCase();
+            this.size = size;
+            this.interactive = interactive;
+            this.runnable = runnable;
+        }
+
+        private Account getAccount() {
+            final Conversational conversation = message.getConversation();
+            return conversation == null ? null : conversation.getAccount();
+        }
+    }
+}
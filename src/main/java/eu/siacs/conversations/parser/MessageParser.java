@@ -3,17 +3,29 @@ package eu.siacs.conversations.parser;
 import android.util.Log;
 import android.util.Pair;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
 import java.net.URL;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
@@ -58,6 +70,11 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
 
     private static final List<String> JINGLE_MESSAGE_ELEMENT_NAMES = Arrays.asList("accept", "propose", "proceed", "reject", "retract");
 
+    private static final ListeningExecutorService DECRYPTION_EXECUTOR = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()))));
+    private static final ConcurrentHashMap<String, ListenableFuture<?>> DECRYPTION_LANES = new ConcurrentHashMap<>();
+
+    private final HashMap<Account, ArrayDeque<Deferred>> deferredQueues = new HashMap<>();
+
     public MessageParser(XmppConnectionService service) {
         super(service);
     }
@@ -129,7 +146,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
         return false;
     }
 
-    private Message parseAxolotlChat(Element axolotlMessage, Jid from, Conversation conversation, int status, final boolean checkedForDuplicates, boolean postpone) {
+    private Message parseAxolotlChat(Element axolotlMessage, Jid from, Conversation conversation, int status, final boolean checkedForDuplicates, boolean postpone, final Decryption decryption) {
         final AxolotlService service = conversation.getAccount().getAxolotlService();
         final XmppAxolotlMessage xmppAxolotlMessage;
         try {
@@ -141,7 +158,11 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
         if (xmppAxolotlMessage.hasPayload()) {
             final XmppAxolotlMessage.XmppAxolotlPlaintextMessage plaintextMessage;
             try {
-                plaintextMessage = service.processReceivingPayloadMessage(xmppAxolotlMessage, postpone);
+                if (decryption != null) {
+                    plaintextMessage = decryption.getPlaintextMessage();
+                } else {
+                    plaintextMessage = service.processReceivingPayloadMessage(xmppAxolotlMessage, postpone);
+                }
             } catch (BrokenSessionException e) {
                 if (checkedForDuplicates) {
                     if (service.trustedOrPreviouslyResponded(from.asBareJid())) {
@@ -239,7 +260,11 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
             Set<Integer> deviceIds = mXmppConnectionService.getIqParser().deviceIds(item);
             Log.d(Config.LOGTAG, AxolotlService.getLogprefix(account) + "Received PEP device list " + deviceIds + " update from " + from + ", processing... ");
             AxolotlService axolotlService = account.getAxolotlService();
+            axolotlService.invalidateCachedBundles(from);
             axolotlService.registerDevices(from, deviceIds);
+        } else if (node != null && node.startsWith(AxolotlService.PEP_BUNDLES + ":")) {
+            Log.d(Config.LOGTAG, AxolotlService.getLogprefix(account) + "Received PEP bundle update from " + from);
+            account.getAxolotlService().invalidateCachedBundles(from);
         } else if (Namespace.BOOKMARKS.equals(node) && account.getJid().asBareJid().equals(from)) {
             if (account.getXmppConnection().getFeatures().bookmarksConversion()) {
                 final Element i = items.findChild("item");
@@ -361,6 +386,180 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
 
     @Override
     public void onMessagePacketReceived(Account account, MessagePacket original) {
+        final Deferred deferred = decryptAhead(account, original);
+        final ArrayDeque<Deferred> queue = getDeferredQueue(account);
+        final boolean queued;
+        synchronized (queue) {
+            queued = deferred != null || !queue.isEmpty();
+            if (queued) {
+                //everything behind a pending decryption has to wait for it to keep the order
+                queue.add(deferred != null ? deferred : new Deferred(original, null, null));
+            }
+        }
+        if (queued) {
+            processDeferred(account, false);
+        } else {
+            process(account, original, null);
+        }
+    }
+
+    /**
+     * processes queued messages whose decryption has finished, in the order they were received.
+     * Called on the connection thread for every message and, waiting for the outstanding
+     * decryptions, before a MAM page is finished.
+     */
+    public void processDeferred(final Account account, final boolean wait) {
+        final ArrayDeque<Deferred> queue = getDeferredQueue(account);
+        while (true) {
+            final Deferred head;
+            synchronized (queue) {
+                head = queue.peek();
+            }
+            if (head == null || (!wait && head.decryption != null && !head.decryption.isDone())) {
+                return;
+            }
+            final Decryption decryption;
+            try {
+                decryption = head.decryption == null ? null : Futures.getUnchecked(head.decryption);
+            } catch (final CancellationException e) {
+                return;
+            }
+            synchronized (queue) {
+                if (queue.peek() != head) {
+                    return;
+                }
+                queue.poll();
+            }
+            process(account, head.original, decryption);
+        }
+    }
+
+    /**
+     * empties the message queue of an account when the connection is reset or the account is
+     * removed. Decryptions that have finished or are already running have advanced the ratchet,
+     * so a refetch of those messages could no longer be decrypted. Their results are processed
+     * (waiting for the running ones) unless the account is being removed. Decryptions at the end
+     * of the queue that have not started yet are dropped; the catch-up after reconnecting fetches
+     * those messages again.
+     *
+     * @param process false to drop everything, e.g. because the account has been deleted
+     */
+    public void resetDeferred(final Account account, final boolean process) {
+        final ArrayDeque<Deferred> queue;
+        synchronized (deferredQueues) {
+            queue = deferredQueues.remove(account);
+        }
+        if (queue == null) {
+            return;
+        }
+        final List<Deferred> pending;
+        synchronized (queue) {
+            pending = new ArrayList<>(queue);
+            queue.clear();
+        }
+        //only a tail of messages that have not been decrypted can be dropped without leaving a gap
+        int kept = pending.size();
+        while (kept > 0 && (pending.get(kept - 1).drop() || !process)) {
+            --kept;
+        }
+        for (final Deferred deferred : pending.subList(0, kept)) {
+            final Decryption decryption;
+            try {
+                decryption = deferred.decryption == null ? null : Futures.getUnchecked(deferred.decryption);
+            } catch (final CancellationException e) {
+                continue;
+            }
+            process(account, deferred.original, decryption);
+        }
+        final int dropped = pending.size() - kept;
+        if (dropped > 0) {
+            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": dropped " + dropped + " messages waiting for decryption");
+        }
+    }
+
+    private ArrayDeque<Deferred> getDeferredQueue(final Account account) {
+        synchronized (deferredQueues) {
+            ArrayDeque<Deferred> queue = deferredQueues.get(account);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                deferredQueues.put(account, queue);
+            }
+            return queue;
+        }
+    }
+
+    /**
+     * starts decrypting an OMEMO encrypted MAM result on the decryption pool. Messages of the
+     * same session are decrypted one after another in the order they were received, messages of
+     * different sessions concurrently.
+     *
+     * @return null if the message is not a MAM result with an OMEMO payload or the sender can
+     * not be determined without the rest of the parsing. Those are decrypted inline.
+     */
+    private Deferred decryptAhead(final Account account, final MessagePacket original) {
+        if (!Config.supportOmemo()) {
+            return null;
+        }
+        final Element result = MessageArchiveService.Version.findResult(original);
+        final String queryId = result == null ? null : result.getAttribute("queryid");
+        final MessageArchiveService.Query query = queryId == null ? null : mXmppConnectionService.getMessageArchiveService().findQuery(queryId);
+        if (query == null || !query.validFrom(original.getFrom())) {
+            return null;
+        }
+        final Pair<MessagePacket, Long> forwarded = original.getForwardedMessagePacket("result", query.version.namespace);
+        if (forwarded == null) {
+            return null;
+        }
+        final MessagePacket packet = forwarded.first;
+        final Element axolotlEncrypted = packet.findChildEnsureSingle(XmppAxolotlMessage.CONTAINERTAG, AxolotlService.PEP_PREFIX);
+        if (axolotlEncrypted == null || !axolotlEncrypted.hasChild("payload") || packet.getFrom() == null) {
+            return null;
+        }
+        final Element mucUserElement = packet.findChild("x", Namespace.MUC_USER);
+        final Jid origin;
+        if (query.muc()) {
+            origin = getTrueCounterpart(mucUserElement, null);
+        } else {
+            origin = mucUserElement == null ? packet.getFrom() : null;
+        }
+        if (origin == null) {
+            return null;
+        }
+        final XmppAxolotlMessage xmppAxolotlMessage;
+        final int sourceId;
+        try {
+            xmppAxolotlMessage = XmppAxolotlMessage.fromElement(axolotlEncrypted, origin.asBareJid());
+            sourceId = XmppAxolotlMessage.parseSourceId(axolotlEncrypted);
+        } catch (final Exception e) {
+            return null;
+        }
+        final AxolotlService service = account.getAxolotlService();
+        final AtomicBoolean started = new AtomicBoolean(false);
+        final Callable<Decryption> task = () -> {
+            if (!started.compareAndSet(false, true)) {
+                //dropped by resetDeferred()
+                return null;
+            }
+            try {
+                return new Decryption(origin, service.processReceivingPayloadMessage(xmppAxolotlMessage, true), null);
+            } catch (final Exception e) {
+                return new Decryption(origin, null, e);
+            }
+        };
+        final String lane = account.getUuid() + "/" + origin.asBareJid() + "/" + sourceId;
+        final ListenableFuture<?> previous = DECRYPTION_LANES.get(lane);
+        final ListenableFuture<Decryption> decryption;
+        if (previous == null) {
+            decryption = DECRYPTION_EXECUTOR.submit(task);
+        } else {
+            decryption = Futures.whenAllComplete(previous).call(task, DECRYPTION_EXECUTOR);
+        }
+        DECRYPTION_LANES.put(lane, decryption);
+        decryption.addListener(() -> DECRYPTION_LANES.remove(lane, decryption), MoreExecutors.directExecutor());
+        return new Deferred(original, decryption, started);
+    }
+
+    private void process(Account account, MessagePacket original, final Decryption decryption) {
         if (handleErrorMessage(account, original)) {
             return;
         }
@@ -477,6 +676,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
         if ((body != null || pgpEncrypted != null || (axolotlEncrypted != null && axolotlEncrypted.hasChild("payload")) || oobUrl != null || xP1S3 != null) && !isMucStatusMessage) {
             final boolean conversationIsProbablyMuc = isTypeGroupChat || mucUserElement != null || account.getXmppConnection().getMucServersWithholdAccount().contains(counterpart.getDomain().toEscapedString());
             final Conversation conversation = mXmppConnectionService.findOrCreateConversation(account, counterpart.asBareJid(), conversationIsProbablyMuc, false, query, false);
+            mXmppConnectionService.ensureMessagesRestored(conversation);
             final boolean conversationMultiMode = conversation.getMode() == Conversation.MODE_MULTI;
             if (serverMsgId == null) {
                 serverMsgId = extractStanzaId(packet, isTypeGroupChat, conversation);
@@ -545,11 +745,18 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                 final boolean checkedForDuplicates = liveMessage || (serverMsgId != null && remoteMsgId != null && !conversation.possibleDuplicate(serverMsgId, remoteMsgId));
 
                 if (origin != null) {
-                    message = parseAxolotlChat(axolotlEncrypted, origin, conversation, status, checkedForDuplicates, query != null);
+                    final Decryption precomputed;
+                    if (decryption == null || decryption.origin.equals(origin)) {
+                        precomputed = decryption;
+                    } else {
+                        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": decrypted ahead for " + decryption.origin + " but message is from " + origin);
+                        precomputed = null;
+                    }
+                    message = parseAxolotlChat(axolotlEncrypted, origin, conversation, status, checkedForDuplicates, query != null, precomputed);
                 } else {
                     Message trial = null;
                     for (Jid fallback : fallbacksBySourceId) {
-                        trial = parseAxolotlChat(axolotlEncrypted, fallback, conversation, status, checkedForDuplicates && fallbacksBySourceId.size() == 1, query != null);
+                        trial = parseAxolotlChat(axolotlEncrypted, fallback, conversation, status, checkedForDuplicates && fallbacksBySourceId.size() == 1, query != null, null);
                         if (trial != null) {
                             Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": decoded muc message using fallback");
                             origin = fallback;
@@ -798,7 +1005,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
             if (isTypeGroupChat) {
                 if (packet.hasChild("subject")) { //TODO usually we would want to check for lack of body; however some servers do set a body :(
                     if (conversation != null && conversation.getMode() == Conversation.MODE_MULTI) {
-                        conversation.setHasMessagesLeftOnServer(conversation.countMessages() > 0);
+                        conversation.setHasMessagesLeftOnServer(conversation.hasMessages());
                         final LocalizedContent subject = packet.findInternationalizedChildContentInDefaultNamespace("subject");
                         if (subject != null && conversation.getMucOptions().setSubject(subject.content)) {
                             mXmppConnectionService.updateConversation(conversation);
@@ -1130,4 +1337,52 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
             return false;
         }
     }
-}
\ No newline at end of file
+
+    private static class Deferred {
+        private final MessagePacket original;
+        private final ListenableFuture<Decryption> decryption;
+        private final AtomicBoolean started;
+
+        private Deferred(final MessagePacket original, final ListenableFuture<Decryption> decryption, final AtomicBoolean started) {
+            this.original = original;
+            this.decryption = decryption;
+            this.started = started;
+        }
+
+        /**
+         * @return true if the decryption had not started yet and now never will
+         */
+        private boolean drop() {
+            if (started == null || !started.compareAndSet(false, true)) {
+                return false;
+            }
+            decryption.cancel(false);
+            return true;
+        }
+    }
+
+    private static class Decryption {
+        private final Jid origin;
+        private final XmppAxolotlMessage.XmppAxolotlPlaintextMessage plaintextMessage;
+        private final Exception exception;
+
+        private Decryption(final Jid origin, final XmppAxolotlMessage.XmppAxolotlPlaintextMessage plaintextMessage, final Exception exception) {
+            this.origin = origin;
+            this.plaintextMessage = plaintextMessage;
+            this.exception = exception;
+        }
+
+        private XmppAxolotlMessage.XmppAxolotlPlaintextMessage getPlaintextMessage() throws BrokenSessionException, NotEncryptedForThisDeviceException, OutdatedSenderException {
+            if (exception instanceof BrokenSessionException) {
+                throw (BrokenSessionException) exception;
+            } else if (exception instanceof NotEncryptedForThisDeviceException) {
+                throw (NotEncryptedForThisDeviceException) exception;
+            } else if (exception instanceof OutdatedSenderException) {
+                throw (OutdatedSenderException) exception;
+            } else if (exception instanceof RuntimeException) {
+                throw (RuntimeException) exception;
+            }
+            return plaintextMessage;
+        }
+    }
+}
@@ -4,6 +4,8 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.crypto.PgpEngine;
@@ -18,6 +20,7 @@ import eu.siacs.conversations.generator.IqGenerator;
 import eu.siacs.conversations.generator.PresenceGenerator;
 import eu.siacs.conversations.services.XmppConnectionService;
 import eu.siacs.conversations.utils.Namespace;
+import eu.siacs.conversations.utils.SerialSingleThreadExecutor;
 import eu.siacs.conversations.utils.XmppUri;
 import eu.siacs.conversations.xml.Element;
 import eu.siacs.conversations.xmpp.InvalidJid;
@@ -29,6 +32,9 @@ import eu.siacs.conversations.xmpp.Jid;
 public class PresenceParser extends AbstractParser implements
         OnPresencePacketReceived {
 
+    private final Map<MucOptions, List<PresencePacket>> joinBursts = new WeakHashMap<>();
+    private final SerialSingleThreadExecutor joinBurstFetchExecutor = new SerialSingleThreadExecutor("MucJoinFetches");
+
     public PresenceParser(XmppConnectionService service) {
         super(service);
     }
@@ -37,14 +43,36 @@ public class PresenceParser extends AbstractParser implements
         final Conversation conversation = packet.getFrom() == null ? null : mXmppConnectionService.find(account, packet.getFrom().asBareJid());
         if (conversation != null) {
             final MucOptions mucOptions = conversation.getMucOptions();
+            if (bufferJoinBurst(mucOptions, packet)) {
+                return;
+            }
+            final List<PresencePacket> burst = takeJoinBurst(mucOptions);
+            Batch batch = burst == null ? null : new Batch();
             boolean before = mucOptions.online();
             int count = mucOptions.getUserCount();
             final List<MucOptions.User> tileUserBefore = mucOptions.getUsers(5);
-            processConferencePresence(packet, conversation);
+            if (burst != null) {
+                if ("error".equals(packet.getAttribute("type"))) {
+                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": discarding " + burst.size() + " occupant presences of " + mucOptions.getConversation().getJid().asBareJid() + " after join error");
+                } else {
+                    for (final PresencePacket occupant : burst) {
+                        processConferencePresence(occupant, conversation, batch);
+                    }
+                }
+                if (burst.size() >= Config.MUC_JOIN_BURST_LIMIT && !isSelfPresence(packet)) {
+                    //the burst is full; flush it before the presence that did not fit anymore
+                    finish(batch, mucOptions);
+                    batch = null;
+                }
+            }
+            processConferencePresence(packet, conversation, batch);
             final List<MucOptions.User> tileUserAfter = mucOptions.getUsers(5);
             if (!tileUserAfter.equals(tileUserBefore)) {
                 mXmppConnectionService.getAvatarService().clear(mucOptions);
             }
+            if (batch != null) {
+                finish(batch, mucOptions);
+            }
             if (before != mucOptions.online() || (mucOptions.online() && count != mucOptions.getUserCount())) {
                 mXmppConnectionService.updateConversationUi();
             } else if (mucOptions.online()) {
@@ -53,7 +81,71 @@ public class PresenceParser extends AbstractParser implements
         }
     }
 
-    private void processConferencePresence(PresencePacket packet, Conversation conversation) {
+    /**
+     * while joining, the presences of the other occupants arrive before our own (status code
+     * 110). Those are collected and applied in one go once the self presence (or an error)
+     * arrives, instead of refreshing the UI for every single one of them.
+     *
+     * @return true if the presence has been buffered
+     */
+    private boolean bufferJoinBurst(final MucOptions mucOptions, final PresencePacket packet) {
+        if (mucOptions.online() || mucOptions.getError() != MucOptions.Error.NONE) {
+            return false;
+        }
+        final String type = packet.getAttribute("type");
+        if (type != null && !type.equals("unavailable")) {
+            return false;
+        }
+        final Element x = packet.findChild("x", Namespace.MUC_USER);
+        if (x == null || packet.getFrom().isBareJid()) {
+            return false;
+        }
+        if (isSelfPresence(packet)) {
+            return false;
+        }
+        synchronized (joinBursts) {
+            List<PresencePacket> burst = joinBursts.get(mucOptions);
+            if (burst == null) {
+                burst = new ArrayList<>();
+                joinBursts.put(mucOptions, burst);
+            } else if (burst.size() >= Config.MUC_JOIN_BURST_LIMIT) {
+                return false;
+            }
+            burst.add(packet);
+            return true;
+        }
+    }
+
+    private static boolean isSelfPresence(final PresencePacket packet) {
+        final List<String> codes = getStatusCodes(packet.findChild("x", Namespace.MUC_USER));
+        return codes.contains(MucOptions.STATUS_CODE_SELF_PRESENCE) || codes.contains(MucOptions.STATUS_CODE_ROOM_CREATED);
+    }
+
+    private List<PresencePacket> takeJoinBurst(final MucOptions mucOptions) {
+        synchronized (joinBursts) {
+            return joinBursts.remove(mucOptions);
+        }
+    }
+
+    private void finish(final Batch batch, final MucOptions mucOptions) {
+        if (batch.rosterChanged) {
+            mXmppConnectionService.updateRosterUi();
+        }
+        final int size = batch.fetches.size();
+        if (size > Config.MUC_JOIN_MAX_DEFERRED_FETCHES) {
+            Log.d(Config.LOGTAG, mucOptions.getAccount().getJid().asBareJid() + ": skipping " + (size - Config.MUC_JOIN_MAX_DEFERRED_FETCHES) + " avatar and device list fetches after joining " + mucOptions.getConversation().getJid().asBareJid());
+        }
+        for (final Runnable fetch : batch.fetches.subList(0, Math.min(size, Config.MUC_JOIN_MAX_DEFERRED_FETCHES))) {
+            joinBurstFetchExecutor.execute(fetch);
+        }
+    }
+
+    private static class Batch {
+        private final List<Runnable> fetches = new ArrayList<>();
+        private boolean rosterChanged = false;
+    }
+
+    private void processConferencePresence(PresencePacket packet, Conversation conversation, final Batch batch) {
         MucOptions mucOptions = conversation.getMucOptions();
         final Jid jid = conversation.getAccount().getJid();
         final Jid from = packet.getFrom();
@@ -87,7 +179,12 @@ public class PresenceParser extends AbstractParser implements
                                 && mucOptions.isPrivateAndNonAnonymous()
                                 && (contact == null || !contact.mutualPresenceSubscription())
                                 && axolotlService.hasEmptyDeviceList(user.getRealJid())) {
-                            axolotlService.fetchDeviceIds(user.getRealJid());
+                            final Jid realJid = user.getRealJid();
+                            if (batch == null) {
+                                axolotlService.fetchDeviceIds(realJid);
+                            } else {
+                                batch.fetches.add(() -> axolotlService.fetchDeviceIds(realJid));
+                            }
                         }
                         if (codes.contains(MucOptions.STATUS_CODE_ROOM_CREATED) && mucOptions.autoPushConfiguration()) {
                             Log.d(Config.LOGTAG, mucOptions.getAccount().getJid().asBareJid()
@@ -120,11 +217,20 @@ public class PresenceParser extends AbstractParser implements
                                     if (c.setAvatar(avatar)) {
                                         mXmppConnectionService.syncRoster(conversation.getAccount());
                                         mXmppConnectionService.getAvatarService().clear(c);
-                                        mXmppConnectionService.updateRosterUi();
+                                        if (batch == null) {
+                                            mXmppConnectionService.updateRosterUi();
+                                        } else {
+                                            batch.rosterChanged = true;
+                                        }
                                     }
                                 }
                             } else if (mXmppConnectionService.isDataSaverDisabled()) {
-                                mXmppConnectionService.fetchAvatar(mucOptions.getAccount(), avatar);
+                                if (batch == null) {
+                                    mXmppConnectionService.fetchAvatar(mucOptions.getAccount(), avatar);
+                                } else {
+                                    final Avatar pending = avatar;
+                                    batch.fetches.add(() -> mXmppConnectionService.fetchAvatar(mucOptions.getAccount(), pending));
+                                }
                             }
                         }
                     }
@@ -347,7 +453,7 @@ public class PresenceParser extends AbstractParser implements
                 final String statusMessage = packet.findChildContent("status");
                 if (statusMessage != null
                         && !statusMessage.isEmpty()
-                        && conversation.countMessages() == 0) {
+                        && !conversation.hasMessages()) {
                     conversation.add(new Message(
                             conversation,
                             statusMessage,
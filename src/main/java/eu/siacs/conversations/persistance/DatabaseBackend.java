@@ -29,6 +29,7 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -45,6 +46,7 @@ import eu.siacs.conversations.crypto.axolotl.SQLiteAxolotlStore;
 import eu.siacs.conversations.entities.Account;
 import eu.siacs.conversations.entities.Contact;
 import eu.siacs.conversations.entities.Conversation;
+import eu.siacs.conversations.entities.ConversationSummary;
 import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.entities.PresenceTemplate;
 import eu.siacs.conversations.entities.Roster;
@@ -63,8 +65,10 @@ import static eu.siacs.conversations.ui.util.UpdateHelper.moveData;
 public class DatabaseBackend extends SQLiteOpenHelper {
 
     public static final String DATABASE_NAME = "history";
-    public static final int DATABASE_VERSION = 53; // = Conversations DATABASE_VERSION + 6
+    public static final int DATABASE_VERSION = 58; // = Conversations DATABASE_VERSION + 10
     private static DatabaseBackend instance = null;
+    private static final DatabaseStatistics STATISTICS = new DatabaseStatistics();
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
 
     private static String CREATE_CONTATCS_STATEMENT = "create table "
             + Contact.TABLENAME + "(" + Contact.ACCOUNT + " TEXT, "
@@ -99,7 +103,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             + SQLiteAxolotlStore.PREKEY_TABLENAME + "("
             + SQLiteAxolotlStore.ACCOUNT + " TEXT,  "
             + SQLiteAxolotlStore.ID + " INTEGER, "
-            + SQLiteAxolotlStore.KEY + " TEXT, FOREIGN KEY("
+            + SQLiteAxolotlStore.KEY + " BLOB, FOREIGN KEY("
             + SQLiteAxolotlStore.ACCOUNT
             + ") REFERENCES " + Account.TABLENAME + "(" + Account.UUID + ") ON DELETE CASCADE, "
             + "UNIQUE( " + SQLiteAxolotlStore.ACCOUNT + ", "
@@ -111,7 +115,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             + SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME + "("
             + SQLiteAxolotlStore.ACCOUNT + " TEXT,  "
             + SQLiteAxolotlStore.ID + " INTEGER, "
-            + SQLiteAxolotlStore.KEY + " TEXT, FOREIGN KEY("
+            + SQLiteAxolotlStore.KEY + " BLOB, FOREIGN KEY("
             + SQLiteAxolotlStore.ACCOUNT
             + ") REFERENCES " + Account.TABLENAME + "(" + Account.UUID + ") ON DELETE CASCADE, "
             + "UNIQUE( " + SQLiteAxolotlStore.ACCOUNT + ", "
@@ -124,7 +128,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             + SQLiteAxolotlStore.ACCOUNT + " TEXT,  "
             + SQLiteAxolotlStore.NAME + " TEXT, "
             + SQLiteAxolotlStore.DEVICE_ID + " INTEGER, "
-            + SQLiteAxolotlStore.KEY + " TEXT, FOREIGN KEY("
+            + SQLiteAxolotlStore.KEY + " BLOB, FOREIGN KEY("
             + SQLiteAxolotlStore.ACCOUNT
             + ") REFERENCES " + Account.TABLENAME + "(" + Account.UUID + ") ON DELETE CASCADE, "
             + "UNIQUE( " + SQLiteAxolotlStore.ACCOUNT + ", "
@@ -143,7 +147,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             + SQLiteAxolotlStore.TRUST + " TEXT, "
             + SQLiteAxolotlStore.ACTIVE + " NUMBER, "
             + SQLiteAxolotlStore.LAST_ACTIVATION + " NUMBER,"
-            + SQLiteAxolotlStore.KEY + " TEXT, FOREIGN KEY("
+            + SQLiteAxolotlStore.KEY + " BLOB, FOREIGN KEY("
             + SQLiteAxolotlStore.ACCOUNT
             + ") REFERENCES " + Account.TABLENAME + "(" + Account.UUID + ") ON DELETE CASCADE, "
             + "UNIQUE( " + SQLiteAxolotlStore.ACCOUNT + ", "
@@ -174,12 +178,187 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     private static String CREATE_MESSAGE_TYPE_INDEX = "create INDEX message_type_index ON " + Message.TABLENAME + "(" + Message.TYPE + ")";
 
     private static String CREATE_MESSAGE_INDEX_TABLE = "CREATE VIRTUAL TABLE messages_index USING FTS4(uuid TEXT PRIMARY KEY, body TEXT)";
-    private static String CREATE_MESSAGE_INSERT_TRIGGER = "CREATE TRIGGER after_message_insert AFTER INSERT ON " + Message.TABLENAME + " BEGIN INSERT INTO messages_index (uuid,body) VALUES (new.uuid,new.body); END;";
-    private static String CREATE_MESSAGE_UPDATE_TRIGGER = "CREATE TRIGGER after_message_update UPDATE of uuid,body ON " + Message.TABLENAME + " BEGIN update messages_index set body=new.body,uuid=new.uuid WHERE uuid=old.uuid; END;";
-    private static String COPY_PREEXISTING_ENTRIES = "INSERT into messages_index(uuid,body) select uuid,body FROM " + Message.TABLENAME + ";";
+    // the index rows share their docid with the rowid of the message so they can be found without scanning the index
+    private static String CREATE_MESSAGE_INSERT_TRIGGER = "CREATE TRIGGER after_message_insert AFTER INSERT ON " + Message.TABLENAME + " BEGIN INSERT INTO messages_index (docid,uuid,body) VALUES (new.rowid,new.uuid,new.body); END;";
+    private static String CREATE_MESSAGE_UPDATE_TRIGGER = "CREATE TRIGGER after_message_update UPDATE of uuid,body ON " + Message.TABLENAME + " BEGIN update messages_index set body=new.body,uuid=new.uuid WHERE docid=old.rowid; END;";
+    private static String CREATE_MESSAGE_DELETE_TRIGGER = "CREATE TRIGGER before_message_delete BEFORE DELETE ON " + Message.TABLENAME + " BEGIN DELETE FROM messages_index WHERE docid=old.rowid; END;";
+    private static String COPY_PREEXISTING_ENTRIES = "INSERT into messages_index(docid,uuid,body) select rowid,uuid,body FROM " + Message.TABLENAME + ";";
+
+    private static final String DIRECTORIES_TABLENAME = "verified_directories";
+    private static final String DIRECTORY_PATH = "path";
+    private static final String DIRECTORY_MODIFIED = "modified";
+    private static String CREATE_DIRECTORIES_TABLE = "create table " + DIRECTORIES_TABLENAME + "("
+            + DIRECTORY_PATH + " TEXT PRIMARY KEY ON CONFLICT REPLACE, "
+            + DIRECTORY_MODIFIED + " NUMBER);";
+
+    private static String CREATE_MESSAGE_CONVERSATION_TIME_INDEX = "create INDEX message_conversation_time_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + "," + Message.TIME_SENT + ")";
+    private static String CREATE_MESSAGE_REMOTE_ID_INDEX = "create INDEX message_remote_id_index ON " + Message.TABLENAME + "(" + Message.REMOTE_MSG_ID + ")";
+
+    private static String CREATE_CONVERSATION_SUMMARIES_TABLE = "create table " + ConversationSummary.TABLENAME + "("
+            + ConversationSummary.CONVERSATION + " TEXT PRIMARY KEY, "
+            + ConversationSummary.LAST_MESSAGE + " TEXT, "
+            + ConversationSummary.LAST_MESSAGE_TIME + " NUMBER NOT NULL DEFAULT 0, "
+            + ConversationSummary.UNREAD + " NUMBER NOT NULL DEFAULT 0, "
+            + ConversationSummary.FAILED + " NUMBER NOT NULL DEFAULT 0, "
+            + ConversationSummary.PENDING + " NUMBER NOT NULL DEFAULT 0, FOREIGN KEY("
+            + ConversationSummary.CONVERSATION + ") REFERENCES " + Conversation.TABLENAME + "(" + Conversation.UUID
+            + ") ON DELETE CASCADE);";
+    private static String CREATE_SUMMARY_INSERT_TRIGGER = "CREATE TRIGGER summary_after_message_insert AFTER INSERT ON " + Message.TABLENAME + " BEGIN "
+            + "INSERT OR IGNORE INTO " + ConversationSummary.TABLENAME + "(" + ConversationSummary.CONVERSATION + ") VALUES (new." + Message.CONVERSATION + "); "
+            + "UPDATE " + ConversationSummary.TABLENAME + " SET "
+            + ConversationSummary.LAST_MESSAGE + "=case when " + isLatest("new") + " then new." + Message.UUID + " else " + ConversationSummary.LAST_MESSAGE + " end,"
+            + ConversationSummary.LAST_MESSAGE_TIME + "=case when " + isLatest("new") + " then new." + Message.TIME_SENT + " else " + ConversationSummary.LAST_MESSAGE_TIME + " end,"
+            + summaryCounters("+", "new")
+            + " WHERE " + ConversationSummary.CONVERSATION + "=new." + Message.CONVERSATION + "; END;";
+    private static String CREATE_SUMMARY_UPDATE_TRIGGER = "CREATE TRIGGER summary_after_message_update AFTER UPDATE OF "
+            + Message.READ + "," + Message.STATUS + "," + Message.DELETED + "," + Message.TIME_SENT + " ON " + Message.TABLENAME + " BEGIN "
+            + "UPDATE " + ConversationSummary.TABLENAME + " SET " + summaryCounters("-", "old")
+            + " WHERE " + ConversationSummary.CONVERSATION + "=old." + Message.CONVERSATION + "; "
+            + "UPDATE " + ConversationSummary.TABLENAME + " SET " + summaryCounters("+", "new")
+            + " WHERE " + ConversationSummary.CONVERSATION + "=new." + Message.CONVERSATION + "; "
+            + "UPDATE " + ConversationSummary.TABLENAME + " SET "
+            + ConversationSummary.LAST_MESSAGE + "=new." + Message.UUID + ","
+            + ConversationSummary.LAST_MESSAGE_TIME + "=new." + Message.TIME_SENT
+            + " WHERE " + ConversationSummary.CONVERSATION + "=new." + Message.CONVERSATION + " AND " + isLatest("new") + "; "
+            + "UPDATE " + ConversationSummary.TABLENAME + " SET " + findLatest("old." + Message.CONVERSATION)
+            + " WHERE " + ConversationSummary.CONVERSATION + "=old." + Message.CONVERSATION
+            + " AND " + ConversationSummary.LAST_MESSAGE + "=old." + Message.UUID
+            + " AND (new." + Message.DELETED + "!=0 OR new." + Message.TIME_SENT + "<old." + Message.TIME_SENT + "); END;";
+    private static String CREATE_SUMMARY_DELETE_TRIGGER = "CREATE TRIGGER summary_after_message_delete AFTER DELETE ON " + Message.TABLENAME + " BEGIN "
+            + "UPDATE " + ConversationSummary.TABLENAME + " SET " + summaryCounters("-", "old")
+            + " WHERE " + ConversationSummary.CONVERSATION + "=old." + Message.CONVERSATION + "; "
+            + "UPDATE " + ConversationSummary.TABLENAME + " SET " + findLatest("old." + Message.CONVERSATION)
+            + " WHERE " + ConversationSummary.CONVERSATION + "=old." + Message.CONVERSATION
+            + " AND " + ConversationSummary.LAST_MESSAGE + "=old." + Message.UUID + "; END;";
+    private static String CREATE_SUMMARY_TRANSMITTED_INSERT_TRIGGER = "CREATE TRIGGER summary_transmitted_after_message_insert AFTER INSERT ON " + Message.TABLENAME
+            + " WHEN " + isTransmitted("new") + " BEGIN "
+            + "INSERT OR IGNORE INTO " + ConversationSummary.TABLENAME + "(" + ConversationSummary.CONVERSATION + ") VALUES (new." + Message.CONVERSATION + "); "
+            + "UPDATE " + ConversationSummary.TABLENAME + " SET "
+            + ConversationSummary.LAST_TRANSMITTED_TIME + "=new." + Message.TIME_SENT + ","
+            + ConversationSummary.LAST_TRANSMITTED_SERVER_MSG_ID + "=new." + Message.SERVER_MSG_ID
+            + " WHERE " + ConversationSummary.CONVERSATION + "=new." + Message.CONVERSATION
+            + " AND new." + Message.TIME_SENT + ">=" + ConversationSummary.LAST_TRANSMITTED_TIME + "; END;";
+    private static String CREATE_SUMMARY_TRANSMITTED_UPDATE_TRIGGER = "CREATE TRIGGER summary_transmitted_after_message_update AFTER UPDATE OF "
+            + Message.STATUS + "," + Message.CARBON + "," + Message.SERVER_MSG_ID + "," + Message.TYPE + "," + Message.TIME_SENT + " ON " + Message.TABLENAME + " BEGIN "
+            + "UPDATE " + ConversationSummary.TABLENAME + " SET " + findLastTransmitted("new." + Message.CONVERSATION)
+            + " WHERE " + ConversationSummary.CONVERSATION + "=new." + Message.CONVERSATION
+            + " AND (old." + Message.TIME_SENT + ">=" + ConversationSummary.LAST_TRANSMITTED_TIME
+            + " OR new." + Message.TIME_SENT + ">=" + ConversationSummary.LAST_TRANSMITTED_TIME + "); END;";
+    private static String CREATE_SUMMARY_TRANSMITTED_DELETE_TRIGGER = "CREATE TRIGGER summary_transmitted_after_message_delete AFTER DELETE ON " + Message.TABLENAME + " BEGIN "
+            + "UPDATE " + ConversationSummary.TABLENAME + " SET " + findLastTransmitted("old." + Message.CONVERSATION)
+            + " WHERE " + ConversationSummary.CONVERSATION + "=old." + Message.CONVERSATION
+            + " AND old." + Message.TIME_SENT + ">=" + ConversationSummary.LAST_TRANSMITTED_TIME + "; END;";
+    private static String COPY_PREEXISTING_LAST_TRANSMITTED = "UPDATE " + ConversationSummary.TABLENAME + " SET "
+            + findLastTransmitted(ConversationSummary.TABLENAME + "." + ConversationSummary.CONVERSATION) + ";";
+    private static String COPY_PREEXISTING_SUMMARIES = "INSERT INTO " + ConversationSummary.TABLENAME + "("
+            + ConversationSummary.CONVERSATION + "," + ConversationSummary.UNREAD + "," + ConversationSummary.FAILED + "," + ConversationSummary.PENDING + ") "
+            + "SELECT " + Message.CONVERSATION + ",sum(" + isUnread(Message.TABLENAME) + "),sum(" + isFailed(Message.TABLENAME) + "),sum(" + isPending(Message.TABLENAME) + ")"
+            + " FROM " + Message.TABLENAME + " WHERE " + Message.CONVERSATION + " IN (SELECT " + Conversation.UUID + " FROM " + Conversation.TABLENAME + ")"
+            + " GROUP BY " + Message.CONVERSATION + ";";
+    private static String COPY_PREEXISTING_LATEST_MESSAGES = "UPDATE " + ConversationSummary.TABLENAME + " SET "
+            + findLatest(ConversationSummary.TABLENAME + "." + ConversationSummary.CONVERSATION) + ";";
+
+    // the message list never displays more than MAX_DISPLAY_MESSAGE_CHARS. PGP messages need their
+    // full cipher text for decryption and unsent messages the full body for resending
+    // the truncation flag is computed by SQLite as well since length() and substr() count code points
+    private static final String NEEDS_FULL_BODY = Message.ENCRYPTION + "=" + Message.ENCRYPTION_PGP + " or " + Message.STATUS + " in ("
+            + Message.STATUS_UNSEND + "," + Message.STATUS_SEND_FAILED + "," + Message.STATUS_WAITING + ")";
+    private static final String[] MESSAGE_PREVIEW_COLUMNS = {
+            Message.UUID, Message.CONVERSATION, Message.TIME_SENT, Message.COUNTERPART, Message.TRUE_COUNTERPART,
+            "case when " + NEEDS_FULL_BODY + " then " + Message.BODY
+                    + " else substr(" + Message.BODY + ",1," + Config.MAX_DISPLAY_MESSAGE_CHARS + ") end as " + Message.BODY,
+            "case when " + NEEDS_FULL_BODY + " then 0"
+                    + " else length(" + Message.BODY + ")>" + Config.MAX_DISPLAY_MESSAGE_CHARS + " end as " + Message.BODY_TRUNCATED,
+            Message.ENCRYPTION, Message.STATUS, Message.TYPE, Message.RELATIVE_FILE_PATH, Message.SERVER_MSG_ID,
+            Message.FINGERPRINT, Message.CARBON, Message.EDITED, Message.READ, Message.DELETED, Message.OOB,
+            Message.ERROR_MESSAGE, Message.READ_BY_MARKERS, Message.MARKABLE, Message.FILE_DELETED,
+            Message.BODY_LANGUAGE, Message.REMOTE_MSG_ID
+    };
+
+    private static String isUnread(final String row) {
+        return "(" + row + "." + Message.READ + "=0 and " + row + "." + Message.DELETED + "=0)";
+    }
+
+    private static String isFailed(final String row) {
+        return "(" + row + "." + Message.STATUS + "=" + Message.STATUS_SEND_FAILED + " and " + row + "." + Message.DELETED + "=0)";
+    }
+
+    private static String isPending(final String row) {
+        return "(" + row + "." + Message.STATUS + " in (" + Message.STATUS_UNSEND + "," + Message.STATUS_WAITING + ") and " + row + "." + Message.DELETED + "=0)";
+    }
+
+    private static String isLatest(final String row) {
+        return "(" + row + "." + Message.DELETED + "=0 and " + row + "." + Message.TIME_SENT + ">=" + ConversationSummary.LAST_MESSAGE_TIME + ")";
+    }
+
+    // private messages could be coming from the user archive and are no safe anchor for catching up
+    private static String isTransmitted(final String row) {
+        return "(" + row + "." + Message.TYPE + " not in (" + Message.TYPE_PRIVATE + "," + Message.TYPE_PRIVATE_FILE + ") and ("
+                + row + "." + Message.STATUS + "=" + Message.STATUS_RECEIVED + " or " + row + "." + Message.CARBON + "=1 or "
+                + row + "." + Message.SERVER_MSG_ID + " is not null))";
+    }
+
+    private static String summaryCounters(final String operator, final String row) {
+        return ConversationSummary.UNREAD + "=" + ConversationSummary.UNREAD + operator + isUnread(row) + ","
+                + ConversationSummary.FAILED + "=" + ConversationSummary.FAILED + operator + isFailed(row) + ","
+                + ConversationSummary.PENDING + "=" + ConversationSummary.PENDING + operator + isPending(row);
+    }
+
+    // uses message_conversation_time_index to walk back from the newest message
+    private static String findLatest(final String conversation) {
+        final String latest = " from " + Message.TABLENAME + " where " + Message.CONVERSATION + "=" + conversation
+                + " and " + Message.DELETED + "=0 order by " + Message.TIME_SENT + " desc limit 1)";
+        return ConversationSummary.LAST_MESSAGE + "=(select " + Message.UUID + latest + ","
+                + ConversationSummary.LAST_MESSAGE_TIME + "=ifnull((select " + Message.TIME_SENT + latest + ",0)";
+    }
+
+    private static String findLastTransmitted(final String conversation) {
+        final String latest = " from " + Message.TABLENAME + " where " + Message.CONVERSATION + "=" + conversation
+                + " and " + isTransmitted(Message.TABLENAME) + " order by " + Message.TIME_SENT + " desc limit 1)";
+        return ConversationSummary.LAST_TRANSMITTED_TIME + "=ifnull((select " + Message.TIME_SENT + latest + ",0),"
+                + ConversationSummary.LAST_TRANSMITTED_SERVER_MSG_ID + "=(select " + Message.SERVER_MSG_ID + latest;
+    }
 
     private DatabaseBackend(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        super(context, DATABASE_NAME, STATISTICS.getCursorFactory(), DATABASE_VERSION);
+    }
+
+    public static DatabaseStatistics getStatistics() {
+        return STATISTICS;
+    }
+
+    private static long insert(final SQLiteDatabase db, final String table, final String nullColumnHack, final ContentValues values) {
+        final long start = DatabaseStatistics.now();
+        final long rowId = db.insert(table, nullColumnHack, values);
+        STATISTICS.record("INSERT INTO " + table, start, rowId == -1 ? 0 : 1);
+        return rowId;
+    }
+
+    private static int update(final SQLiteDatabase db, final String table, final ContentValues values, final String whereClause, final String[] whereArgs) {
+        final long start = DatabaseStatistics.now();
+        final int rows = db.update(table, values, whereClause, whereArgs);
+        STATISTICS.record("UPDATE " + table + " WHERE " + whereClause, start, rows);
+        return rows;
+    }
+
+    private static int delete(final SQLiteDatabase db, final String table, final String whereClause, final String[] whereArgs) {
+        final long start = DatabaseStatistics.now();
+        final int rows = db.delete(table, whereClause, whereArgs);
+        STATISTICS.record("DELETE FROM " + table + " WHERE " + whereClause, start, rows);
+        return rows;
+    }
+
+    private static void execSQL(final SQLiteDatabase db, final String sql) {
+        final long start = DatabaseStatistics.now();
+        db.execSQL(sql);
+        STATISTICS.record(sql, start, 0);
+    }
+
+    private static long queryNumEntries(final SQLiteDatabase db, final String table, final String selection, final String[] selectionArgs) {
+        final long start = DatabaseStatistics.now();
+        final long count = DatabaseUtils.queryNumEntries(db, table, selection, selectionArgs);
+        STATISTICS.record("SELECT count(*) FROM " + table + " WHERE " + selection, start, 1);
+        return count;
     }
 
     private static ContentValues createFingerprintStatusContentValues(FingerprintStatus.Trust trust, boolean active) {
@@ -200,6 +379,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     public void onConfigure(SQLiteDatabase db) {
         db.execSQL("PRAGMA foreign_keys=ON");
         db.rawQuery("PRAGMA secure_delete=ON", null).close();
+        db.execSQL("PRAGMA auto_vacuum=INCREMENTAL"); // only effective on new databases
     }
 
     @Override
@@ -268,6 +448,23 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.execSQL(CREATE_MESSAGE_INDEX_TABLE);
         db.execSQL(CREATE_MESSAGE_INSERT_TRIGGER);
         db.execSQL(CREATE_MESSAGE_UPDATE_TRIGGER);
+        db.execSQL(CREATE_MESSAGE_DELETE_TRIGGER);
+        db.execSQL(CREATE_MESSAGE_CONVERSATION_TIME_INDEX);
+        db.execSQL(CREATE_MESSAGE_REMOTE_ID_INDEX);
+        db.execSQL(CREATE_CONVERSATION_SUMMARIES_TABLE);
+        db.execSQL(CREATE_SUMMARY_INSERT_TRIGGER);
+        db.execSQL(CREATE_SUMMARY_UPDATE_TRIGGER);
+        db.execSQL(CREATE_SUMMARY_DELETE_TRIGGER);
+        addLastTransmittedToSummaries(db);
+        db.execSQL(CREATE_DIRECTORIES_TABLE);
+    }
+
+    private static void addLastTransmittedToSummaries(final SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + ConversationSummary.TABLENAME + " ADD COLUMN " + ConversationSummary.LAST_TRANSMITTED_TIME + " NUMBER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE " + ConversationSummary.TABLENAME + " ADD COLUMN " + ConversationSummary.LAST_TRANSMITTED_SERVER_MSG_ID + " TEXT");
+        db.execSQL(CREATE_SUMMARY_TRANSMITTED_INSERT_TRIGGER);
+        db.execSQL(CREATE_SUMMARY_TRANSMITTED_UPDATE_TRIGGER);
+        db.execSQL(CREATE_SUMMARY_TRANSMITTED_DELETE_TRIGGER);
     }
 
     @Override
@@ -589,6 +786,49 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         if (oldVersion < 53 && newVersion >= 53) {
             moveData();
         }
+
+        if (oldVersion < 54 && newVersion >= 54) {
+            final long start = SystemClock.elapsedRealtime();
+            db.execSQL(CREATE_MESSAGE_CONVERSATION_TIME_INDEX);
+            db.execSQL(CREATE_CONVERSATION_SUMMARIES_TABLE);
+            db.execSQL(COPY_PREEXISTING_SUMMARIES);
+            db.execSQL(COPY_PREEXISTING_LATEST_MESSAGES);
+            db.execSQL(CREATE_SUMMARY_INSERT_TRIGGER);
+            db.execSQL(CREATE_SUMMARY_UPDATE_TRIGGER);
+            db.execSQL(CREATE_SUMMARY_DELETE_TRIGGER);
+            Log.d(Config.LOGTAG, "created conversation summaries in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+
+        if (oldVersion < 55 && newVersion >= 55) {
+            db.execSQL(CREATE_DIRECTORIES_TABLE);
+        }
+
+        if (oldVersion < 56 && newVersion >= 56) {
+            db.execSQL(CREATE_MESSAGE_REMOTE_ID_INDEX);
+        }
+
+        if (oldVersion < 57 && newVersion >= 57) {
+            final long start = SystemClock.elapsedRealtime();
+            db.execSQL("DROP TRIGGER IF EXISTS after_message_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS after_message_update");
+            db.execSQL(CREATE_MESSAGE_INSERT_TRIGGER);
+            db.execSQL(CREATE_MESSAGE_UPDATE_TRIGGER);
+            db.execSQL(CREATE_MESSAGE_DELETE_TRIGGER);
+            rebuildMessageIndex(db);
+            Log.d(Config.LOGTAG, "linked message index to message rowids in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+
+        if (oldVersion < 58 && newVersion >= 58) {
+            final long start = SystemClock.elapsedRealtime();
+            addLastTransmittedToSummaries(db);
+            db.execSQL(COPY_PREEXISTING_LAST_TRANSMITTED);
+            Log.d(Config.LOGTAG, "added last transmitted message to conversation summaries in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+    }
+
+    private static void rebuildMessageIndex(final SQLiteDatabase db) {
+        execSQL(db, "DELETE FROM messages_index");
+        execSQL(db, COPY_PREEXISTING_ENTRIES);
     }
 
     private boolean isColumnExisting(SQLiteDatabase db, String TableName, String ColumnName) {
@@ -686,22 +926,22 @@ public class DatabaseBackend extends SQLiteOpenHelper {
 
     public void createConversation(Conversation conversation) {
         SQLiteDatabase db = this.getWritableDatabase();
-        db.insert(Conversation.TABLENAME, null, conversation.getContentValues());
+        insert(db, Conversation.TABLENAME, null, conversation.getContentValues());
     }
 
     public void createMessage(Message message) {
         SQLiteDatabase db = this.getWritableDatabase();
-        db.insert(Message.TABLENAME, null, message.getContentValues());
+        insert(db, Message.TABLENAME, null, message.getContentValues());
     }
 
     public void createAccount(Account account) {
         SQLiteDatabase db = this.getWritableDatabase();
-        db.insert(Account.TABLENAME, null, account.getContentValues());
+        insert(db, Account.TABLENAME, null, account.getContentValues());
     }
 
     public void insertDiscoveryResult(ServiceDiscoveryResult result) {
         SQLiteDatabase db = this.getWritableDatabase();
-        db.insert(ServiceDiscoveryResult.TABLENAME, null, result.getContentValues());
+        insert(db, ServiceDiscoveryResult.TABLENAME, null, result.getContentValues());
     }
 
     public ServiceDiscoveryResult findDiscoveryResult(final String hash, final String ver) {
@@ -729,7 +969,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         SQLiteDatabase db = this.getWritableDatabase();
         ContentValues contentValues = result.toContentValues();
         contentValues.put(Resolver.Result.DOMAIN, domain);
-        db.insert(RESOLVER_RESULTS_TABLENAME, null, contentValues);
+        insert(db, RESOLVER_RESULTS_TABLENAME, null, contentValues);
     }
 
     public synchronized Resolver.Result findResolverResult(String domain) {
@@ -757,9 +997,9 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         SQLiteDatabase db = this.getWritableDatabase();
         String whereToDelete = PresenceTemplate.MESSAGE + "=?";
         String[] whereToDeleteArgs = {template.getStatusMessage()};
-        db.delete(PresenceTemplate.TABELNAME, whereToDelete, whereToDeleteArgs);
-        db.delete(PresenceTemplate.TABELNAME, PresenceTemplate.UUID + " not in (select " + PresenceTemplate.UUID + " from " + PresenceTemplate.TABELNAME + " order by " + PresenceTemplate.LAST_USED + " desc limit 9)", null);
-        db.insert(PresenceTemplate.TABELNAME, null, template.getContentValues());
+        delete(db, PresenceTemplate.TABELNAME, whereToDelete, whereToDeleteArgs);
+        delete(db, PresenceTemplate.TABELNAME, PresenceTemplate.UUID + " not in (select " + PresenceTemplate.UUID + " from " + PresenceTemplate.TABELNAME + " order by " + PresenceTemplate.LAST_USED + " desc limit 9)", null);
+        insert(db, PresenceTemplate.TABELNAME, null, template.getContentValues());
     }
 
     public List<PresenceTemplate> getPresenceTemplates() {
@@ -791,6 +1031,43 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return list;
     }
 
+    public void readConversationSummaries(final List<Conversation> conversations) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final HashMap<String, Conversation> lookup = new HashMap<>();
+        for (final Conversation conversation : conversations) {
+            lookup.put(conversation.getUuid(), conversation);
+        }
+        final HashMap<String, ConversationSummary> summaries = new HashMap<>();
+        Cursor cursor = db.query(ConversationSummary.TABLENAME, null, null, null, null, null, null);
+        while (cursor.moveToNext()) {
+            final String uuid = cursor.getString(cursor.getColumnIndex(ConversationSummary.CONVERSATION));
+            if (lookup.containsKey(uuid)) {
+                summaries.put(uuid, ConversationSummary.fromCursor(cursor));
+            }
+        }
+        cursor.close();
+        cursor = db.query(Message.TABLENAME, MESSAGE_PREVIEW_COLUMNS, Message.UUID + " in (select "
+                + ConversationSummary.LAST_MESSAGE + " from " + ConversationSummary.TABLENAME + ")", null, null, null, null);
+        while (cursor.moveToNext()) {
+            final Conversation conversation = lookup.get(cursor.getString(cursor.getColumnIndex(Message.CONVERSATION)));
+            final ConversationSummary summary = conversation == null ? null : summaries.get(conversation.getUuid());
+            if (summary != null) {
+                try {
+                    summary.setLatestMessage(Message.fromCursor(cursor, conversation));
+                } catch (Exception e) {
+                    Log.e(Config.LOGTAG, "unable to restore latest message of " + conversation.getJid());
+                }
+            }
+        }
+        cursor.close();
+        for (final Conversation conversation : conversations) {
+            final ConversationSummary summary = summaries.get(conversation.getUuid());
+            if (summary != null) {
+                conversation.setSummary(summary);
+            }
+        }
+    }
+
     public ArrayList<Message> getMessages(Conversation conversations, int limit) {
         return getMessages(conversations, limit, -1);
     }
@@ -801,12 +1078,12 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         Cursor cursor;
         if (timestamp == -1) {
             String[] selectionArgs = {conversation.getUuid(), "1"};
-            cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
+            cursor = db.query(Message.TABLENAME, MESSAGE_PREVIEW_COLUMNS, Message.CONVERSATION
                     + "=? and " + Message.DELETED + "<?", selectionArgs, null, null, Message.TIME_SENT
                     + " DESC", String.valueOf(limit));
         } else {
             String[] selectionArgs = {conversation.getUuid(), Long.toString(timestamp), "1"};
-            cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
+            cursor = db.query(Message.TABLENAME, MESSAGE_PREVIEW_COLUMNS, Message.CONVERSATION
                             + "=? and " + Message.TIME_SENT + "<? and " + Message.DELETED + "<?", selectionArgs,
                     null, null, Message.TIME_SENT + " DESC",
                     String.valueOf(limit));
@@ -823,6 +1100,47 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return list;
     }
 
+    /**
+     * fallback for receipts and markers that reference messages outside of the window that has
+     * been loaded into memory. Mirrors {@link Conversation#findSentMessageWithUuidOrRemoteId(String)}
+     * and {@link Conversation#findSentMessageWithUuid(String)}
+     */
+    public Message findSentMessage(final Conversation conversation, final String id, final boolean matchRemoteId) {
+        final Message message = findMessage(conversation, Message.CONVERSATION + "=? and " + Message.UUID + "=?",
+                new String[]{conversation.getUuid(), id});
+        if (message != null || !matchRemoteId) {
+            return message;
+        }
+        return findMessage(conversation, Message.CONVERSATION + "=? and " + Message.REMOTE_MSG_ID + "=? and " + Message.STATUS + ">=?",
+                new String[]{conversation.getUuid(), id, String.valueOf(Message.STATUS_SEND)});
+    }
+
+    private Message findMessage(final Conversation conversation, final String selection, final String[] selectionArgs) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        try (final Cursor cursor = db.query(Message.TABLENAME, MESSAGE_PREVIEW_COLUMNS, selection, selectionArgs, null, null, null, "1")) {
+            if (cursor.moveToFirst()) {
+                return Message.fromCursor(cursor, conversation);
+            }
+        } catch (Exception e) {
+            Log.e(Config.LOGTAG, "unable to restore message", e);
+        }
+        return null;
+    }
+
+    public String getMessageBody(final String uuid) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String[] selectionArgs = {uuid};
+        try (final Cursor cursor = db.query(Message.TABLENAME, new String[]{Message.BODY}, Message.UUID + "=?", selectionArgs, null, null, null)) {
+            CursorUtils.upgradeCursorWindowSize(cursor);
+            if (cursor.moveToFirst()) {
+                return cursor.getString(0);
+            }
+        } catch (Exception e) {
+            Log.e(Config.LOGTAG, "unable to load body of message " + uuid, e);
+        }
+        return null;
+    }
+
     public Cursor getMessageSearchCursor(final List<String> term, final String uuid) {
         final SQLiteDatabase db = this.getReadableDatabase();
         final StringBuilder SQL = new StringBuilder();
@@ -909,7 +1227,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         contentValues.put(Message.FILE_DELETED, 1);
         db.beginTransaction();
         for (String uuid : uuids) {
-            db.update(Message.TABLENAME, contentValues, where, new String[]{uuid});
+            update(db, Message.TABLENAME, contentValues, where, new String[]{uuid});
         }
         db.setTransactionSuccessful();
         db.endTransaction();
@@ -922,7 +1240,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         for (FilePathInfo info : files) {
             final ContentValues contentValues = new ContentValues();
             contentValues.put(Message.FILE_DELETED, info.FileDeleted ? 1 : 0);
-            db.update(Message.TABLENAME, contentValues, where, new String[]{info.uuid.toString()});
+            update(db, Message.TABLENAME, contentValues, where, new String[]{info.uuid.toString()});
         }
         db.setTransactionSuccessful();
         db.endTransaction();
@@ -930,7 +1248,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
 
     public List<FilePathInfo> getFilePathInfo() {
         final SQLiteDatabase db = this.getReadableDatabase();
-        final Cursor cursor = db.query(Message.TABLENAME, new String[]{Message.UUID, Message.RELATIVE_FILE_PATH, Message.DELETED}, "type in (1,2,5) and " + Message.RELATIVE_FILE_PATH + " is not null", null, null, null, null);
+        final Cursor cursor = db.query(Message.TABLENAME, new String[]{Message.UUID, Message.RELATIVE_FILE_PATH, Message.FILE_DELETED}, "type in (1,2,5) and " + Message.RELATIVE_FILE_PATH + " is not null", null, null, null, null);
         final List<FilePathInfo> list = new ArrayList<>();
         while (cursor != null && cursor.moveToNext()) {
             list.add(new FilePathInfo(cursor.getString(0), cursor.getString(1), cursor.getInt(2) > 0));
@@ -941,6 +1259,36 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return list;
     }
 
+    /**
+     * @return modification time of every directory whose attachments have been verified to exist
+     */
+    public HashMap<String, Long> getVerifiedDirectories() {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final HashMap<String, Long> directories = new HashMap<>();
+        final Cursor cursor = db.query(DIRECTORIES_TABLENAME, new String[]{DIRECTORY_PATH, DIRECTORY_MODIFIED}, null, null, null, null, null);
+        while (cursor.moveToNext()) {
+            directories.put(cursor.getString(0), cursor.getLong(1));
+        }
+        cursor.close();
+        return directories;
+    }
+
+    public void setVerifiedDirectories(final Map<String, Long> directories, final boolean replace) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        if (replace) {
+            delete(db, DIRECTORIES_TABLENAME, null, null);
+        }
+        for (final Map.Entry<String, Long> entry : directories.entrySet()) {
+            final ContentValues contentValues = new ContentValues();
+            contentValues.put(DIRECTORY_PATH, entry.getKey());
+            contentValues.put(DIRECTORY_MODIFIED, entry.getValue());
+            insert(db, DIRECTORIES_TABLENAME, null, contentValues);
+        }
+        db.setTransactionSuccessful();
+        db.endTransaction();
+    }
+
     public List<FilePath> getRelativeFilePaths(String account, Jid jid, int limit) {
         SQLiteDatabase db = this.getReadableDatabase();
         final String SQL = "select uuid,relativeFilePath from messages where type in (1,2,5) and deleted=0 and " + Message.RELATIVE_FILE_PATH + " is not null and conversationUuid=(select uuid from conversations where accountUuid=? and (contactJid=? or contactJid like ?)) order by timeSent desc";
@@ -1004,7 +1352,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     public void updateConversation(final Conversation conversation) {
         final SQLiteDatabase db = this.getWritableDatabase();
         final String[] args = {conversation.getUuid()};
-        db.update(Conversation.TABLENAME, conversation.getContentValues(),
+        update(db, Conversation.TABLENAME, conversation.getContentValues(),
                 Conversation.UUID + "=?", args);
     }
 
@@ -1050,14 +1398,14 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     public boolean updateAccount(Account account) {
         SQLiteDatabase db = this.getWritableDatabase();
         String[] args = {account.getUuid()};
-        final int rows = db.update(Account.TABLENAME, account.getContentValues(), Account.UUID + "=?", args);
+        final int rows = update(db, Account.TABLENAME, account.getContentValues(), Account.UUID + "=?", args);
         return rows == 1;
     }
 
     public boolean deleteAccount(Account account) {
         SQLiteDatabase db = this.getWritableDatabase();
         String[] args = {account.getUuid()};
-        final int rows = db.delete(Account.TABLENAME, Account.UUID + "=?", args);
+        final int rows = delete(db, Account.TABLENAME, Account.UUID + "=?", args);
         return rows == 1;
     }
 
@@ -1069,13 +1417,30 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         if (!includeBody) {
             contentValues.remove(Message.BODY);
         }
-        return db.update(Message.TABLENAME, message.getContentValues(), Message.UUID + "=?", args) == 1;
+        return update(db, Message.TABLENAME, message.getContentValues(), Message.UUID + "=?", args) == 1;
+    }
+
+    public boolean updateMessages(final List<Message> messages) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        int updated = 0;
+        db.beginTransaction();
+        try {
+            for (final Message message : messages) {
+                final ContentValues contentValues = message.getContentValues();
+                contentValues.remove(Message.UUID);
+                updated += update(db, Message.TABLENAME, contentValues, Message.UUID + "=?", new String[]{message.getUuid()});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return updated == messages.size();
     }
 
     public boolean updateMessage(Message message, String uuid) {
         SQLiteDatabase db = this.getWritableDatabase();
         String[] args = {uuid};
-        return db.update(Message.TABLENAME, message.getContentValues(), Message.UUID + "=?", args) == 1;
+        return update(db, Message.TABLENAME, message.getContentValues(), Message.UUID + "=?", args) == 1;
     }
 
     public void readRoster(Roster roster) {
@@ -1096,11 +1461,11 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.beginTransaction();
         for (Contact contact : roster.getContacts()) {
             if (contact.getOption(Contact.Options.IN_ROSTER) || contact.hasAvatarOrPresenceName() || contact.getOption(Contact.Options.SYNCED_VIA_OTHER)) {
-                db.insert(Contact.TABLENAME, null, contact.getContentValues());
+                insert(db, Contact.TABLENAME, null, contact.getContentValues());
             } else {
                 String where = Contact.ACCOUNT + "=? AND " + Contact.JID + "=?";
                 String[] whereArgs = {account.getUuid(), contact.getJid().toString()};
-                db.delete(Contact.TABLENAME, where, whereArgs);
+                delete(db, Contact.TABLENAME, where, whereArgs);
             }
         }
         db.setTransactionSuccessful();
@@ -1118,7 +1483,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         ContentValues values = new ContentValues();
         values.put(Message.DELETED, "1");
         String[] args = {message.getUuid()};
-        int rows = db.update("messages", values, "uuid =?", args);
+        int rows = update(db, "messages", values, "uuid =?", args);
         db.setTransactionSuccessful();
         db.endTransaction();
         Log.d(Config.LOGTAG, "deleted " + rows + " message in " + (SystemClock.elapsedRealtime() - start) + "ms");
@@ -1129,64 +1494,124 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         final SQLiteDatabase db = this.getWritableDatabase();
         db.beginTransaction();
         String[] args = {conversation.getUuid()};
-        db.delete("messages_index", "uuid in (select uuid from messages where conversationUuid=?)", args);
-        int num = db.delete(Message.TABLENAME, Message.CONVERSATION + "=?", args);
+        int num = delete(db, Message.TABLENAME, Message.CONVERSATION + "=?", args);
         db.setTransactionSuccessful();
         db.endTransaction();
         Log.d(Config.LOGTAG, "deleted " + num + " messages for " + conversation.getJid().asBareJid() + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
     }
 
-    public long countExpireOldMessages(long timestamp) {
-        long start = SystemClock.elapsedRealtime();
-        final String[] args = {String.valueOf(timestamp)};
-        SQLiteDatabase db = this.getReadableDatabase();
-        db.beginTransaction();
-        long num = DatabaseUtils.queryNumEntries(db, Message.TABLENAME, "timeSent<?", args);
-        db.setTransactionSuccessful();
-        db.endTransaction();
-        Log.d(Config.LOGTAG, "found " + num + " expired messages in " + (SystemClock.elapsedRealtime() - start) + "ms");
-        return num;
+    public Set<String> getFilePaths(final Conversation conversation) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String[] columns = {Message.RELATIVE_FILE_PATH};
+        final String[] args = {conversation.getUuid()};
+        final Set<String> paths = new HashSet<>();
+        try (final Cursor cursor = db.query(true, Message.TABLENAME, columns, Message.CONVERSATION + "=? and " + Message.RELATIVE_FILE_PATH + " is not null", args, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                paths.add(cursor.getString(0));
+            }
+        }
+        return paths;
     }
 
-    public long getOldestMessages() {
-        Cursor cursor = null;
-        try {
-            SQLiteDatabase db = this.getReadableDatabase();
-            db.beginTransaction();
-            cursor = db.rawQuery("select timeSent from " + Message.TABLENAME + " ORDER BY " + Message.TIME_SENT + " ASC limit 1", null);
-            db.setTransactionSuccessful();
-            db.endTransaction();
-            if (cursor.getCount() == 0) {
-                return 0;
-            } else {
-                cursor.moveToFirst();
-                return cursor.getLong(0);
+    /**
+     * @param from everything older than this has already been deleted by an earlier chunk
+     */
+    public ExpiredMessages getExpiredMessages(final long from, final long timestamp, final int limit) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String[] columns = {Message.UUID, Message.RELATIVE_FILE_PATH, Message.TIME_SENT};
+        final String[] args = {String.valueOf(from), String.valueOf(timestamp)};
+        final ExpiredMessages expired = new ExpiredMessages();
+        expired.lastTimeSent = from;
+        try (final Cursor cursor = db.query(Message.TABLENAME, columns, Message.TIME_SENT + ">=? and " + Message.TIME_SENT + "<?", args, null, null, Message.TIME_SENT + " ASC", String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                expired.uuids.add(cursor.getString(0));
+                final String path = cursor.getString(1);
+                if (path != null) {
+                    expired.files.add(path);
+                }
+                expired.lastTimeSent = cursor.getLong(2);
             }
-        } catch (Exception e) {
-            return 0;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+        }
+        // files that are still referenced by messages we keep (forwards, resends) must survive
+        for (final Iterator<String> iterator = expired.files.iterator(); iterator.hasNext(); ) {
+            final String[] selectionArgs = {iterator.next(), String.valueOf(timestamp)};
+            if (queryNumEntries(db, Message.TABLENAME, Message.RELATIVE_FILE_PATH + "=? and " + Message.TIME_SENT + ">=?", selectionArgs) > 0) {
+                iterator.remove();
             }
         }
+        return expired;
     }
 
-    public int expireOldMessages(long timestamp) {
-        long start = SystemClock.elapsedRealtime();
-        int num = 0;
-        if (countExpireOldMessages(timestamp) >= 1) {
-            final String[] args = {String.valueOf(timestamp)};
-            SQLiteDatabase db = this.getReadableDatabase();
-            db.beginTransaction();
-            db.delete("messages_index", "uuid in (select uuid from messages where timeSent<?)", args);
-            num = db.delete(Message.TABLENAME, "timeSent<?", args);
+    public int deleteMessages(final List<String> uuids) {
+        if (uuids.isEmpty()) {
+            return 0;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        final SQLiteDatabase db = this.getWritableDatabase();
+        final StringBuilder selection = new StringBuilder(Message.UUID + " in (");
+        for (int i = 0; i < uuids.size(); ++i) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(')');
+        final String[] args = uuids.toArray(new String[0]);
+        final int num;
+        db.beginTransaction();
+        try {
+            num = delete(db, Message.TABLENAME, selection.toString(), args);
             db.setTransactionSuccessful();
+        } finally {
             db.endTransaction();
         }
         Log.d(Config.LOGTAG, "deleted " + num + " expired messages in " + (SystemClock.elapsedRealtime() - start) + "ms");
         return num;
     }
 
+    public boolean isIncrementalVacuumEnabled() {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        try (final Cursor cursor = db.rawQuery("PRAGMA auto_vacuum", null)) {
+            return cursor.moveToFirst() && cursor.getLong(0) == AUTO_VACUUM_INCREMENTAL;
+        }
+    }
+
+    /**
+     * switching an existing database to incremental mode only takes effect after one full vacuum.
+     * That rewrites the whole database and blocks every other write while it runs, so this should
+     * only be called while the device is idle.
+     */
+    public void enableIncrementalVacuum() {
+        final long start = SystemClock.elapsedRealtime();
+        final SQLiteDatabase db = this.getWritableDatabase();
+        execSQL(db, "PRAGMA auto_vacuum=INCREMENTAL");
+        execSQL(db, "VACUUM");
+        // a full vacuum may renumber the rowids the message index is linked to
+        db.beginTransaction();
+        try {
+            rebuildMessageIndex(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.d(Config.LOGTAG, "enabled incremental vacuum in " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    public void incrementalVacuum() {
+        final long start = SystemClock.elapsedRealtime();
+        final SQLiteDatabase db = this.getWritableDatabase();
+        // the pragma frees pages while it is being stepped, so the cursor has to be moved through
+        try (final Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum", null)) {
+            while (cursor.moveToNext()) {
+                // there is nothing to read; stepping is what frees the pages
+            }
+        }
+        Log.d(Config.LOGTAG, "incremental vacuum finished in " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    public static class ExpiredMessages {
+        public final List<String> uuids = new ArrayList<>();
+        public final Set<String> files = new HashSet<>();
+        public long lastTimeSent = 0;
+    }
+
     public MamReference getLastMessageReceived(Account account) {
         Cursor cursor = null;
         try {
@@ -1242,6 +1667,64 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return maxClearDate;
     }
 
+    /**
+     * reads the key column of the axolotl tables. Keys used to be stored Base64 encoded and are
+     * converted to blobs by {@link #convertAxolotlKeysToBlob(int)}; until that is done both forms
+     * can occur.
+     */
+    private static byte[] getKeyBytes(final Cursor cursor) {
+        final int index = cursor.getColumnIndex(SQLiteAxolotlStore.KEY);
+        switch (cursor.getType(index)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(index);
+            default:
+                return Base64.decode(cursor.getString(index), Base64.DEFAULT);
+        }
+    }
+
+    /**
+     * converts up to limit Base64 encoded keys per axolotl table to blobs. The columns are
+     * declared as TEXT on databases created before but SQLite does not convert blobs stored in
+     * them, so the tables do not need to be rebuilt.
+     *
+     * @return the number of converted rows. 0 once everything has been converted
+     */
+    public int convertAxolotlKeysToBlob(final int limit) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        final String[] columns = {"rowid", SQLiteAxolotlStore.KEY};
+        final String selection = "typeof(" + SQLiteAxolotlStore.KEY + ")='text'";
+        int converted = 0;
+        db.beginTransaction();
+        try {
+            for (final String table : Arrays.asList(SQLiteAxolotlStore.SESSION_TABLENAME, SQLiteAxolotlStore.PREKEY_TABLENAME, SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME, SQLiteAxolotlStore.IDENTITIES_TABLENAME)) {
+                final Cursor cursor = db.query(table, columns, selection, null, null, null, null, String.valueOf(limit));
+                while (cursor.moveToNext()) {
+                    final String[] args = {String.valueOf(cursor.getLong(0))};
+                    final ContentValues values = new ContentValues();
+                    try {
+                        values.put(SQLiteAxolotlStore.KEY, Base64.decode(cursor.getString(1), Base64.DEFAULT));
+                    } catch (final IllegalArgumentException e) {
+                        //could not have been loaded either. identities keep their fingerprint and trust
+                        Log.d(Config.LOGTAG, "dropping invalid key from " + table);
+                        if (!SQLiteAxolotlStore.IDENTITIES_TABLENAME.equals(table)) {
+                            converted += delete(db, table, "rowid=?", args);
+                            continue;
+                        }
+                        values.putNull(SQLiteAxolotlStore.KEY);
+                    }
+                    converted += update(db, table, values, "rowid=?", args);
+                }
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return converted;
+    }
+
     private Cursor getCursorForSession(Account account, SignalProtocolAddress contact) {
         final SQLiteDatabase db = this.getReadableDatabase();
         String[] selectionArgs = {account.getUuid(),
@@ -1257,19 +1740,26 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public SessionRecord loadSession(Account account, SignalProtocolAddress contact) {
-        SessionRecord session = null;
+        final byte[] serialized = loadSerializedSession(account, contact);
+        if (serialized == null) {
+            return null;
+        }
+        try {
+            return new SessionRecord(serialized);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public byte[] loadSerializedSession(Account account, SignalProtocolAddress contact) {
+        byte[] serialized = null;
         Cursor cursor = getCursorForSession(account, contact);
         if (cursor.getCount() != 0) {
             cursor.moveToFirst();
-            try {
-                session = new SessionRecord(Base64.decode(cursor.getString(cursor.getColumnIndex(SQLiteAxolotlStore.KEY)), Base64.DEFAULT));
-            } catch (IOException e) {
-                cursor.close();
-                throw new AssertionError(e);
-            }
+            serialized = getKeyBytes(cursor);
         }
         cursor.close();
-        return session;
+        return serialized;
     }
 
     public List<Integer> getSubDeviceSessions(Account account, SignalProtocolAddress contact) {
@@ -1324,12 +1814,37 @@ public class DatabaseBackend extends SQLiteOpenHelper {
 
     public void storeSession(Account account, SignalProtocolAddress contact, SessionRecord session) {
         SQLiteDatabase db = this.getWritableDatabase();
+        storeSession(db, account, contact, session.serialize());
+    }
+
+    /**
+     * stores all sessions in one transaction
+     *
+     * @return false if any of the sessions could not be written. In that case none of them are
+     */
+    public boolean storeSessions(Account account, Map<SignalProtocolAddress, byte[]> sessions) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (final Map.Entry<SignalProtocolAddress, byte[]> entry : sessions.entrySet()) {
+                if (storeSession(db, account, entry.getKey(), entry.getValue()) == -1) {
+                    return false;
+                }
+            }
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private long storeSession(SQLiteDatabase db, Account account, SignalProtocolAddress contact, byte[] serialized) {
         ContentValues values = new ContentValues();
         values.put(SQLiteAxolotlStore.NAME, contact.getName());
         values.put(SQLiteAxolotlStore.DEVICE_ID, contact.getDeviceId());
-        values.put(SQLiteAxolotlStore.KEY, Base64.encodeToString(session.serialize(), Base64.DEFAULT));
+        values.put(SQLiteAxolotlStore.KEY, serialized);
         values.put(SQLiteAxolotlStore.ACCOUNT, account.getUuid());
-        db.insert(SQLiteAxolotlStore.SESSION_TABLENAME, null, values);
+        return insert(db, SQLiteAxolotlStore.SESSION_TABLENAME, null, values);
     }
 
     public void deleteSession(Account account, SignalProtocolAddress contact) {
@@ -1341,7 +1856,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         String[] args = {account.getUuid(),
                 contact.getName(),
                 Integer.toString(contact.getDeviceId())};
-        db.delete(SQLiteAxolotlStore.SESSION_TABLENAME,
+        delete(db, SQLiteAxolotlStore.SESSION_TABLENAME,
                 SQLiteAxolotlStore.ACCOUNT + " = ? AND "
                         + SQLiteAxolotlStore.NAME + " = ? AND "
                         + SQLiteAxolotlStore.DEVICE_ID + " = ? ",
@@ -1351,7 +1866,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     public void deleteAllSessions(Account account, SignalProtocolAddress contact) {
         SQLiteDatabase db = this.getWritableDatabase();
         String[] args = {account.getUuid(), contact.getName()};
-        db.delete(SQLiteAxolotlStore.SESSION_TABLENAME,
+        delete(db, SQLiteAxolotlStore.SESSION_TABLENAME,
                 SQLiteAxolotlStore.ACCOUNT + "=? AND "
                         + SQLiteAxolotlStore.NAME + " = ?",
                 args);
@@ -1377,7 +1892,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         if (cursor.getCount() != 0) {
             cursor.moveToFirst();
             try {
-                record = new PreKeyRecord(Base64.decode(cursor.getString(cursor.getColumnIndex(SQLiteAxolotlStore.KEY)), Base64.DEFAULT));
+                record = new PreKeyRecord(getKeyBytes(cursor));
             } catch (IOException e) {
                 throw new AssertionError(e);
             }
@@ -1397,15 +1912,15 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         SQLiteDatabase db = this.getWritableDatabase();
         ContentValues values = new ContentValues();
         values.put(SQLiteAxolotlStore.ID, record.getId());
-        values.put(SQLiteAxolotlStore.KEY, Base64.encodeToString(record.serialize(), Base64.DEFAULT));
+        values.put(SQLiteAxolotlStore.KEY, record.serialize());
         values.put(SQLiteAxolotlStore.ACCOUNT, account.getUuid());
-        db.insert(SQLiteAxolotlStore.PREKEY_TABLENAME, null, values);
+        insert(db, SQLiteAxolotlStore.PREKEY_TABLENAME, null, values);
     }
 
     public int deletePreKey(Account account, int preKeyId) {
         SQLiteDatabase db = this.getWritableDatabase();
         String[] args = {account.getUuid(), Integer.toString(preKeyId)};
-        return db.delete(SQLiteAxolotlStore.PREKEY_TABLENAME,
+        return delete(db, SQLiteAxolotlStore.PREKEY_TABLENAME,
                 SQLiteAxolotlStore.ACCOUNT + "=? AND "
                         + SQLiteAxolotlStore.ID + "=?",
                 args);
@@ -1430,7 +1945,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         if (cursor.getCount() != 0) {
             cursor.moveToFirst();
             try {
-                record = new SignedPreKeyRecord(Base64.decode(cursor.getString(cursor.getColumnIndex(SQLiteAxolotlStore.KEY)), Base64.DEFAULT));
+                record = new SignedPreKeyRecord(getKeyBytes(cursor));
             } catch (IOException e) {
                 throw new AssertionError(e);
             }
@@ -1452,7 +1967,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
 
         while (cursor.moveToNext()) {
             try {
-                prekeys.add(new SignedPreKeyRecord(Base64.decode(cursor.getString(cursor.getColumnIndex(SQLiteAxolotlStore.KEY)), Base64.DEFAULT)));
+                prekeys.add(new SignedPreKeyRecord(getKeyBytes(cursor)));
             } catch (IOException ignored) {
             }
         }
@@ -1490,15 +2005,15 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         SQLiteDatabase db = this.getWritableDatabase();
         ContentValues values = new ContentValues();
         values.put(SQLiteAxolotlStore.ID, record.getId());
-        values.put(SQLiteAxolotlStore.KEY, Base64.encodeToString(record.serialize(), Base64.DEFAULT));
+        values.put(SQLiteAxolotlStore.KEY, record.serialize());
         values.put(SQLiteAxolotlStore.ACCOUNT, account.getUuid());
-        db.insert(SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME, null, values);
+        insert(db, SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME, null, values);
     }
 
     public void deleteSignedPreKey(Account account, int signedPreKeyId) {
         SQLiteDatabase db = this.getWritableDatabase();
         String[] args = {account.getUuid(), Integer.toString(signedPreKeyId)};
-        db.delete(SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME,
+        delete(db, SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME,
                 SQLiteAxolotlStore.ACCOUNT + "=? AND "
                         + SQLiteAxolotlStore.ID + "=?",
                 args);
@@ -1563,7 +2078,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         if (cursor.getCount() != 0) {
             cursor.moveToFirst();
             try {
-                identityKeyPair = new IdentityKeyPair(Base64.decode(cursor.getString(cursor.getColumnIndex(SQLiteAxolotlStore.KEY)), Base64.DEFAULT));
+                identityKeyPair = new IdentityKeyPair(getKeyBytes(cursor));
             } catch (InvalidKeyException e) {
                 Log.d(Config.LOGTAG, AxolotlService.getLogprefix(account) + "Encountered invalid IdentityKey in database for account" + account.getJid().asBareJid() + ", address: " + name);
             }
@@ -1586,9 +2101,9 @@ public class DatabaseBackend extends SQLiteOpenHelper {
                 continue;
             }
             try {
-                String key = cursor.getString(cursor.getColumnIndex(SQLiteAxolotlStore.KEY));
+                final byte[] key = getKeyBytes(cursor);
                 if (key != null) {
-                    identityKeys.add(new IdentityKey(Base64.decode(key, Base64.DEFAULT), 0));
+                    identityKeys.add(new IdentityKey(key, 0));
                 } else {
                     Log.d(Config.LOGTAG, AxolotlService.getLogprefix(account) + "Missing key (possibly preverified) in database for account" + account.getJid().asBareJid() + ", address: " + name);
                 }
@@ -1610,7 +2125,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
                 FingerprintStatus.Trust.VERIFIED.toString(),
                 FingerprintStatus.Trust.VERIFIED_X509.toString()
         };
-        return DatabaseUtils.queryNumEntries(db, SQLiteAxolotlStore.IDENTITIES_TABLENAME,
+        return queryNumEntries(db, SQLiteAxolotlStore.IDENTITIES_TABLENAME,
                 SQLiteAxolotlStore.ACCOUNT + " = ?"
                         + " AND " + SQLiteAxolotlStore.NAME + " = ?"
                         + " AND (" + SQLiteAxolotlStore.TRUST + " = ? OR " + SQLiteAxolotlStore.TRUST + " = ? OR " + SQLiteAxolotlStore.TRUST + " = ?)"
@@ -1619,20 +2134,20 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         );
     }
 
-    private void storeIdentityKey(Account account, String name, boolean own, String fingerprint, String base64Serialized, FingerprintStatus status) {
+    private void storeIdentityKey(Account account, String name, boolean own, String fingerprint, byte[] serialized, FingerprintStatus status) {
         SQLiteDatabase db = this.getWritableDatabase();
         ContentValues values = new ContentValues();
         values.put(SQLiteAxolotlStore.ACCOUNT, account.getUuid());
         values.put(SQLiteAxolotlStore.NAME, name);
         values.put(SQLiteAxolotlStore.OWN, own ? 1 : 0);
         values.put(SQLiteAxolotlStore.FINGERPRINT, fingerprint);
-        values.put(SQLiteAxolotlStore.KEY, base64Serialized);
+        values.put(SQLiteAxolotlStore.KEY, serialized);
         values.putAll(status.toContentValues());
         String where = SQLiteAxolotlStore.ACCOUNT + "=? AND " + SQLiteAxolotlStore.NAME + "=? AND " + SQLiteAxolotlStore.FINGERPRINT + " =?";
         String[] whereArgs = {account.getUuid(), name, fingerprint};
-        int rows = db.update(SQLiteAxolotlStore.IDENTITIES_TABLENAME, values, where, whereArgs);
+        int rows = update(db, SQLiteAxolotlStore.IDENTITIES_TABLENAME, values, where, whereArgs);
         if (rows == 0) {
-            db.insert(SQLiteAxolotlStore.IDENTITIES_TABLENAME, null, values);
+            insert(db, SQLiteAxolotlStore.IDENTITIES_TABLENAME, null, values);
         }
     }
 
@@ -1644,7 +2159,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         values.put(SQLiteAxolotlStore.OWN, 0);
         values.put(SQLiteAxolotlStore.FINGERPRINT, fingerprint);
         values.putAll(status.toContentValues());
-        db.insert(SQLiteAxolotlStore.IDENTITIES_TABLENAME, null, values);
+        insert(db, SQLiteAxolotlStore.IDENTITIES_TABLENAME, null, values);
     }
 
     public FingerprintStatus getFingerprintStatus(Account account, String fingerprint) {
@@ -1670,7 +2185,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
                 account.getUuid(),
                 fingerprint
         };
-        int rows = db.update(SQLiteAxolotlStore.IDENTITIES_TABLENAME, status.toContentValues(),
+        int rows = update(db, SQLiteAxolotlStore.IDENTITIES_TABLENAME, status.toContentValues(),
                 SQLiteAxolotlStore.ACCOUNT + " = ? AND "
                         + SQLiteAxolotlStore.FINGERPRINT + " = ? ",
                 selectionArgs);
@@ -1686,7 +2201,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         try {
             ContentValues values = new ContentValues();
             values.put(SQLiteAxolotlStore.CERTIFICATE, x509Certificate.getEncoded());
-            return db.update(SQLiteAxolotlStore.IDENTITIES_TABLENAME, values,
+            return update(db, SQLiteAxolotlStore.IDENTITIES_TABLENAME, values,
                     SQLiteAxolotlStore.ACCOUNT + " = ? AND "
                             + SQLiteAxolotlStore.FINGERPRINT + " = ? ",
                     selectionArgs) == 1;
@@ -1725,11 +2240,11 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public void storeIdentityKey(Account account, String name, IdentityKey identityKey, FingerprintStatus status) {
-        storeIdentityKey(account, name, false, CryptoHelper.bytesToHex(identityKey.getPublicKey().serialize()), Base64.encodeToString(identityKey.serialize(), Base64.DEFAULT), status);
+        storeIdentityKey(account, name, false, CryptoHelper.bytesToHex(identityKey.getPublicKey().serialize()), identityKey.serialize(), status);
     }
 
     public void storeOwnIdentityKeyPair(Account account, IdentityKeyPair identityKeyPair) {
-        storeIdentityKey(account, account.getJid().asBareJid().toString(), true, CryptoHelper.bytesToHex(identityKeyPair.getPublicKey().serialize()), Base64.encodeToString(identityKeyPair.serialize(), Base64.DEFAULT), FingerprintStatus.createActiveVerified(false));
+        storeIdentityKey(account, account.getJid().asBareJid().toString(), true, CryptoHelper.bytesToHex(identityKeyPair.getPublicKey().serialize()), identityKeyPair.serialize(), FingerprintStatus.createActiveVerified(false));
     }
 
 
@@ -1752,16 +2267,16 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         String[] deleteArgs = {
                 accountName
         };
-        db.delete(SQLiteAxolotlStore.SESSION_TABLENAME,
+        delete(db, SQLiteAxolotlStore.SESSION_TABLENAME,
                 SQLiteAxolotlStore.ACCOUNT + " = ?",
                 deleteArgs);
-        db.delete(SQLiteAxolotlStore.PREKEY_TABLENAME,
+        delete(db, SQLiteAxolotlStore.PREKEY_TABLENAME,
                 SQLiteAxolotlStore.ACCOUNT + " = ?",
                 deleteArgs);
-        db.delete(SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME,
+        delete(db, SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME,
                 SQLiteAxolotlStore.ACCOUNT + " = ?",
                 deleteArgs);
-        db.delete(SQLiteAxolotlStore.IDENTITIES_TABLENAME,
+        delete(db, SQLiteAxolotlStore.IDENTITIES_TABLENAME,
                 SQLiteAxolotlStore.ACCOUNT + " = ?",
                 deleteArgs);
     }
@@ -0,0 +1,208 @@
+package eu.siacs.conversations.persistance;
+
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+import eu.siacs.conversations.Config;
+
+/**
+ * Collects per statement latency histograms for everything that goes through
+ * {@link DatabaseBackend}. Reads are measured by an instrumented cursor (time spent filling cursor
+ * windows, which is where sqlite actually executes the query), writes by DatabaseBackend itself.
+ * Schema creation and migrations mostly call execSQL() directly and are not recorded.
+ * Recording is a map lookup plus a few atomic increments so it stays enabled in release builds.
+ */
+public class DatabaseStatistics {
+
+    private static final long[] BUCKETS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+    private static final int MAX_STATEMENTS = 256;
+    private static final String OTHER = "(other)";
+    private static final Pattern PARAMETER_LIST = Pattern.compile("\\?(\\s*,\\s*\\?)+");
+
+    private final ConcurrentHashMap<String, Statement> statements = new ConcurrentHashMap<>();
+    private final long started = System.currentTimeMillis();
+
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    public void record(final String sql, final long start, final long rows) {
+        final long duration = System.nanoTime() - start;
+        final boolean mainThread = Looper.myLooper() == Looper.getMainLooper();
+        final Statement statement = getStatement(sql);
+        statement.record(duration, rows, Thread.currentThread().getName(), mainThread);
+        final long millis = TimeUnit.NANOSECONDS.toMillis(duration);
+        if (mainThread && statement.mainThreadWarned.compareAndSet(false, true)) {
+            Log.w(Config.LOGTAG, "database access on main thread: " + statement.sql, new Throwable());
+        }
+        if (millis >= Config.DATABASE_SLOW_QUERY_THRESHOLD) {
+            Log.w(Config.LOGTAG, "slow query (" + millis + "ms, " + rows + " rows, " + Thread.currentThread().getName() + "): " + statement.sql);
+        }
+    }
+
+    private Statement getStatement(final String sql) {
+        final String key = normalize(sql);
+        Statement statement = statements.get(key);
+        if (statement != null) {
+            return statement;
+        }
+        if (statements.size() >= MAX_STATEMENTS) {
+            statement = statements.get(OTHER);
+            if (statement == null) {
+                final Statement other = new Statement(OTHER);
+                statement = statements.putIfAbsent(OTHER, other);
+                return statement == null ? other : statement;
+            }
+            return statement;
+        }
+        final Statement created = new Statement(key);
+        statement = statements.putIfAbsent(key, created);
+        return statement == null ? created : statement;
+    }
+
+    private static String normalize(final String sql) {
+        final String trimmed = sql.trim();
+        if (trimmed.contains(",?") || trimmed.contains(", ?")) {
+            return PARAMETER_LIST.matcher(trimmed).replaceAll("?,...");
+        }
+        return trimmed;
+    }
+
+    public String createReport() {
+        final List<Statement> list = new ArrayList<>(statements.values());
+        Collections.sort(list, (a, b) -> Long.compare(b.totalNanos.get(), a.totalNanos.get()));
+        final StringBuilder builder = new StringBuilder();
+        builder.append("database statistics since ").append(new Date(started)).append('\n');
+        builder.append("histogram buckets (ms): <");
+        for (long bucket : BUCKETS) {
+            builder.append(bucket).append(" <");
+        }
+        builder.append("inf\n\n");
+        for (final Statement statement : list) {
+            statement.appendTo(builder);
+        }
+        return builder.toString();
+    }
+
+    private static class Statement {
+        private final String sql;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong mainThread = new AtomicLong();
+        private final AtomicBoolean mainThreadWarned = new AtomicBoolean(false);
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length + 1);
+        private final Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+        private Statement(final String sql) {
+            this.sql = sql;
+        }
+
+        private void record(final long duration, final long rows, final String thread, final boolean mainThread) {
+            this.count.incrementAndGet();
+            this.totalNanos.addAndGet(duration);
+            this.rows.addAndGet(Math.max(0, rows));
+            long max;
+            do {
+                max = maxNanos.get();
+            } while (duration > max && !maxNanos.compareAndSet(max, duration));
+            final long millis = TimeUnit.NANOSECONDS.toMillis(duration);
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis >= BUCKETS[bucket]) {
+                ++bucket;
+            }
+            histogram.incrementAndGet(bucket);
+            if (mainThread) {
+                this.mainThread.incrementAndGet();
+            }
+            if (threads.size() < 16) {
+                threads.add(thread);
+            }
+        }
+
+        private void appendTo(final StringBuilder builder) {
+            final long count = this.count.get();
+            builder.append(sql).append('\n');
+            builder.append(String.format(Locale.ENGLISH, "  calls=%d total=%.1fms avg=%.2fms max=%.1fms rows=%d main_thread=%d\n",
+                    count,
+                    totalNanos.get() / 1_000_000d,
+                    count == 0 ? 0d : totalNanos.get() / 1_000_000d / count,
+                    maxNanos.get() / 1_000_000d,
+                    rows.get(),
+                    mainThread.get()));
+            builder.append("  histogram=");
+            for (int i = 0; i < histogram.length(); ++i) {
+                builder.append(i == 0 ? "" : ",").append(histogram.get(i));
+            }
+            builder.append('\n');
+            builder.append("  threads=").append(threads).append("\n\n");
+        }
+    }
+
+    SQLiteDatabase.CursorFactory getCursorFactory() {
+        return (db, driver, editTable, query) -> new InstrumentedCursor(driver, editTable, query);
+    }
+
+    private class InstrumentedCursor extends SQLiteCursor {
+
+        private final String sql;
+        private long nanos = 0;
+        private int visited = 0;
+        private boolean recorded = false;
+
+        private InstrumentedCursor(SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+            super(driver, editTable, query);
+            final String description = query.toString();
+            this.sql = description.startsWith("SQLiteQuery: ") ? description.substring(13) : description;
+        }
+
+        @Override
+        public int getCount() {
+            final long start = now();
+            try {
+                return super.getCount();
+            } finally {
+                nanos += now() - start;
+            }
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            final long start = now();
+            try {
+                return super.onMove(oldPosition, newPosition);
+            } finally {
+                visited = Math.max(visited, newPosition + 1);
+                nanos += now() - start;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!recorded && !isClosed()) {
+                recorded = true;
+                // getCount() would fill a window for cursors that have never been read
+                record(sql, now() - nanos, visited);
+            }
+            super.close();
+        }
+    }
+}
@@ -54,10 +54,15 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
@@ -66,6 +71,7 @@ import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.services.AttachFileToConversationRunnable;
 import eu.siacs.conversations.services.XmppConnectionService;
 import eu.siacs.conversations.ui.util.Attachment;
+import eu.siacs.conversations.utils.BitmapPool;
 import eu.siacs.conversations.utils.Compatibility;
 import eu.siacs.conversations.utils.CryptoHelper;
 import eu.siacs.conversations.utils.ExifHelper;
@@ -78,7 +84,15 @@ import ezvcard.VCard;
 
 public class FileBackend {
 
-    private static final Object THUMBNAIL_LOCK = new Object();
+    private static final Object[] THUMBNAIL_LOCKS = new Object[16];
+    private static final int THUMBNAIL_CACHE_VERSION = 1;
+    private static final AtomicInteger THUMBNAIL_CACHE_WRITES = new AtomicInteger();
+
+    static {
+        for (int i = 0; i < THUMBNAIL_LOCKS.length; ++i) {
+            THUMBNAIL_LOCKS[i] = new Object();
+        }
+    }
 
     private static final SimpleDateFormat fileDateFormat = new SimpleDateFormat("yyyyMMdd_HHmmssSSS", Locale.US);
 
@@ -202,6 +216,7 @@ public class FileBackend {
 
     public boolean deleteFile(File file) {
         if (file.delete()) {
+            deleteThumbnails(Collections.singletonList(file));
             updateMediaScanner(file);
             return true;
         } else {
@@ -349,43 +364,57 @@ public class FileBackend {
     }
 
     private Bitmap resize(final Bitmap originalBitmap, int size) throws IOException {
+        return resize(originalBitmap, size, 0);
+    }
+
+    /**
+     * scales the bitmap down so its longer side is at most the given size and rotates it in the
+     * same draw. The original goes back to the bitmap pool.
+     */
+    private Bitmap resize(final Bitmap originalBitmap, int size, int rotation) throws IOException {
         int w = originalBitmap.getWidth();
         int h = originalBitmap.getHeight();
         if (w <= 0 || h <= 0) {
             throw new IOException("Decoded bitmap reported bounds smaller 0");
-        } else if (Math.max(w, h) > size) {
+        } else if (Math.max(w, h) > size || rotation != 0) {
             int scalledW;
             int scalledH;
-            if (w <= h) {
+            if (Math.max(w, h) <= size) {
+                scalledW = w;
+                scalledH = h;
+            } else if (w <= h) {
                 scalledW = Math.max((int) (w / ((double) h / size)), 1);
                 scalledH = size;
             } else {
                 scalledW = size;
                 scalledH = Math.max((int) (h / ((double) w / size)), 1);
             }
-            final Bitmap result = Bitmap.createScaledBitmap(originalBitmap, scalledW, scalledH, true);
-            if (!originalBitmap.isRecycled()) {
-                originalBitmap.recycle();
-            }
+            final boolean swap = rotation == 90 || rotation == 270;
+            final Bitmap result = mXmppConnectionService.getBitmapPool().get(swap ? scalledH : scalledW, swap ? scalledW : scalledH);
+            final Matrix matrix = new Matrix();
+            matrix.postScale((float) scalledW / w, (float) scalledH / h);
+            matrix.postConcat(createRotationMatrix(scalledW, scalledH, rotation));
+            new Canvas(result).drawBitmap(originalBitmap, matrix, createAntiAliasingPaint());
+            mXmppConnectionService.getBitmapPool().put(originalBitmap);
             return result;
         } else {
             return originalBitmap;
         }
     }
 
-    private static Bitmap rotate(Bitmap bitmap, int degree) {
-        if (degree == 0) {
-            return bitmap;
-        }
-        int w = bitmap.getWidth();
-        int h = bitmap.getHeight();
-        Matrix mtx = new Matrix();
-        mtx.postRotate(degree);
-        Bitmap result = Bitmap.createBitmap(bitmap, 0, 0, w, h, mtx, true);
-        if (bitmap != null && !bitmap.isRecycled()) {
-            bitmap.recycle();
+    /**
+     * @return a matrix that rotates a bitmap of the given dimensions and moves the result back
+     * to the origin
+     */
+    private static Matrix createRotationMatrix(int width, int height, int rotation) {
+        final Matrix matrix = new Matrix();
+        if (rotation != 0) {
+            matrix.postRotate(rotation);
+            final RectF bounds = new RectF(0, 0, width, height);
+            matrix.mapRect(bounds);
+            matrix.postTranslate(-bounds.left, -bounds.top);
         }
-        return result;
+        return matrix;
     }
 
     public boolean useImageAsIs(Uri uri) {
@@ -555,9 +584,8 @@ public class FileBackend {
             } else {
                 size = mXmppConnectionService.getCompressImageResolutionPreference();
             }
-            Bitmap scaledBitmap = resize(originalBitmap, size);
             int rotation = getRotation(image);
-            scaledBitmap = rotate(scaledBitmap, rotation);
+            Bitmap scaledBitmap = resize(originalBitmap, size, rotation);
             boolean targetSizeReached = false;
             int quality = Config.IMAGE_QUALITY;
             while (!targetSizeReached) {
@@ -570,7 +598,7 @@ public class FileBackend {
                 targetSizeReached = (file.length() <= mXmppConnectionService.getCompressImageSizePreference() && mXmppConnectionService.getCompressImageSizePreference() != 0) || quality <= 50;
                 quality -= 5;
             }
-            scaledBitmap.recycle();
+            mXmppConnectionService.getBitmapPool().put(scaledBitmap);
         } catch (FileNotFoundException e) {
             throw new FileCopyException(R.string.error_file_not_found);
         } catch (IOException e) {
@@ -652,13 +680,22 @@ public class FileBackend {
         final LruCache<String, Bitmap> cache = mXmppConnectionService.getBitmapCache();
         Bitmap thumbnail = cache.get(key);
         if ((thumbnail == null) && (!cacheOnly)) {
-            synchronized (THUMBNAIL_LOCK) {
+            // thumbnails of different messages are generated concurrently; only requests for
+            // the same key (or one that happens to share its lock) wait for each other
+            synchronized (THUMBNAIL_LOCKS[(key.hashCode() & 0x7fffffff) % THUMBNAIL_LOCKS.length]) {
                 thumbnail = cache.get(key);
                 if (thumbnail != null) {
                     return thumbnail;
                 }
                 DownloadableFile file = getFile(message);
                 final String mime = file.getMimeType();
+                final int rotation = mime != null && mime.startsWith("image/") ? getRotation(file) : 0;
+                final File cached = getThumbnailCacheFile(file, size, rotation);
+                thumbnail = readThumbnailCache(cached);
+                if (thumbnail != null) {
+                    cache.put(key, thumbnail);
+                    return thumbnail;
+                }
                 if ("application/pdf".equals(mime) && Compatibility.runsTwentyOne()) {
                     thumbnail = getPDFPreview(file, size);
                 } else if (mime.startsWith("video/")) {
@@ -668,21 +705,162 @@ public class FileBackend {
                     if (fullsize == null) {
                         throw new FileNotFoundException();
                     }
-                    thumbnail = resize(fullsize, size);
-                    thumbnail = rotate(thumbnail, getRotation(file));
+                    thumbnail = resize(fullsize, size, rotation);
                     if (mime.equals("image/gif")) {
-                        Bitmap withGifOverlay = thumbnail.copy(Bitmap.Config.ARGB_8888, true);
-                        drawOverlay(withGifOverlay, R.drawable.play_gif, 1.0f);
-                        thumbnail.recycle();
-                        thumbnail = withGifOverlay;
+                        if (!thumbnail.isMutable()) {
+                            Bitmap withGifOverlay = thumbnail.copy(Bitmap.Config.ARGB_8888, true);
+                            thumbnail.recycle();
+                            thumbnail = withGifOverlay;
+                        }
+                        drawOverlay(thumbnail, R.drawable.play_gif, 1.0f);
                     }
                 }
+                writeThumbnailCache(cached, thumbnail);
                 cache.put(key, thumbnail);
             }
         }
         return thumbnail;
     }
 
+    /**
+     * @return the place for the thumbnail on disk. The name starts with a hash of the path, so
+     * all thumbnails of a file can be found again, followed by a hash of the length and
+     * modification time of the file together with size and rotation of the thumbnail, so a file
+     * that changes gets a new entry and stale ones simply age out. Null if there is no file.
+     */
+    private File getThumbnailCacheFile(final File file, final int size, final int rotation) {
+        if (!file.exists()) {
+            return null;
+        }
+        final String key = THUMBNAIL_CACHE_VERSION + ":" + file.length() + ":" + file.lastModified() + ":" + size + ":" + rotation;
+        return new File(getThumbnailCacheDirectory(), getThumbnailCachePrefix(file) + CryptoHelper.getFingerprint(key));
+    }
+
+    private static String getThumbnailCachePrefix(final File file) {
+        return CryptoHelper.getFingerprint(file.getAbsolutePath()) + "-";
+    }
+
+    /**
+     * removes the thumbnails of the given files from the disk cache. Called when the files are
+     * deleted or the messages that refer to them are gone.
+     */
+    public void deleteThumbnails(final Collection<File> files) {
+        if (files.isEmpty()) {
+            return;
+        }
+        final HashSet<String> prefixes = new HashSet<>();
+        for (final File file : files) {
+            prefixes.add(getThumbnailCachePrefix(file));
+        }
+        synchronized (THUMBNAIL_CACHE_WRITES) {
+            final File[] cached = getThumbnailCacheDirectory().listFiles();
+            if (cached == null) {
+                return;
+            }
+            int deleted = 0;
+            for (final File file : cached) {
+                final String name = file.getName();
+                final int separator = name.indexOf('-');
+                if (separator > 0 && prefixes.contains(name.substring(0, separator + 1)) && file.delete()) {
+                    ++deleted;
+                }
+            }
+            if (deleted > 0) {
+                Log.d(Config.LOGTAG, "removed " + deleted + " thumbnails of " + files.size() + " files from disk cache");
+            }
+        }
+    }
+
+    private File getThumbnailCacheDirectory() {
+        return new File(mXmppConnectionService.getCacheDir(), "thumbnails");
+    }
+
+    private static Bitmap readThumbnailCache(final File cached) {
+        if (cached == null || !cached.exists()) {
+            return null;
+        }
+        final Bitmap bitmap = BitmapFactory.decodeFile(cached.getAbsolutePath());
+        if (bitmap == null) {
+            Log.d(Config.LOGTAG, "unable to decode cached thumbnail " + cached.getName());
+            cached.delete();
+            return null;
+        }
+        //the modification time is used to find the least recently used thumbnails when trimming
+        cached.setLastModified(System.currentTimeMillis());
+        return bitmap;
+    }
+
+    private void writeThumbnailCache(final File cached, final Bitmap thumbnail) {
+        if (cached == null || thumbnail == null) {
+            return;
+        }
+        final File directory = cached.getParentFile();
+        if (directory != null && directory.mkdirs()) {
+            Log.d(Config.LOGTAG, "created thumbnail cache " + directory.getAbsolutePath());
+        }
+        final File temporary = new File(cached.getAbsolutePath() + ".tmp");
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(temporary);
+            //keep transparent images transparent; everything else is stored more compact as jpeg
+            final boolean compressed = thumbnail.hasAlpha() ? thumbnail.compress(Bitmap.CompressFormat.PNG, 100, os) : thumbnail.compress(Bitmap.CompressFormat.JPEG, 90, os);
+            os.flush();
+            close(os);
+            os = null;
+            if (!compressed || !temporary.renameTo(cached)) {
+                temporary.delete();
+                return;
+            }
+        } catch (final IOException e) {
+            Log.d(Config.LOGTAG, "unable to write thumbnail to cache (" + e.getMessage() + ")");
+            close(os);
+            temporary.delete();
+            return;
+        }
+        if (THUMBNAIL_CACHE_WRITES.getAndIncrement() % 32 == 0) {
+            trimThumbnailCache(Config.THUMBNAIL_CACHE_SIZE);
+        }
+    }
+
+    /**
+     * removes the least recently used thumbnails until the cache is below three quarters of the
+     * given size
+     */
+    private void trimThumbnailCache(final long maxSize) {
+        synchronized (THUMBNAIL_CACHE_WRITES) {
+            final File[] files = getThumbnailCacheDirectory().listFiles();
+            if (files == null) {
+                return;
+            }
+            long total = 0;
+            for (final File file : files) {
+                total += file.length();
+            }
+            if (total <= maxSize) {
+                return;
+            }
+            final long[] lastModified = new long[files.length];
+            final Integer[] order = new Integer[files.length];
+            for (int i = 0; i < files.length; ++i) {
+                lastModified[i] = files[i].lastModified();
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(lastModified[a], lastModified[b]));
+            int deleted = 0;
+            for (final Integer i : order) {
+                if (total <= maxSize * 3 / 4) {
+                    break;
+                }
+                final long length = files[i].length();
+                if (files[i].delete()) {
+                    total -= length;
+                    ++deleted;
+                }
+            }
+            Log.d(Config.LOGTAG, "removed " + deleted + " thumbnails from disk cache");
+        }
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     private Bitmap getPDFPreview(final File file, int size) {
         try {
@@ -724,13 +902,57 @@ public class FileBackend {
     }
 
     private Bitmap getFullsizeImagePreview(File file, int size) {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inSampleSize = calcSampleSize(file, size);
+        final Uri uri = Uri.fromFile(file);
         try {
-            return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
-        } catch (OutOfMemoryError e) {
-            options.inSampleSize *= 2;
-            return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+            try {
+                return decodeSampled(uri, size);
+            } catch (OutOfMemoryError e) {
+                return decodeSampled(uri, size / 2);
+            }
+        } catch (FileNotFoundException | SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * decodes the image with the largest power of two sample size that still leaves it at least
+     * as large as the requested size, into a bitmap from the pool where possible. Anything
+     * beyond that is done in one draw by the caller.
+     */
+    private Bitmap decodeSampled(final Uri image, final int size) throws FileNotFoundException, SecurityException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(image, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        final int sampleSize = calcSampleSize(options, size);
+        options.inSampleSize = sampleSize;
+        options.inJustDecodeBounds = false;
+        final BitmapPool pool = mXmppConnectionService.getBitmapPool();
+        pool.setInBitmap(options, (options.outWidth + sampleSize - 1) / sampleSize, (options.outHeight + sampleSize - 1) / sampleSize);
+        if (options.inBitmap != null) {
+            try {
+                final Bitmap bitmap = decodeStream(image, options);
+                if (bitmap != null) {
+                    return bitmap;
+                }
+            } catch (final IllegalArgumentException e) {
+                Log.d(Config.LOGTAG, "unable to decode into pooled bitmap (" + e.getMessage() + ")");
+            }
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+        }
+        return decodeStream(image, options);
+    }
+
+    private Bitmap decodeStream(final Uri image, final BitmapFactory.Options options) throws FileNotFoundException {
+        InputStream is = null;
+        try {
+            is = mXmppConnectionService.getContentResolver().openInputStream(image);
+            return is == null ? null : BitmapFactory.decodeStream(is, null, options);
+        } finally {
+            close(is);
         }
     }
 
@@ -886,7 +1108,7 @@ public class FileBackend {
         }
         if (hasAlpha(bm)) {
             Log.d(Config.LOGTAG, "alpha in avatar detected; uploading as PNG");
-            bm.recycle();
+            mXmppConnectionService.getBitmapPool().put(bm);
             bm = cropCenterSquare(image, 96);
             return getPepAvatar(bm, Bitmap.CompressFormat.PNG, 100);
         }
@@ -1057,20 +1279,12 @@ public class FileBackend {
         if (image == null) {
             return null;
         }
-        InputStream is = null;
         try {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inSampleSize = calcSampleSize(image, size);
-            is = mXmppConnectionService.getContentResolver().openInputStream(image);
-            if (is == null) {
-                return null;
-            }
-            Bitmap input = BitmapFactory.decodeStream(is, null, options);
+            final Bitmap input = decodeSampled(image, size);
             if (input == null) {
                 return null;
             } else {
-                input = rotate(input, getRotation(image));
-                return cropCenterSquare(input, size);
+                return cropCenterSquare(input, size, getRotation(image));
             }
         } catch (FileNotFoundException e) {
             Log.d(Config.LOGTAG, "unable to open file " + image.toString(), e);
@@ -1078,8 +1292,6 @@ public class FileBackend {
         } catch (SecurityException e) {
             Log.d(Config.LOGTAG, "unable to open file " + image.toString(), e);
             return null;
-        } finally {
-            close(is);
         }
     }
 
@@ -1087,15 +1299,8 @@ public class FileBackend {
         if (image == null) {
             return null;
         }
-        InputStream is = null;
         try {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inSampleSize = calcSampleSize(image, Math.max(newHeight, newWidth));
-            is = mXmppConnectionService.getContentResolver().openInputStream(image);
-            if (is == null) {
-                return null;
-            }
-            Bitmap source = BitmapFactory.decodeStream(is, null, options);
+            final Bitmap source = decodeSampled(image, Math.max(newHeight, newWidth));
             if (source == null) {
                 return null;
             }
@@ -1110,25 +1315,29 @@ public class FileBackend {
             float top = (newHeight - scaledHeight) / 2;
 
             RectF targetRect = new RectF(left, top, left + scaledWidth, top + scaledHeight);
-            Bitmap dest = Bitmap.createBitmap(newWidth, newHeight, Bitmap.Config.ARGB_8888);
+            Bitmap dest = mXmppConnectionService.getBitmapPool().get(newWidth, newHeight);
             Canvas canvas = new Canvas(dest);
             canvas.drawBitmap(source, null, targetRect, createAntiAliasingPaint());
-            if (source.isRecycled()) {
-                source.recycle();
-            }
+            mXmppConnectionService.getBitmapPool().put(source);
             return dest;
         } catch (SecurityException e) {
             return null; //android 6.0 with revoked permissions for example
         } catch (FileNotFoundException e) {
             return null;
-        } finally {
-            close(is);
         }
     }
 
     public Bitmap cropCenterSquare(Bitmap input, int size) {
-        int w = input.getWidth();
-        int h = input.getHeight();
+        return cropCenterSquare(input, size, 0);
+    }
+
+    /**
+     * rotates, scales and crops the input in one draw. The input goes back to the bitmap pool.
+     */
+    private Bitmap cropCenterSquare(Bitmap input, int size, int rotation) {
+        final boolean swap = rotation == 90 || rotation == 270;
+        int w = swap ? input.getHeight() : input.getWidth();
+        int h = swap ? input.getWidth() : input.getHeight();
 
         float scale = Math.max((float) size / h, (float) size / w);
 
@@ -1136,31 +1345,17 @@ public class FileBackend {
         float outHeight = scale * h;
         float left = (size - outWidth) / 2;
         float top = (size - outHeight) / 2;
-        RectF target = new RectF(left, top, left + outWidth, top + outHeight);
+        final Matrix matrix = createRotationMatrix(input.getWidth(), input.getHeight(), rotation);
+        matrix.postScale(scale, scale);
+        matrix.postTranslate(left, top);
 
-        Bitmap output = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Bitmap output = mXmppConnectionService.getBitmapPool().get(size, size);
         Canvas canvas = new Canvas(output);
-        canvas.drawBitmap(input, null, target, createAntiAliasingPaint());
-        if (!input.isRecycled()) {
-            input.recycle();
-        }
+        canvas.drawBitmap(input, matrix, createAntiAliasingPaint());
+        mXmppConnectionService.getBitmapPool().put(input);
         return output;
     }
 
-    private int calcSampleSize(Uri image, int size) throws FileNotFoundException, SecurityException {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeStream(mXmppConnectionService.getContentResolver().openInputStream(image), null, options);
-        return calcSampleSize(options, size);
-    }
-
-    private static int calcSampleSize(File image, int size) {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(image.getAbsolutePath(), options);
-        return calcSampleSize(options, size);
-    }
-
     private static int calcSampleSize(BitmapFactory.Options options, int size) {
         int height = options.outHeight;
         int width = options.outWidth;
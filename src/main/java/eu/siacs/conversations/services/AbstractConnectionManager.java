@@ -5,6 +5,7 @@ import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
 
+import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.bouncycastle.crypto.engines.AESEngine;
 import org.bouncycastle.crypto.io.CipherInputStream;
 import org.bouncycastle.crypto.io.CipherOutputStream;
@@ -13,14 +14,20 @@ import org.bouncycastle.crypto.modes.GCMBlockCipher;
 import org.bouncycastle.crypto.params.AEADParameters;
 import org.bouncycastle.crypto.params.KeyParameter;
 
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.crypto.NoSuchPaddingException;
@@ -28,11 +35,14 @@ import javax.crypto.NoSuchPaddingException;
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
 import eu.siacs.conversations.entities.DownloadableFile;
+import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.utils.Compatibility;
 
 public class AbstractConnectionManager {
     private static final int UI_REFRESH_THRESHOLD = Config.REFRESH_UI_INTERVAL;
     private static final AtomicLong LAST_UI_UPDATE_CALL = new AtomicLong(0);
+    private static final ScheduledExecutorService UI_UPDATE_TIMER = Executors.newSingleThreadScheduledExecutor();
+    private static boolean uiUpdateScheduled = false;
     protected XmppConnectionService mXmppConnectionService;
 
     public AbstractConnectionManager(XmppConnectionService service) {
@@ -63,13 +73,51 @@ public class AbstractConnectionManager {
         try {
             AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
             cipher.init(false, new AEADParameters(new KeyParameter(file.getKey()), 128, file.getIv()));
+            if (append) {
+                final long skip = restoreDecryptionState(file, cipher);
+                if (skip > 0) {
+                    return new CipherOutputStream(new SkippingOutputStream(os, skip), cipher);
+                }
+            }
             return new CipherOutputStream(os, cipher);
         } catch (Exception e) {
             Log.d(Config.LOGTAG, "unable to create cipher output stream", e);
+            FileBackend.close(os);
             return null;
         }
     }
 
+    /**
+     * brings a decrypting cipher to the state it had after the plaintext already in the file.
+     * The plaintext is encrypted once more, which yields the ciphertext received so far, and fed
+     * through the cipher. GCM ciphertext has the same length as the plaintext, so a download can
+     * continue at the file size.
+     *
+     * @return the number of bytes the cipher will output again because it held them back as a
+     * potential authentication tag
+     */
+    private static long restoreDecryptionState(final DownloadableFile file, final AEADBlockCipher cipher) throws IOException, InvalidCipherTextException {
+        final AEADBlockCipher encryption = new GCMBlockCipher(new AESEngine());
+        encryption.init(true, new AEADParameters(new KeyParameter(file.getKey()), 128, file.getIv()));
+        final byte[] buffer = new byte[Config.FILE_TRANSFER_BUFFER_SIZE];
+        final byte[] ciphertext = new byte[buffer.length + 64];
+        final byte[] discarded = new byte[ciphertext.length + 64];
+        long plaintext = 0;
+        long restored = 0;
+        try (final InputStream is = new FileInputStream(file)) {
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                plaintext += count;
+                final int encrypted = encryption.processBytes(buffer, 0, count, ciphertext, 0);
+                restored += cipher.processBytes(ciphertext, 0, encrypted, discarded, 0);
+            }
+        }
+        //the remaining ciphertext is only released together with the tag, which is not part of it
+        final int remaining = encryption.doFinal(ciphertext, 0) - encryption.getMac().length;
+        restored += cipher.processBytes(ciphertext, 0, remaining, discarded, 0);
+        return plaintext - restored;
+    }
+
     public XmppConnectionService getXmppConnectionService() {
         return this.mXmppConnectionService;
     }
@@ -101,11 +149,25 @@ public class AbstractConnectionManager {
         return Compatibility.hasStoragePermission(mXmppConnectionService);
     }
 
+    /**
+     * progress updates of all transfers are coalesced into at most one UI update per
+     * {@link Config#REFRESH_UI_INTERVAL}. An update that falls into the interval is delivered at
+     * its end instead of being dropped, so the last progress is always shown.
+     */
     public void updateConversationUi(boolean force) {
         synchronized (LAST_UI_UPDATE_CALL) {
-            if (force || SystemClock.elapsedRealtime() - LAST_UI_UPDATE_CALL.get() >= UI_REFRESH_THRESHOLD) {
+            final long wait = UI_REFRESH_THRESHOLD - (SystemClock.elapsedRealtime() - LAST_UI_UPDATE_CALL.get());
+            if (force || wait <= 0) {
                 LAST_UI_UPDATE_CALL.set(SystemClock.elapsedRealtime());
                 mXmppConnectionService.updateConversationUi();
+            } else if (!uiUpdateScheduled) {
+                uiUpdateScheduled = true;
+                UI_UPDATE_TIMER.schedule(() -> {
+                    synchronized (LAST_UI_UPDATE_CALL) {
+                        uiUpdateScheduled = false;
+                    }
+                    updateConversationUi(false);
+                }, wait, TimeUnit.MILLISECONDS);
             }
         }
     }
@@ -115,6 +177,34 @@ public class AbstractConnectionManager {
         return powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, name);
     }
 
+    private static class SkippingOutputStream extends FilterOutputStream {
+
+        private long skip;
+
+        private SkippingOutputStream(final OutputStream os, final long skip) {
+            super(os);
+            this.skip = skip;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (skip > 0) {
+                --skip;
+            } else {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            final int skipped = (int) Math.min(skip, len);
+            skip -= skipped;
+            if (len > skipped) {
+                out.write(b, off + skipped, len - skipped);
+            }
+        }
+    }
+
     public static class Extension {
         public final String main;
         public final String secondary;
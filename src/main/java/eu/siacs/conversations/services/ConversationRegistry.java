@@ -0,0 +1,153 @@
+package eu.siacs.conversations.services;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.entities.Conversation;
+import eu.siacs.conversations.xmpp.Jid;
+
+/**
+ * The open conversations, indexed by uuid and by account and bare jid. Lookups are lock free map
+ * accesses. Modifications synchronize on the registry itself (XmppConnectionService already
+ * synchronizes on it for compound operations). As a list the registry behaves like the
+ * CopyOnWriteArrayList it replaces: it is in insertion order and iterators work on a snapshot,
+ * but the snapshot is only created on the first read after a change instead of on every add.
+ */
+public class ConversationRegistry extends AbstractList<Conversation> implements RandomAccess {
+
+    private final LinkedHashMap<String, Conversation> ordered = new LinkedHashMap<>();
+    private final ConcurrentHashMap<String, Conversation> byUuid = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Address, Conversation> byAddress = new ConcurrentHashMap<>();
+    private volatile Conversation[] view = new Conversation[0];
+
+    public Conversation find(final Account account, final Jid jid) {
+        if (account == null || jid == null) {
+            return null;
+        }
+        return byAddress.get(new Address(account, jid.asBareJid()));
+    }
+
+    public Conversation findByUuid(final String uuid) {
+        return uuid == null ? null : byUuid.get(uuid);
+    }
+
+    @Override
+    public synchronized boolean add(final Conversation conversation) {
+        if (ordered.containsKey(conversation.getUuid())) {
+            return false;
+        }
+        ordered.put(conversation.getUuid(), conversation);
+        byUuid.put(conversation.getUuid(), conversation);
+        byAddress.putIfAbsent(Address.of(conversation), conversation);
+        view = null;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean addAll(final Collection<? extends Conversation> conversations) {
+        boolean changed = false;
+        for (final Conversation conversation : conversations) {
+            changed |= add(conversation);
+        }
+        return changed;
+    }
+
+    @Override
+    public synchronized boolean remove(final Object object) {
+        if (!(object instanceof Conversation)) {
+            return false;
+        }
+        final Conversation conversation = (Conversation) object;
+        if (ordered.get(conversation.getUuid()) != conversation) {
+            return false;
+        }
+        ordered.remove(conversation.getUuid());
+        byUuid.remove(conversation.getUuid(), conversation);
+        final Address address = Address.of(conversation);
+        if (byAddress.remove(address, conversation)) {
+            //there should not be duplicates but if there are the next one takes over
+            for (final Conversation candidate : ordered.values()) {
+                if (address.equals(Address.of(candidate))) {
+                    byAddress.put(address, candidate);
+                    break;
+                }
+            }
+        }
+        view = null;
+        return true;
+    }
+
+    @Override
+    public boolean contains(final Object object) {
+        return object instanceof Conversation && byUuid.get(((Conversation) object).getUuid()) == object;
+    }
+
+    @Override
+    public synchronized void clear() {
+        ordered.clear();
+        byUuid.clear();
+        byAddress.clear();
+        view = null;
+    }
+
+    @Override
+    public Conversation get(final int index) {
+        return view()[index];
+    }
+
+    @Override
+    public int size() {
+        return view().length;
+    }
+
+    @Override
+    public Iterator<Conversation> iterator() {
+        return Arrays.asList(view()).iterator();
+    }
+
+    private Conversation[] view() {
+        final Conversation[] current = this.view;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (this.view == null) {
+                this.view = ordered.values().toArray(new Conversation[0]);
+            }
+            return this.view;
+        }
+    }
+
+    private static class Address {
+        private final Account account;
+        private final Jid jid;
+
+        private Address(final Account account, final Jid jid) {
+            this.account = account;
+            this.jid = jid;
+        }
+
+        private static Address of(final Conversation conversation) {
+            return new Address(conversation.getAccount(), conversation.getJid().asBareJid());
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Address address = (Address) o;
+            return account == address.account && jid.equals(address.jid);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(account) + jid.hashCode();
+        }
+    }
+}
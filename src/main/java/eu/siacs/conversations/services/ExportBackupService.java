@@ -56,6 +56,7 @@ import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.utils.BackupFileHeader;
 import eu.siacs.conversations.utils.Compatibility;
+import eu.siacs.conversations.utils.CryptoHelper;
 import eu.siacs.conversations.utils.WakeLockHelper;
 import eu.siacs.conversations.xmpp.Jid;
 
@@ -215,6 +216,10 @@ public class ExportBackupService extends Service {
             if (i != 0) {
                 builder.append(',');
             }
+            if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+                builder.append("X'").append(CryptoHelper.bytesToHex(cursor.getBlob(i))).append('\'');
+                continue;
+            }
             final String value = cursor.getString(i);
             if (value == null) {
                 builder.append("NULL");
@@ -132,7 +132,7 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
     }
 
     void catchupMUC(final Conversation conversation) {
-        if (conversation.getLastMessageTransmitted().getTimestamp() < 0 && conversation.countMessages() == 0) {
+        if (conversation.getLastMessageTransmitted().getTimestamp() < 0 && !conversation.hasMessages()) {
             query(conversation,
                     new MamReference(0),
                     0,
@@ -146,7 +146,7 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
     }
 
     public Query query(final Conversation conversation) {
-        if (conversation.getLastMessageTransmitted().getTimestamp() < 0 && conversation.countMessages() == 0) {
+        if (conversation.getLastMessageTransmitted().getTimestamp() < 0 && !conversation.hasMessages()) {
             return query(conversation,
                     new MamReference(0),
                     System.currentTimeMillis(),
@@ -341,6 +341,7 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
     }
 
     private void processFin(Query query, Element fin) {
+        mXmppConnectionService.getMessageParser().processDeferred(query.getAccount(), true);
         boolean complete = fin.getAttributeAsBoolean("complete");
         Element set = fin.findChild("set", "http://jabber.org/protocol/rsm");
         Element last = set == null ? null : set.findChild("last");
@@ -1425,6 +1425,10 @@ public class NotificationService {
         this.mOpenConversation = conversation;
     }
 
+    public boolean isConversationOpen(final Conversational conversation) {
+        return this.mIsInForeground && this.mOpenConversation != null && this.mOpenConversation == conversation;
+    }
+
     public void setIsInForeground(final boolean foreground) {
         this.mIsInForeground = foreground;
     }
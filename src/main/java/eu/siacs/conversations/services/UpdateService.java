@@ -12,24 +12,16 @@ import android.widget.Toast;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
 
 import eu.siacs.conversations.BuildConfig;
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
-import eu.siacs.conversations.http.NoSSLv3SocketFactory;
+import eu.siacs.conversations.http.HttpConnectionManager;
 import eu.siacs.conversations.ui.UpdaterActivity;
 import me.drakeet.support.toast.ToastCompat;
-
-import static eu.siacs.conversations.http.HttpConnectionManager.getProxy;
+import okhttp3.Request;
+import okhttp3.Response;
 
 public class UpdateService extends AsyncTask<String, Object, UpdateService.Wrapper> {
     private boolean mUseTor;
@@ -57,41 +49,18 @@ public class UpdateService extends AsyncTask<String, Object, UpdateService.Wrapp
         if (params[0].equals("true")) {
             showNoUpdateToast = true;
         }
-        SSLContext sslcontext = null;
-        SSLSocketFactory NoSSLv3Factory = null;
-        try {
-            sslcontext = SSLContext.getInstance("TLSv1");
-            if (sslcontext != null) {
-                sslcontext.init(null, null, null);
-                NoSSLv3Factory = new NoSSLv3SocketFactory(sslcontext.getSocketFactory());
-            }
-        } catch (NoSuchAlgorithmException | KeyManagementException e) {
-            e.printStackTrace();
-        }
-        HttpsURLConnection.setDefaultSSLSocketFactory(NoSSLv3Factory);
-        HttpsURLConnection connection = null;
-        try {
-            URL url = new URL(Config.UPDATE_URL);
-            if (mUseTor) {
-                connection = (HttpsURLConnection) url.openConnection(getProxy());
-            } else {
-                connection = (HttpsURLConnection) url.openConnection();
-            }
-            connection.setConnectTimeout(Config.SOCKET_TIMEOUT * 1000);
-            connection.setReadTimeout(Config.SOCKET_TIMEOUT * 1000);
-            connection.setRequestProperty("User-Agent", context.getString(R.string.app_name));
-            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                jsonString.append(line);
+        final Request request = new Request.Builder()
+                .url(Config.UPDATE_URL)
+                .header("User-Agent", context.getString(R.string.app_name))
+                .build();
+        try (final Response response = HttpConnectionManager.getClient(mUseTor).newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException("unexpected response code " + response.code());
             }
+            jsonString.append(response.body().string());
         } catch (Exception e) {
             e.printStackTrace();
             isError = true;
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
         }
 
         try {
@@ -21,11 +21,13 @@ import android.media.AudioManager;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.os.SystemClock;
@@ -67,6 +69,7 @@ import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
@@ -77,9 +80,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.WeakHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -99,6 +101,7 @@ import eu.siacs.conversations.entities.Blockable;
 import eu.siacs.conversations.entities.Bookmark;
 import eu.siacs.conversations.entities.Contact;
 import eu.siacs.conversations.entities.Conversation;
+import eu.siacs.conversations.entities.ConversationSummary;
 import eu.siacs.conversations.entities.Conversational;
 import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.entities.MucOptions;
@@ -126,6 +129,7 @@ import eu.siacs.conversations.ui.UiCallback;
 import eu.siacs.conversations.ui.interfaces.OnAvatarPublication;
 import eu.siacs.conversations.ui.interfaces.OnMediaLoaded;
 import eu.siacs.conversations.ui.interfaces.OnSearchResultsAvailable;
+import eu.siacs.conversations.utils.BitmapPool;
 import eu.siacs.conversations.utils.Compatibility;
 import eu.siacs.conversations.utils.ConversationsFileObserver;
 import eu.siacs.conversations.utils.CryptoHelper;
@@ -149,7 +153,6 @@ import eu.siacs.conversations.xmpp.OnContactStatusChanged;
 import eu.siacs.conversations.xmpp.OnIqPacketReceived;
 import eu.siacs.conversations.xmpp.OnKeyStatusUpdated;
 import eu.siacs.conversations.xmpp.OnMessageAcknowledged;
-import eu.siacs.conversations.xmpp.OnMessagePacketReceived;
 import eu.siacs.conversations.xmpp.OnPresencePacketReceived;
 import eu.siacs.conversations.xmpp.OnStatusChanged;
 import eu.siacs.conversations.xmpp.OnUpdateBlocklist;
@@ -196,6 +199,8 @@ public class XmppConnectionService extends Service {
     public static final String FDroid = "org.fdroid.fdroid";
     public static final String PlayStore = "com.android.vending";
     private static final String SETTING_LAST_ACTIVITY_TS = "last_activity_timestamp";
+    private static final String EXPIRY_CHECKPOINT = "message_expiry_checkpoint";
+    private static final String LAST_FILE_SWEEP = "last_deleted_files_sweep";
 
     static {
         URL.setURLStreamHandlerFactory(new CustomURLStreamHandlerFactory());
@@ -207,13 +212,11 @@ public class XmppConnectionService extends Service {
     private final SerialSingleThreadExecutor mDatabaseWriterExecutor = new SerialSingleThreadExecutor("DatabaseWriter");
     private final SerialSingleThreadExecutor mDatabaseReaderExecutor = new SerialSingleThreadExecutor("DatabaseReader");
     private final SerialSingleThreadExecutor mNotificationExecutor = new SerialSingleThreadExecutor("NotificationExecutor");
-    public final SerialSingleThreadExecutor mUploadExecutor = new SerialSingleThreadExecutor("FileUpload");
-    public final SerialSingleThreadExecutor mDownloadExecutor = new SerialSingleThreadExecutor("FileDownload");
     public final SerialSingleThreadExecutor mWebPreviewExecutor = new SerialSingleThreadExecutor("WebPreview");
     public final SerialSingleThreadExecutor mNotificationChannelExecutor = new SerialSingleThreadExecutor("updateNotificationChannels");
     private final ReplacingTaskManager mRosterSyncTaskManager = new ReplacingTaskManager();
     private final IBinder mBinder = new XmppConnectionBinder();
-    private final List<Conversation> conversations = new CopyOnWriteArrayList<>();
+    private final ConversationRegistry conversations = new ConversationRegistry();
     private final IqGenerator mIqGenerator = new IqGenerator(this);
     private final Set<String> mInProgressAvatarFetches = new HashSet<>();
     private final Set<String> mOmittedPepAvatarFetches = new HashSet<>();
@@ -239,7 +242,7 @@ public class XmppConnectionService extends Service {
     private AtomicBoolean mForceForegroundService = new AtomicBoolean(false);
     private AtomicBoolean mForceDuringOnCreate = new AtomicBoolean(false);
     private AtomicReference<OngoingCall> ongoingCall = new AtomicReference<>();
-    private OnMessagePacketReceived mMessageParser = new MessageParser(this);
+    private final MessageParser mMessageParser = new MessageParser(this);
     private OnPresencePacketReceived mPresenceParser = new PresenceParser(this);
     private IqParser mIqParser = new IqParser(this);
     private MessageGenerator mMessageGenerator = new MessageGenerator(this);
@@ -268,7 +271,17 @@ public class XmppConnectionService extends Service {
         public void onEvent(final int event, final File file) {
             markFileDeleted(file);
         }
+
+        @Override
+        protected void onDirectoryChanged(final File directory) {
+            // the observer saw every change since the directory has been verified on start up
+            final String path = directory.getAbsolutePath();
+            if (verifiedDirectories.contains(path)) {
+                databaseBackend.setVerifiedDirectories(Collections.singletonMap(path, directory.lastModified()), false);
+            }
+        }
     };
+    private final Set<String> verifiedDirectories = Collections.newSetFromMap(new ConcurrentHashMap<>());
     private final OnMessageAcknowledged mOnMessageAcknowledgedListener = new OnMessageAcknowledged() {
 
         @Override
@@ -371,6 +384,7 @@ public class XmppConnectionService extends Service {
     private boolean destroyed = false;
     private int unreadCount = -1;
     private AtomicLong mLastExpiryRun = new AtomicLong(0);
+    private final AtomicBoolean mIncrementalVacuumEnabled = new AtomicBoolean(false);
     private SecureRandom mRandom;
     private LruCache<Pair<String, String>, ServiceDiscoveryResult> discoCache = new LruCache<>(20);
     private OnStatusChanged statusListener = new OnStatusChanged() {
@@ -380,6 +394,10 @@ public class XmppConnectionService extends Service {
             XmppConnection connection = account.getXmppConnection();
             updateAccountUi();
 
+            if (account.getStatus() != Account.State.ONLINE) {
+                mMessageParser.resetDeferred(account, true);
+            }
+
             if (account.getStatus() == Account.State.ONLINE || account.getStatus().isError()) {
                 mQuickConversationsService.signalAccountStateChange();
             }
@@ -472,6 +490,7 @@ public class XmppConnectionService extends Service {
     private WakeLock wakeLock;
     private PowerManager pm;
     private LruCache<String, Bitmap> mBitmapCache;
+    private BitmapPool mBitmapPool;
     private BroadcastReceiver mInternalEventReceiver = new InternalEventReceiver();
     private BroadcastReceiver mInternalScreenEventReceiver = new InternalEventReceiver();
 
@@ -625,7 +644,7 @@ public class XmppConnectionService extends Service {
     }
 
     public Conversation find(final Account account, final Jid jid) {
-        return find(getConversations(), account, jid);
+        return this.conversations.find(account, jid);
     }
 
     public boolean isMuc(final Account account, final Jid jid) {
@@ -856,10 +875,37 @@ public class XmppConnectionService extends Service {
         if (SystemClock.elapsedRealtime() - mLastExpiryRun.get() >= Config.EXPIRY_INTERVAL) {
             expireOldMessages();
             deleteWebpreviewCache();
+            if (Compatibility.hasStoragePermission(this) && System.currentTimeMillis() - getPreferences().getLong(LAST_FILE_SWEEP, 0) >= Config.FILE_SWEEP_INTERVAL) {
+                mFileAddingExecutor.execute(this::checkForDeletedFiles);
+            }
+        }
+        if (!mIncrementalVacuumEnabled.get() && !isInteractive() && isCharging()) {
+            enableIncrementalVacuum();
         }
         return START_STICKY;
     }
 
+    /**
+     * databases created before incremental vacuum was introduced need one full vacuum, which
+     * blocks all writes while it runs. That is only done while the device is charging with the
+     * screen off.
+     */
+    private void enableIncrementalVacuum() {
+        if (mIncrementalVacuumEnabled.getAndSet(true)) {
+            return;
+        }
+        mDatabaseWriterExecutor.execute(() -> {
+            if (!databaseBackend.isIncrementalVacuumEnabled()) {
+                databaseBackend.enableIncrementalVacuum();
+            }
+        });
+    }
+
+    private boolean isCharging() {
+        final Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
     private void handleOrbotStartedEvent() {
         for (final Account account : accounts) {
             if (account.getStatus() == Account.State.TOR_NOT_AVAILABLE) {
@@ -1213,23 +1259,56 @@ public class XmppConnectionService extends Service {
 
     public void expireOldMessages(final boolean resetHasMessagesLeftOnServer) {
         mLastExpiryRun.set(SystemClock.elapsedRealtime());
-        final Runnable runnable = () -> {
-            long timestamp = getAutomaticMessageDeletionDate();
-            if (timestamp > 0) {
-                expireOldMessages(timestamp, true);
-                synchronized (XmppConnectionService.this.conversations) {
-                    for (Conversation conversation : XmppConnectionService.this.conversations) {
-                        conversation.expireOldMessages(timestamp);
-                        if (resetHasMessagesLeftOnServer) {
-                            conversation.messagesLoaded.set(true);
-                            conversation.setHasMessagesLeftOnServer(true);
-                        }
-                    }
+        final long timestamp = getAutomaticMessageDeletionDate();
+        if (timestamp > 0) {
+            final long checkpoint = getPreferences().getLong(EXPIRY_CHECKPOINT, 0);
+            if (checkpoint > 0) {
+                Log.d(Config.LOGTAG, "resuming message expiry after " + AbstractGenerator.getTimestamp(checkpoint));
+            }
+            Log.d(Config.LOGTAG, "deleting messages that are older than " + AbstractGenerator.getTimestamp(timestamp));
+            mDatabaseWriterExecutor.execute(() -> expireOldMessages(checkpoint, timestamp, resetHasMessagesLeftOnServer));
+        }
+    }
+
+    /**
+     * deletes one chunk of expired messages (and their files) and then re-queues itself on the
+     * database writer so other writes are never blocked for more than one chunk. Each chunk
+     * starts at the checkpoint the previous one left, which also survives a restart.
+     */
+    private void expireOldMessages(final long from, final long timestamp, final boolean resetHasMessagesLeftOnServer) {
+        final DatabaseBackend.ExpiredMessages expired = databaseBackend.getExpiredMessages(from, timestamp, Config.EXPIRY_CHUNK_SIZE);
+        // rows go first so an interruption can not leave messages that point to deleted files
+        databaseBackend.deleteMessages(expired.uuids);
+        final List<File> files = new ArrayList<>();
+        for (final String path : expired.files) {
+            final File file = fileBackend.getFileForPath(path);
+            if (fileBackend.isInternalFile(file) && file.exists()) {
+                file.delete();
+                fileBackend.updateMediaScanner(file);
+            }
+            files.add(file);
+        }
+        fileBackend.deleteThumbnails(files);
+        if (expired.uuids.size() >= Config.EXPIRY_CHUNK_SIZE) {
+            getPreferences().edit().putLong(EXPIRY_CHECKPOINT, expired.lastTimeSent).apply();
+            mDatabaseWriterExecutor.execute(() -> expireOldMessages(expired.lastTimeSent, timestamp, resetHasMessagesLeftOnServer));
+            return;
+        }
+        final boolean deleted = from > 0 || expired.uuids.size() > 0;
+        getPreferences().edit().remove(EXPIRY_CHECKPOINT).apply();
+        if (deleted && databaseBackend.isIncrementalVacuumEnabled()) {
+            databaseBackend.incrementalVacuum();
+        }
+        synchronized (this.conversations) {
+            for (Conversation conversation : this.conversations) {
+                conversation.expireOldMessages(timestamp);
+                if (resetHasMessagesLeftOnServer) {
+                    conversation.messagesLoaded.set(true);
+                    conversation.setHasMessagesLeftOnServer(true);
                 }
-                updateConversationUi();
             }
-        };
-        mDatabaseWriterExecutor.execute((runnable));
+        }
+        updateConversationUi();
     }
 
     public boolean hasInternetConnection() {
@@ -1314,11 +1393,25 @@ public class XmppConnectionService extends Service {
         this.mRandom = new SecureRandom();
         updateMemorizingTrustmanager();
         final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
-        final int cacheSize = maxMemory / 8;
+        final int cacheSize;
+        if (BitmapPool.isSupported()) {
+            //a quarter of the budget is set aside for bitmaps that are about to be reused
+            final int poolSize = maxMemory / 32;
+            cacheSize = maxMemory / 8 - poolSize;
+            this.mBitmapPool = new BitmapPool(poolSize * 1024);
+        } else {
+            cacheSize = maxMemory / 8;
+            this.mBitmapPool = new BitmapPool(0);
+        }
         this.mBitmapCache = new LruCache<String, Bitmap>(cacheSize) {
             @Override
             protected int sizeOf(final String key, final Bitmap bitmap) {
-                return bitmap.getByteCount() / 1024;
+                //bitmaps from the pool can be backed by a larger buffer than their dimensions need
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    return bitmap.getAllocationByteCount() / 1024;
+                } else {
+                    return bitmap.getByteCount() / 1024;
+                }
             }
         };
         if (mLastActivity == 0) {
@@ -1410,29 +1503,80 @@ public class XmppConnectionService extends Service {
         return isPhoneInCall.get();
     }
 
+    /**
+     * Deleting or adding a file changes the modification time of its directory. Attachments are
+     * therefore only checked in directories that changed since they have last been verified. While
+     * running the file observer keeps the verified state up to date. Every FILE_SWEEP_INTERVAL all
+     * attachments are checked in the background as a fallback.
+     */
     private void checkForDeletedFiles() {
         if (destroyed) {
             Log.d(Config.LOGTAG, "Do not check for deleted files because service has been destroyed");
             return;
         }
         final long start = SystemClock.elapsedRealtime();
-        final List<DatabaseBackend.FilePathInfo> relativeFilePaths = databaseBackend.getFilePathInfo();
-        final List<DatabaseBackend.FilePathInfo> changed = new ArrayList<>();
-        for (final DatabaseBackend.FilePathInfo filePath : relativeFilePaths) {
-            if (destroyed) {
-                Log.d(Config.LOGTAG, "Stop checking for deleted files because service has been destroyed");
-                return;
+        final long now = System.currentTimeMillis();
+        final boolean fullSweep = now - getPreferences().getLong(LAST_FILE_SWEEP, 0) >= Config.FILE_SWEEP_INTERVAL;
+        final int priority = android.os.Process.getThreadPriority(android.os.Process.myTid());
+        if (fullSweep) {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        }
+        verifiedDirectories.clear();
+        try {
+            final List<DatabaseBackend.FilePathInfo> relativeFilePaths = databaseBackend.getFilePathInfo();
+            final Map<String, Long> known = fullSweep ? Collections.emptyMap() : databaseBackend.getVerifiedDirectories();
+            final Map<File, List<DatabaseBackend.FilePathInfo>> directories = new HashMap<>();
+            for (final DatabaseBackend.FilePathInfo filePath : relativeFilePaths) {
+                final File directory = fileBackend.getFileForPath(filePath.path).getParentFile();
+                List<DatabaseBackend.FilePathInfo> files = directories.get(directory);
+                if (files == null) {
+                    files = new ArrayList<>();
+                    directories.put(directory, files);
+                }
+                files.add(filePath);
+            }
+            final List<DatabaseBackend.FilePathInfo> changed = new ArrayList<>();
+            final Map<String, Long> verified = new HashMap<>();
+            int checked = 0;
+            for (final Map.Entry<File, List<DatabaseBackend.FilePathInfo>> entry : directories.entrySet()) {
+                if (destroyed) {
+                    Log.d(Config.LOGTAG, "Stop checking for deleted files because service has been destroyed");
+                    return;
+                }
+                final File directory = entry.getKey();
+                final String path = directory == null ? null : directory.getAbsolutePath();
+                final long modified = directory == null ? 0 : directory.lastModified();
+                final Long lastVerified = known.get(path);
+                if (modified != 0 && lastVerified != null && lastVerified == modified) {
+                    verified.put(path, modified);
+                    continue;
+                }
+                for (final DatabaseBackend.FilePathInfo filePath : entry.getValue()) {
+                    final File file = fileBackend.getFileForPath(filePath.path);
+                    if (filePath.setFileDeleted(!file.exists())) {
+                        changed.add(filePath);
+                    }
+                    ++checked;
+                }
+                // modification times might have a coarse resolution. a change right after this
+                // check could otherwise go unnoticed
+                if (modified != 0 && modified < now - Config.FILE_MODIFICATION_TIME_RESOLUTION) {
+                    verified.put(path, modified);
+                }
             }
-            final File file = fileBackend.getFileForPath(filePath.path);
-            if (filePath.setFileDeleted(!file.exists())) {
-                changed.add(filePath);
+            databaseBackend.setVerifiedDirectories(verified, true);
+            verifiedDirectories.addAll(verified.keySet());
+            if (fullSweep) {
+                getPreferences().edit().putLong(LAST_FILE_SWEEP, now).apply();
             }
-        }
-        final long duration = SystemClock.elapsedRealtime() - start;
-        Log.d(Config.LOGTAG, "found " + changed.size() + " changed files on start up. total=" + relativeFilePaths.size() + ". (" + duration + "ms)");
-        if (changed.size() > 0) {
-            databaseBackend.markFilesAsChanged(changed);
-            markChangedFiles(changed);
+            final long duration = SystemClock.elapsedRealtime() - start;
+            Log.d(Config.LOGTAG, "found " + changed.size() + " changed files on start up. checked=" + checked + ", total=" + relativeFilePaths.size() + ", directories=" + directories.size() + ", fullSweep=" + fullSweep + ". (" + duration + "ms)");
+            if (changed.size() > 0) {
+                databaseBackend.markFilesAsChanged(changed);
+                markChangedFiles(changed);
+            }
+        } finally {
+            android.os.Process.setThreadPriority(priority);
         }
     }
 
@@ -1451,6 +1595,15 @@ public class XmppConnectionService extends Service {
     @Override
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW && level != TRIM_MEMORY_UI_HIDDEN) {
+            final long idleTime = level >= TRIM_MEMORY_COMPLETE ? 0 : Config.MESSAGE_PAGE_RESIDENCY;
+            int evicted = 0;
+            for (final Conversation conversation : getConversations()) {
+                evicted += conversation.evictColdPages(idleTime);
+            }
+            Log.d(Config.LOGTAG, "evicted " + evicted + " messages due to low memory (level=" + level + ")");
+            mBitmapPool.evictAll();
+        }
         if (level >= TRIM_MEMORY_COMPLETE) {
             Log.d(Config.LOGTAG, "clear cache due to low memory");
             getBitmapCache().evictAll();
@@ -2052,26 +2205,19 @@ public class XmppConnectionService extends Service {
             }
             Log.d(Config.LOGTAG, "restoring conversations...");
             final long startTimeConversationsRestore = SystemClock.elapsedRealtime();
-            this.conversations.addAll(databaseBackend.getConversations(Conversation.STATUS_AVAILABLE));
-            for (Iterator<Conversation> iterator = conversations.listIterator(); iterator.hasNext(); ) {
-                Conversation conversation = iterator.next();
+            for (final Conversation conversation : databaseBackend.getConversations(Conversation.STATUS_AVAILABLE)) {
                 Account account = accountLookupTable.get(conversation.getAccountUuid());
                 if (account != null) {
                     conversation.setAccount(account);
+                    this.conversations.add(conversation);
                 } else {
                     Log.e(Config.LOGTAG, "unable to restore Conversations with " + conversation.getJid());
-                    iterator.remove();
                 }
             }
+            databaseBackend.readConversationSummaries(this.conversations);
             long diffConversationsRestore = SystemClock.elapsedRealtime() - startTimeConversationsRestore;
             Log.d(Config.LOGTAG, "finished restoring conversations in " + diffConversationsRestore + "ms");
             Runnable runnable = () -> {
-                long deletionDate = getAutomaticMessageDeletionDate();
-                mLastExpiryRun.set(SystemClock.elapsedRealtime());
-                if (deletionDate > 0) {
-                    Log.d(Config.LOGTAG, "deleting messages that are older than " + AbstractGenerator.getTimestamp(deletionDate));
-                    expireOldMessages(deletionDate, false);
-                }
                 Log.d(Config.LOGTAG, "restoring roster...");
                 for (Account account : accounts) {
                     databaseBackend.readRoster(account.getRoster());
@@ -2089,25 +2235,69 @@ public class XmppConnectionService extends Service {
                     final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
                     Log.d(Config.LOGTAG, "quickly restored " + quickLoad.getName() + " after " + diffMessageRestore + "ms");
                 }
+                int restored = 0;
                 for (Conversation conversation : this.conversations) {
-                    if (quickLoad != conversation) {
-                        restoreMessages(conversation);
+                    final ConversationSummary summary = conversation.getSummary();
+                    if (summary != null && summary.needsBacklogProcessing() && restoreMessages(conversation)) {
+                        ++restored;
                     }
                 }
                 mNotificationService.finishBacklog(false);
                 restoredFromDatabaseLatch.countDown();
                 final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
-                Log.d(Config.LOGTAG, "finished restoring messages in " + diffMessageRestore + "ms");
+                Log.d(Config.LOGTAG, "finished restoring messages of " + restored + " conversations with backlog in " + diffMessageRestore + "ms");
                 updateConversationUi();
+                expireOldMessages();
+                convertAxolotlKeysToBlob();
             };
-            mDatabaseReaderExecutor.execute(runnable); //will contain one write command (expiry) but that's fine
+            mDatabaseReaderExecutor.execute(runnable);
         }
     }
 
-    private void restoreMessages(Conversation conversation) {
-        conversation.addAll(0, databaseBackend.getMessages(conversation, Config.PAGE_SIZE));
+    /**
+     * converts the Base64 encoded axolotl keys one chunk at a time. Every chunk is its own task
+     * so other writes are not held up behind the whole conversion
+     */
+    private void convertAxolotlKeysToBlob() {
+        mDatabaseWriterExecutor.execute(() -> {
+            final int converted = databaseBackend.convertAxolotlKeysToBlob(Config.AXOLOTL_KEY_CONVERSION_CHUNK);
+            if (converted > 0) {
+                Log.d(Config.LOGTAG, "converted " + converted + " axolotl keys to blobs");
+                convertAxolotlKeysToBlob();
+            }
+        });
+    }
+
+    private boolean restoreMessages(final Conversation conversation) {
+        if (!conversation.restoreHistory(c -> databaseBackend.getMessages(c, Config.PAGE_SIZE))) {
+            return false;
+        }
         conversation.findUnsentTextMessages(message -> markMessage(message, Message.STATUS_WAITING));
-        conversation.findUnreadMessagesAndCalls(message -> mNotificationService.pushFromBacklog(message));
+        if (restoredFromDatabaseLatch.getCount() > 0) {
+            conversation.findUnreadMessagesAndCalls(message -> mNotificationService.pushFromBacklog(message));
+        }
+        return true;
+    }
+
+    /**
+     * Conversations without backlog are restored from their summary only. Their first page of
+     * messages is loaded once it is actually needed; synchronously on worker threads (when the
+     * parser adds a message that has to be checked against the history) and in the background
+     * when the conversation is opened in the UI. Catching up only needs the summary.
+     */
+    public void ensureMessagesRestored(final Conversation conversation) {
+        if (conversation == null || conversation.isHistoryRestored()) {
+            return;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            mDatabaseReaderExecutor.execute(() -> {
+                if (restoreMessages(conversation)) {
+                    updateConversationUi();
+                }
+            });
+        } else {
+            restoreMessages(conversation);
+        }
     }
 
     public void loadPhoneContacts() {
@@ -2316,14 +2506,7 @@ public class XmppConnectionService extends Service {
     }
 
     public boolean isConversationStillOpen(final Conversation conversation) {
-        synchronized (this.conversations) {
-            for (Conversation current : this.conversations) {
-                if (current == conversation) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return this.conversations.contains(conversation);
     }
 
     public Conversation findOrCreateConversation(Account account, Jid jid, boolean muc, final boolean async) {
@@ -2335,6 +2518,10 @@ public class XmppConnectionService extends Service {
     }
 
     public Conversation findOrCreateConversation(final Account account, final Jid jid, final boolean muc, final boolean joinAfterCreate, final MessageArchiveService.Query query, final boolean async) {
+        final Conversation existing = find(account, jid);
+        if (existing != null) {
+            return existing;
+        }
         synchronized (this.conversations) {
             Conversation conversation = find(account, jid);
             if (conversation != null) {
@@ -2659,6 +2846,7 @@ public class XmppConnectionService extends Service {
             mDatabaseWriterExecutor.execute(runnable);
             this.accounts.remove(account);
             this.mRosterSyncTaskManager.clear(account);
+            this.mMessageParser.resetDeferred(account, false);
             updateAccountUi();
             mNotificationService.updateErrorNotification();
             syncEnabledAccountSetting();
@@ -3653,6 +3841,27 @@ public class XmppConnectionService extends Service {
         updateConversationUi();
     }
 
+    public void updateMessages(final List<Message> messages) {
+        if (!databaseBackend.updateMessages(messages)) {
+            Log.e(Config.LOGTAG, "error updating " + messages.size() + " messages in DB");
+        }
+        updateConversationUi();
+    }
+
+    public void loadFullBody(final Message message, final Runnable onLoaded) {
+        if (!message.isBodyTruncated()) {
+            onLoaded.run();
+            return;
+        }
+        mDatabaseReaderExecutor.execute(() -> {
+            final String body = databaseBackend.getMessageBody(message.getUuid());
+            if (body != null) {
+                message.setBody(body);
+            }
+            onLoaded.run();
+        });
+    }
+
     public void createMessageAsync(final Message message) {
         mDatabaseWriterExecutor.execute(() -> databaseBackend.createMessage(message));
     }
@@ -4193,7 +4402,7 @@ public class XmppConnectionService extends Service {
         }
         for (Conversation conversation : getConversations()) {
             if (conversation.getJid().asBareJid().equals(recipient) && conversation.getAccount() == account) {
-                final Message message = conversation.findSentMessageWithUuidOrRemoteId(uuid);
+                final Message message = findSentMessageWithUuidOrRemoteId(conversation, uuid);
                 if (message != null) {
                     markMessage(message, status, errorMessage);
                 }
@@ -4208,6 +4417,9 @@ public class XmppConnectionService extends Service {
             return false;
         } else {
             Message message = conversation.findSentMessageWithUuid(uuid);
+            if (message == null) {
+                message = databaseBackend.findSentMessage(conversation, uuid, false);
+            }
             if (message != null) {
                 if (message.getServerMsgId() == null) {
                     message.setServerMsgId(serverMessageId);
@@ -4220,6 +4432,37 @@ public class XmppConnectionService extends Service {
         }
     }
 
+    /**
+     * looks up the in memory window first and only falls back to the database for ids that
+     * reference older messages.
+     */
+    private Message findSentMessageWithUuidOrRemoteId(final Conversation conversation, final String id) {
+        final Message message = conversation.findSentMessageWithUuidOrRemoteId(id);
+        if (message != null) {
+            return message;
+        }
+        return databaseBackend.findSentMessage(conversation, id, true);
+    }
+
+    public String createMessageWindowReport() {
+        final StringBuilder builder = new StringBuilder();
+        long total = 0;
+        for (final Conversation conversation : getConversations()) {
+            final long bytes = conversation.estimateMessageMemoryUsage();
+            total += bytes;
+            builder.append(conversation.getAccount().getJid().asBareJid())
+                    .append(" -> ")
+                    .append(conversation.getJid().asBareJid())
+                    .append(": messages=").append(conversation.countMessages())
+                    .append(" pages=").append(conversation.getMessagePageCount())
+                    .append(" bytes=").append(bytes)
+                    .append(conversation.isHistoryRestored() ? "" : " (not restored)")
+                    .append('\n');
+        }
+        builder.insert(0, "estimated message memory: " + total + " bytes\n\n");
+        return builder.toString();
+    }
+
     public void markMessage(Message message, int status) {
         markMessage(message, status, null);
     }
@@ -4421,12 +4664,7 @@ public class XmppConnectionService extends Service {
     }
 
     public Conversation findConversationByUuid(String uuid) {
-        for (Conversation conversation : getConversations()) {
-            if (conversation.getUuid().equals(uuid)) {
-                return conversation;
-            }
-        }
-        return null;
+        return this.conversations.findByUuid(uuid);
     }
 
     public Conversation findUniqueConversationByJid(XmppUri xmppUri) {
@@ -4528,6 +4766,10 @@ public class XmppConnectionService extends Service {
         return this.mBitmapCache;
     }
 
+    public BitmapPool getBitmapPool() {
+        return this.mBitmapPool;
+    }
+
     public void syncRosterToDisk(final Account account) {
         Runnable runnable = () -> databaseBackend.writeRoster(account.getRoster());
         mDatabaseWriterExecutor.execute(runnable);
@@ -4674,6 +4916,10 @@ public class XmppConnectionService extends Service {
         return this.mJingleConnectionManager;
     }
 
+    public MessageParser getMessageParser() {
+        return this.mMessageParser;
+    }
+
     public MessageArchiveService getMessageArchiveService() {
         return this.mMessageArchiveService;
     }
@@ -4749,7 +4995,7 @@ public class XmppConnectionService extends Service {
         try {
             final long clearDate;
             final String reference;
-            if (conversation.countMessages() > 0) {
+            if (conversation.hasMessages()) {
                 final Message latestMessage = conversation.getLatestMessage();
                 clearDate = latestMessage.getTimeSent() + 1000;
                 reference = latestMessage.getServerMsgId();
@@ -4761,8 +5007,14 @@ public class XmppConnectionService extends Service {
             conversation.setHasMessagesLeftOnServer(false); //avoid messages getting loaded through mam
             conversation.setLastClearHistory(clearDate, reference);
             final Runnable runnable = () -> {
+                final Set<String> paths = databaseBackend.getFilePaths(conversation);
                 databaseBackend.deleteMessagesInConversation(conversation);
                 databaseBackend.updateConversation(conversation);
+                final List<File> files = new ArrayList<>();
+                for (final String path : paths) {
+                    files.add(fileBackend.getFileForPath(path));
+                }
+                fileBackend.deleteThumbnails(files);
             };
             mDatabaseWriterExecutor.execute(runnable);
         } catch (Exception e) {
@@ -5196,27 +5448,4 @@ public class XmppConnectionService extends Service {
             return Objects.hashCode(id);
         }
     }
-
-    private void expireOldMessages(long timestamp, boolean stepped) {
-        if (stepped) {
-            final long expiredMessagesCount = databaseBackend.countExpireOldMessages(timestamp);
-            final long days = TimeUnit.MILLISECONDS.toDays(Calendar.getInstance().getTimeInMillis() - databaseBackend.getOldestMessages());
-            final long day = (long) 24 * 60 * 60 * 1000;
-            int count = 0;
-            int messagesCount = 0;
-            while (count <= days) {
-                try {
-                    messagesCount += databaseBackend.expireOldMessages(timestamp - ((days - count) * day));
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                count++;
-                if (expiredMessagesCount == messagesCount) {
-                    break;
-                }
-            }
-        } else {
-            databaseBackend.expireOldMessages(timestamp);
-        }
-    }
 }
\ No newline at end of file
@@ -266,6 +266,7 @@ public class ConversationFragment extends XmppFragment implements EditMessage.Ke
         public void onScrollStateChanged(AbsListView view, int scrollState) {
             if (AbsListView.OnScrollListener.SCROLL_STATE_IDLE == scrollState) {
                 fireReadEvent();
+                markVisibleMessagesViewed();
             }
         }
 
@@ -909,6 +910,11 @@ public class ConversationFragment extends XmppFragment implements EditMessage.Ke
         boolean hasPendingKeys = !axolotlService.findDevicesWithoutSession(conversation).isEmpty();
         boolean hasNoTrustedKeys = axolotlService.anyTargetHasNoTrustedKeys(targets);
         boolean downloadInProgress = axolotlService.hasPendingKeyFetches(targets);
+        if ((hasPendingKeys || downloadInProgress) && !(hasUndecidedOwn || hasUndecidedContacts || hasNoTrustedKeys || hasUnaccepted) && axolotlService.hasEnoughSessions(targets)) {
+            //remaining devices are fetched in the background and included with the next message
+            axolotlService.createSessionsIfNeeded(conversation);
+            return false;
+        }
         if (hasUndecidedOwn || hasUndecidedContacts || hasPendingKeys || hasNoTrustedKeys || hasUnaccepted || downloadInProgress) {
             axolotlService.createSessionsIfNeeded(conversation);
             Intent intent = new Intent(getActivity(), TrustKeysActivity.class);
@@ -1386,6 +1392,7 @@ public class ConversationFragment extends XmppFragment implements EditMessage.Ke
 
     @Override
     public boolean onContextItemSelected(MenuItem item) {
+        final Message selectedMessage = this.selectedMessage;
         String user;
         try {
             final Contact contact = selectedMessage.getContact();
@@ -1406,23 +1413,21 @@ public class ConversationFragment extends XmppFragment implements EditMessage.Ke
         }
         switch (item.getItemId()) {
             case R.id.share_with:
-                ShareUtil.share(activity, selectedMessage, user);
+                final String sharingUser = user;
+                activity.xmppConnectionService.loadFullBody(selectedMessage, () -> runOnUiThread(() -> ShareUtil.share(activity, selectedMessage, sharingUser)));
                 return true;
             case R.id.correct_message:
                 correctMessage(selectedMessage);
                 return true;
             case R.id.copy_message:
-                ShareUtil.copyToClipboard(activity, selectedMessage);
+                activity.xmppConnectionService.loadFullBody(selectedMessage, () -> runOnUiThread(() -> ShareUtil.copyToClipboard(activity, selectedMessage)));
                 return true;
             case R.id.copy_link:
                 ShareUtil.copyLinkToClipboard(activity, selectedMessage);
                 return true;
             case R.id.quote_message:
-                if (conversation.getMode() == Conversation.MODE_MULTI) {
-                    quoteMessage(selectedMessage, user);
-                } else {
-                    quoteMessage(selectedMessage, null);
-                }
+                final String quotedUser = conversation.getMode() == Conversation.MODE_MULTI ? user : null;
+                activity.xmppConnectionService.loadFullBody(selectedMessage, () -> runOnUiThread(() -> quoteMessage(selectedMessage, quotedUser)));
                 return true;
             case R.id.send_again:
                 resendMessage(selectedMessage);
@@ -1936,6 +1941,19 @@ public class ConversationFragment extends XmppFragment implements EditMessage.Ke
         }
     }
 
+    private void markVisibleMessagesViewed() {
+        if (binding == null || this.conversation == null) {
+            return;
+        }
+        synchronized (this.messageList) {
+            final int first = binding.messagesView.getFirstVisiblePosition();
+            final int last = Math.min(binding.messagesView.getLastVisiblePosition(), messageList.size() - 1);
+            if (first >= 0 && first <= last) {
+                this.conversation.markMessagesViewed(messageList.get(first).getTimeSent(), messageList.get(last).getTimeSent());
+            }
+        }
+    }
+
     private String getLastVisibleMessageUuid() {
         if (binding == null) {
             return null;
@@ -2148,6 +2166,11 @@ public class ConversationFragment extends XmppFragment implements EditMessage.Ke
         while (message.mergeable(message.next())) {
             message = message.next();
         }
+        final Message correctedMessage = message;
+        activity.xmppConnectionService.loadFullBody(correctedMessage, () -> runOnUiThread(() -> startCorrectingMessage(correctedMessage)));
+    }
+
+    private void startCorrectingMessage(final Message message) {
         this.conversation.setCorrectingMessage(message);
         final Editable editable = binding.textinput.getText();
         this.conversation.setDraftMessage(editable.toString());
@@ -2331,6 +2354,10 @@ public class ConversationFragment extends XmppFragment implements EditMessage.Ke
             activity.onConversationArchived(this.conversation);
             return false;
         }
+        activity.xmppConnectionService.ensureMessagesRestored(this.conversation);
+        if (Config.supportOpenPgp()) {
+            this.conversation.getAccount().getPgpDecryptionService().prioritize(this.conversation);
+        }
 
         stopScrolling();
         Log.d(Config.LOGTAG, "reInit(hasExtras=" + Boolean.toString(hasExtras) + ")");
@@ -3110,7 +3137,7 @@ public class ConversationFragment extends XmppFragment implements EditMessage.Ke
             incomplete = content.substring(start, lastCompletionCursor);
         }
         List<String> completions = new ArrayList<>();
-        for (MucOptions.User user : conversation.getMucOptions().getUsers()) {
+        for (MucOptions.User user : conversation.getMucOptions().getUserSnapshot()) {
             String name = user.getName();
             if (name != null && name.startsWith(incomplete)) {
                 completions.add(name + (firstWord ? ": " : " "));
@@ -295,12 +295,13 @@ public class MediaViewerActivity extends XmppActivity implements AudioManager.On
             retriever.setDataSource(uri.getPath());
             Bitmap bitmap = null;
             try {
+                //the metadata is enough for the dimensions; decoding a full frame is the fallback
+                height = Integer.valueOf(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+                width = Integer.valueOf(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+            } catch (Exception e) {
                 bitmap = retriever.getFrameAtTime(0);
                 height = bitmap.getHeight();
                 width = bitmap.getWidth();
-            } catch (Exception e) {
-                height = Integer.valueOf(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
-                width = Integer.valueOf(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
             } finally {
                 if (bitmap != null) {
                     bitmap.recycle();
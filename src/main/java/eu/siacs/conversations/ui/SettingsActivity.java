@@ -1,6 +1,7 @@
 package eu.siacs.conversations.ui;
 
 import android.app.FragmentManager;
+import android.content.ActivityNotFoundException;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -19,6 +20,7 @@ import android.util.Log;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.StringRes;
 import androidx.appcompat.app.AlertDialog;
 import androidx.core.content.ContextCompat;
 
@@ -34,6 +36,7 @@ import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
 import eu.siacs.conversations.crypto.OmemoSetting;
 import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.services.ExportBackupService;
 import eu.siacs.conversations.services.MemorizingTrustManager;
@@ -309,6 +312,16 @@ public class SettingsActivity extends XmppActivity implements
             deleteOmemoPreference.setOnPreferenceClickListener(preference -> deleteOmemoIdentities());
         }
 
+        final Preference databaseStatisticsPreference = mSettingsFragment.findPreference("database_statistics");
+        if (databaseStatisticsPreference != null) {
+            databaseStatisticsPreference.setOnPreferenceClickListener(preference -> shareReport(R.string.pref_database_statistics, DatabaseBackend.getStatistics().createReport()));
+        }
+
+        final Preference messageMemoryPreference = mSettingsFragment.findPreference("message_memory");
+        if (messageMemoryPreference != null) {
+            messageMemoryPreference.setOnPreferenceClickListener(preference -> xmppConnectionService != null && shareReport(R.string.pref_message_memory, xmppConnectionService.createMessageWindowReport()));
+        }
+
         final Preference useBundledEmojis = mSettingsFragment.findPreference("use_bundled_emoji");
         if (useBundledEmojis != null) {
             Log.d(Config.LOGTAG, "Bundled Emoji checkbox checked: " + isBundledEmojiChecked);
@@ -531,6 +544,19 @@ public class SettingsActivity extends XmppActivity implements
         }
     }
 
+    private boolean shareReport(@StringRes final int title, final String report) {
+        final Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("text/plain");
+        intent.putExtra(Intent.EXTRA_SUBJECT, getString(title));
+        intent.putExtra(Intent.EXTRA_TEXT, report);
+        try {
+            startActivity(Intent.createChooser(intent, getString(title)));
+        } catch (ActivityNotFoundException e) {
+            ToastCompat.makeText(this, R.string.no_application_found, Toast.LENGTH_SHORT).show();
+        }
+        return true;
+    }
+
     private void createBackup(boolean notify) {
         final Intent intent = new Intent(this, ExportBackupService.class);
         intent.putExtra("NOTIFY_ON_BACKUP_COMPLETE", notify);
@@ -25,24 +25,18 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
 import java.util.List;
 
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
-
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
-import eu.siacs.conversations.http.NoSSLv3SocketFactory;
+import eu.siacs.conversations.http.HttpConnectionManager;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.services.XmppConnectionService;
 import eu.siacs.conversations.utils.WakeLockHelper;
 import me.drakeet.support.toast.ToastCompat;
+import okhttp3.Request;
+import okhttp3.Response;
 
-import static eu.siacs.conversations.http.HttpConnectionManager.getProxy;
 import static eu.siacs.conversations.services.XmppConnectionService.FDroid;
 import static eu.siacs.conversations.services.XmppConnectionService.PlayStore;
 
@@ -331,45 +325,27 @@ public class UpdaterActivity extends XmppActivity {
         protected String doInBackground(String... sUrl) {
             InputStream is = null;
             OutputStream os = null;
-            SSLContext sslcontext = null;
-            SSLSocketFactory NoSSLv3Factory = null;
-            try {
-                sslcontext = SSLContext.getInstance("TLSv1");
-                if (sslcontext != null) {
-                    sslcontext.init(null, null, null);
-                    NoSSLv3Factory = new NoSSLv3SocketFactory(sslcontext.getSocketFactory());
-                }
-            } catch (NoSuchAlgorithmException | KeyManagementException e) {
-                e.printStackTrace();
-            }
-            HttpsURLConnection.setDefaultSSLSocketFactory(NoSSLv3Factory);
-            HttpsURLConnection connection = null;
+            Response response = null;
             try {
                 Log.d(Config.LOGTAG, "AppUpdater: save file to " + file.toString());
                 Log.d(Config.LOGTAG, "AppUpdater: download update from url: " + sUrl[0] + " to file name: " + file.toString());
 
-                URL url = new URL(sUrl[0]);
-
-                if (mUseTor) {
-                    connection = (HttpsURLConnection) url.openConnection(getProxy());
-                } else {
-                    connection = (HttpsURLConnection) url.openConnection();
-                }
-                connection.setConnectTimeout(Config.SOCKET_TIMEOUT * 1000);
-                connection.setReadTimeout(Config.SOCKET_TIMEOUT * 1000);
-                connection.setRequestProperty("User-Agent", context.getString(R.string.app_name));
-                connection.connect();
+                final Request request = new Request.Builder()
+                        .url(sUrl[0])
+                        .header("User-Agent", context.getString(R.string.app_name))
+                        .build();
+                response = HttpConnectionManager.getClient(mUseTor).newCall(request).execute();
 
                 // expect HTTP 200 OK, so we don't mistakenly save error report
                 // instead of the file
-                if (connection.getResponseCode() != HttpsURLConnection.HTTP_OK) {
+                if (response.code() != 200) {
                     ToastCompat.makeText(getApplicationContext(), getText(R.string.failed), Toast.LENGTH_LONG).show();
-                    return connection.getResponseCode() + ": " + connection.getResponseMessage();
+                    return response.code() + ": " + response.message();
                 }
 
                 // this will be useful to display download percentage
                 // might be -1: server did not report the length
-                int fileLength = connection.getContentLength();
+                long fileLength = response.body().contentLength();
 
                 // create folders
                 File parentDirectory = file.getParentFile();
@@ -378,7 +354,7 @@ public class UpdaterActivity extends XmppActivity {
                 }
 
                 // download the file
-                is = connection.getInputStream();
+                is = response.body().byteStream();
                 os = new FileOutputStream(file);
 
                 byte[] data = new byte[4096];
@@ -408,8 +384,7 @@ public class UpdaterActivity extends XmppActivity {
                 } catch (IOException ignored) {
                 }
 
-                if (connection != null)
-                    connection.disconnect();
+                FileBackend.close(response);
             }
             return null;
         }
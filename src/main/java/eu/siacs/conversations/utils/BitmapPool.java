@@ -0,0 +1,136 @@
+package eu.siacs.conversations.utils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+import eu.siacs.conversations.Config;
+
+/**
+ * Keeps bitmaps that were only needed on the way to a thumbnail or avatar, so the next decode
+ * can write into them through {@link BitmapFactory.Options#inBitmap} and the next canvas can
+ * draw into them instead of allocating. Bitmaps are bucketed by their allocation size.
+ * <p>
+ * Only bitmaps nobody else holds on to may be put back. Anything that has been handed to the
+ * bitmap cache or to a view is off limits, since it would be overwritten while still on screen.
+ * <p>
+ * Decoding into a bitmap of a different size needs KitKat. On older devices the pool stays
+ * empty and bitmaps put back are recycled right away.
+ */
+public class BitmapPool {
+
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+    private final int maxSize;
+    private int size = 0;
+
+    /**
+     * @param maxSize the maximum size in bytes
+     */
+    public BitmapPool(final int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public static boolean isSupported() {
+        return Compatibility.runsNineteen();
+    }
+
+    /**
+     * @return a mutable ARGB_8888 bitmap of the given dimensions, taken from the pool if there
+     * is one that is large enough. The content is cleared.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public Bitmap get(final int width, final int height) {
+        final Bitmap bitmap = take(width * height * 4);
+        if (bitmap != null) {
+            try {
+                bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+                bitmap.eraseColor(Color.TRANSPARENT);
+                return bitmap;
+            } catch (final IllegalArgumentException e) {
+                bitmap.recycle();
+            }
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * prepares options for decoding an image that is going to have the given dimensions after
+     * sampling. If the decoder refuses the bitmap, put {@link BitmapFactory.Options#inBitmap}
+     * back and decode again without it.
+     */
+    public void setInBitmap(final BitmapFactory.Options options, final int width, final int height) {
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inBitmap = take(width * height * 4);
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public synchronized void put(final Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!isSupported() || !bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            bitmap.recycle();
+            return;
+        }
+        final int bytes = bitmap.getAllocationByteCount();
+        if (bytes > maxSize / 2) {
+            bitmap.recycle();
+            return;
+        }
+        ArrayDeque<Bitmap> bucket = buckets.get(bytes);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            buckets.put(bytes, bucket);
+        }
+        bucket.push(bitmap);
+        size += bytes;
+        //the largest bitmaps go first; they are the least likely to fit the next request nicely
+        while (size > maxSize) {
+            final Map.Entry<Integer, ArrayDeque<Bitmap>> largest = buckets.lastEntry();
+            remove(largest).recycle();
+        }
+    }
+
+    public synchronized void evictAll() {
+        int count = 0;
+        while (!buckets.isEmpty()) {
+            remove(buckets.firstEntry()).recycle();
+            ++count;
+        }
+        if (count > 0) {
+            Log.d(Config.LOGTAG, "evicted " + count + " bitmaps from pool");
+        }
+    }
+
+    /**
+     * @return a pooled bitmap with at least the given allocation size but no more than four
+     * times of it, so a small thumbnail does not pin down the buffer of a large image
+     */
+    private synchronized Bitmap take(final int bytes) {
+        if (!isSupported() || bytes <= 0) {
+            return null;
+        }
+        final Map.Entry<Integer, ArrayDeque<Bitmap>> entry = buckets.ceilingEntry(bytes);
+        if (entry == null || entry.getKey() / 4 > bytes) {
+            return null;
+        }
+        return remove(entry);
+    }
+
+    private Bitmap remove(final Map.Entry<Integer, ArrayDeque<Bitmap>> entry) {
+        final Bitmap bitmap = entry.getValue().pop();
+        if (entry.getValue().isEmpty()) {
+            buckets.remove(entry.getKey());
+        }
+        size -= entry.getKey();
+        return bitmap;
+    }
+}
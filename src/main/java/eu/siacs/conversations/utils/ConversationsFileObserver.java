@@ -101,6 +101,14 @@ public abstract class ConversationsFileObserver {
 
     abstract public void onEvent(final int event, File path);
 
+    /**
+     * called after every observed change to the entries of a directory, once the event itself has
+     * been processed
+     */
+    protected void onDirectoryChanged(final File directory) {
+
+    }
+
     public void restartWatching() {
         stopWatching();
         startWatching();
@@ -130,9 +138,10 @@ public abstract class ConversationsFileObserver {
                             observer.startWatching();
                         }
                     }
-                    return;
+                } else {
+                    ConversationsFileObserver.this.onEvent(event, file);
                 }
-                ConversationsFileObserver.this.onEvent(event, file);
+                ConversationsFileObserver.this.onDirectoryChanged(this.path);
             });
         }
     }
@@ -4,6 +4,8 @@ import android.content.Context;
 import android.os.AsyncTask;
 import android.view.View;
 
+import com.google.common.base.Charsets;
+
 import org.json.JSONObject;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
@@ -24,7 +26,14 @@ import java.net.URLEncoder;
 import java.util.regex.Pattern;
 
 import eu.siacs.conversations.Config;
+import eu.siacs.conversations.http.HttpConnectionManager;
 import eu.siacs.conversations.services.XmppConnectionService;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
 
 /**
  * Created by ponna on 16-01-2018.
@@ -180,11 +189,21 @@ public class RichPreview {
 
     private void retrieveMeta(String url, Context context, XmppConnectionService xmppConnectionService) {
         Document doc = null;
-        try {
-            doc = Jsoup.connect(url)
-                    .timeout(Config.CONNECT_TIMEOUT * 1000)
-                    .userAgent(xmppConnectionService.getIqGenerator().getUserAgent())
-                    .get();
+        final Request request = new Request.Builder()
+                .url(url)
+                .header("User-Agent", xmppConnectionService.getIqGenerator().getUserAgent())
+                .build();
+        try (final Response response = HttpConnectionManager.getClient(xmppConnectionService.useTorToConnect()).newCall(request).execute()) {
+            final ResponseBody body = response.body();
+            final MediaType contentType = body == null ? null : body.contentType();
+            if (response.isSuccessful() && contentType != null && "text".equals(contentType.type()) && "html".equals(contentType.subtype())) {
+                //the meta tags are in the head; never read more than the first MiB of a page
+                final BufferedSource source = body.source();
+                source.request(Config.RICH_PREVIEW_MAX_SIZE);
+                final Buffer buffer = source.buffer();
+                final String html = buffer.readString(Math.min(buffer.size(), Config.RICH_PREVIEW_MAX_SIZE), contentType.charset(Charsets.UTF_8));
+                doc = Jsoup.parse(html, url);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }